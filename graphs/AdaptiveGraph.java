@@ -0,0 +1,691 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**Weighted directed graph that keeps its edges in whichever of two forms
+ * suits its density, for workloads mixing sparse and dense graphs.<p>
+ *
+ * Vertices are numbered in insertion order. In sparse form, the edges of each
+ * vertex are a pair of arrays (targets sorted by id, and their weights), as
+ * in the rows of CompactGraph, so an edge is found by binary search. In dense
+ * form, the edges are a matrix: one bitset row per vertex, telling which
+ * edges exist, and the weights in a flat int[] of capacity * capacity, so an
+ * edge is found in constant time and the neighbours of a vertex are read a
+ * word of 64 at a time.<p>
+ *
+ * The graph tracks its density (edges over vertices squared) and the
+ * distribution of its out-degrees (see degreeHistogram()). It moves to dense
+ * form when the density reaches the threshold given at construction, and back
+ * to sparse form when the density falls below half of it, so that a graph
+ * hovering about the threshold does not move at every change; every move is
+ * paid for by as many changes as the graph has edges. Graphs of more than
+ * maxDenseVertices vertices always stay sparse, the matrix growing with the
+ * square of the vertex count.<p>
+ *
+ * The queries have a fast path per form: shortestPath() is Dijkstra's
+ * algorithm with a binary heap in sparse form and with a linear scan of the
+ * distances (quadratic, but without a queue) in dense form; pathsTo() counts
+ * the walks of LESSTHAN and EXACT hop by hop, in time linear in the limit
+ * instead of exponential, and prunes the COST_LESSTHAN search to the vertices
+ * that can reach the destination. Results are as in DirectedWeightedGraph,
+ * but vertices are told apart by equals() rather than by identity.*/
+public class AdaptiveGraph<V> implements WeightedGraph<V, IntegerWeightEdge<V>>,
+		RoutableGraph<V, IntegerWeightEdge<V>> {
+
+	/**Default density at which the graph moves to dense form*/
+	public static final double DEFAULT_THRESHOLD = 0.25;
+	/**Default number of vertices above which the graph stays sparse, 64MB of
+	 * weights in dense form*/
+	public static final int DEFAULT_MAX_DENSE_VERTICES = 1 << 12;
+	/**Largest vertex count whose matrix can be addressed by an int*/
+	private static final int MAX_MATRIX_VERTICES = 46340;
+	private static final int[] EMPTY = new int[0];
+
+	protected final double threshold;
+	protected final int maxDenseVertices;
+
+	protected Map<V, Integer> ids;
+	protected List<V> labels;
+	protected int vertexCount;
+	protected int edgeCount;
+	protected int[] degrees;
+	protected int[] marks;
+	/**Number of vertices by out-degree: entry 0 counts the vertices without
+	 * edges, entry i those of degree 2^(i-1) to 2^i - 1*/
+	protected final int[] degreeHistogram = new int[33];
+	protected boolean dense;
+	/**Number of moves between the two forms*/
+	protected int migrations;
+
+	//sparse form
+	protected int[][] targets;
+	protected int[][] weights;
+	/**Edges of the rows, for the searches in sparse form*/
+	private final QueryContext.Relaxation rows = new QueryContext.Relaxation() {
+		@Override
+		public int relax(QueryContext context, int v, int distance) {
+			int[] row = targets[v];
+			int[] rowWeights = weights[v];
+			for(int i = 0; i < degrees[v]; i++)
+				context.relax(row[i], distance + rowWeights[i], v);
+			return degrees[v];
+		}
+	};
+
+	//dense form
+	/**Number of rows (and columns) of the matrix*/
+	protected int capacity;
+	/**Number of longs per bitset row*/
+	protected int words;
+	protected long[] adjacency;
+	protected int[] matrix;
+
+	/**Constructs an empty graph with the default threshold*/
+	public AdaptiveGraph() {
+		this(DEFAULT_THRESHOLD, DEFAULT_MAX_DENSE_VERTICES);
+	}
+
+	/**Constructs an empty graph moving to dense form at the given density*/
+	public AdaptiveGraph(double threshold) {
+		this(threshold, DEFAULT_MAX_DENSE_VERTICES);
+	}
+
+	/**Constructs an empty graph moving to dense form at the given density, as
+	 * long as it has at most maxDenseVertices vertices
+	 * @throws IllegalArgumentException if the threshold is negative or not a
+	 * number, or maxDenseVertices is negative or its matrix too large*/
+	public AdaptiveGraph(double threshold, int maxDenseVertices) {
+		if(!(threshold >= 0))
+			throw new IllegalArgumentException("Invalid threshold " + threshold);
+		if(maxDenseVertices < 0 || maxDenseVertices > MAX_MATRIX_VERTICES)
+			throw new IllegalArgumentException("Invalid dense vertex count "
+					+ maxDenseVertices);
+		this.threshold = threshold;
+		this.maxDenseVertices = maxDenseVertices;
+		Init(10);
+	}
+
+	/**Empties the graph, in sparse form, with room for capacity vertices*/
+	@Override
+	public void Init(int capacity) {
+		capacity = Math.max(capacity, 1);
+		ids = new HashMap<V, Integer>(capacity);
+		labels = new ArrayList<V>(capacity);
+		vertexCount = 0;
+		edgeCount = 0;
+		degrees = new int[capacity];
+		marks = new int[capacity];
+		Arrays.fill(degreeHistogram, 0);
+		dense = false;
+		targets = new int[capacity][];
+		weights = new int[capacity][];
+		this.capacity = 0;
+		words = 0;
+		adjacency = null;
+		matrix = null;
+	}
+
+	/**Adds a new vertex to the graph, does nothing if it already is in it*/
+	public void addVertex(V vertex) {
+		if(ids.containsKey(vertex))
+			return;
+		int id = vertexCount;
+		if(id == degrees.length) {
+			int length = degrees.length << 1;
+			degrees = Arrays.copyOf(degrees, length);
+			marks = Arrays.copyOf(marks, length);
+			if(!dense) {
+				targets = Arrays.copyOf(targets, length);
+				weights = Arrays.copyOf(weights, length);
+			}
+		}
+		if(dense && id == capacity) {
+			if(id < maxDenseVertices)
+				toDense(denseCapacity(id + 1));
+			else
+				toSparse();
+		}
+		ids.put(vertex, id);
+		labels.add(vertex);
+		if(!dense) {
+			targets[id] = EMPTY;
+			weights[id] = EMPTY;
+		}
+		++degreeHistogram[0];
+		++vertexCount;
+		adapt();
+	}
+
+	/**@return the id of the vertex, -1 if it is not in the graph*/
+	public int id(V vertex) {
+		Integer id = ids.get(vertex);
+		return id == null ? -1 : id;
+	}
+
+	/**@return the vertex with the given id*/
+	public V label(int id) {
+		return labels.get(id);
+	}
+
+	/**@return the id of the vertex
+	 * @throws GraphException if it is not in the graph*/
+	private int vertex(V vertex) throws GraphException {
+		Integer id = ids.get(vertex);
+		if(id == null)
+			throw new GraphException("No such vertex");
+		return id;
+	}
+
+	/**@return true if the edges are held in dense form*/
+	public boolean isDense() {
+		return dense;
+	}
+
+	/**@return the number of edges over the square of the number of vertices*/
+	public double density() {
+		return vertexCount == 0 ? 0 : edgeCount / ((double) vertexCount
+				* vertexCount);
+	}
+
+	/**@return the number of edges leaving the vertex
+	 * @throws GraphException if it is not in the graph*/
+	public int degree(V vertex) throws GraphException {
+		return degrees[vertex(vertex)];
+	}
+
+	/**@return the largest number of edges leaving a vertex*/
+	public int maxDegree() {
+		int max = 0;
+		for(int v = 0; v < vertexCount; v++)
+			max = Math.max(max, degrees[v]);
+		return max;
+	}
+
+	/**@return the number of vertices by out-degree: entry 0 counts the
+	 * vertices without edges, entry i those of degree 2^(i-1) to 2^i - 1*/
+	public int[] degreeHistogram() {
+		return degreeHistogram.clone();
+	}
+
+	/**@return the number of moves made between sparse and dense form*/
+	public int migrations() {
+		return migrations;
+	}
+
+	/**Moves to the form suiting the current density*/
+	private void adapt() {
+		double density = density();
+		if(dense) {
+			if(vertexCount > maxDenseVertices || density < threshold / 2)
+				toSparse();
+		} else if(vertexCount <= maxDenseVertices && density >= threshold)
+			toDense(denseCapacity(vertexCount));
+	}
+
+	/**@return the matrix size to allocate for the given vertex count, with
+	 * room to grow*/
+	private int denseCapacity(int count) {
+		return Math.max(Math.min(count + (count >> 1), maxDenseVertices),
+				Math.max(count, 8));
+	}
+
+	/**Moves the edges into a matrix of the given size, also used to grow the
+	 * matrix in dense form*/
+	private void toDense(int size) {
+		int rowWords = (size + 63) >>> 6;
+		long[] bits = new long[size * rowWords];
+		int[] values = new int[size * size];
+		for(int v = 0; v < vertexCount; v++) {
+			if(dense) {
+				System.arraycopy(adjacency, v * words, bits, v * rowWords, words);
+				System.arraycopy(matrix, v * capacity, values, v * size,
+						vertexCount);
+			} else {
+				int[] row = targets[v];
+				int[] rowWeights = weights[v];
+				for(int i = 0; i < degrees[v]; i++) {
+					bits[v * rowWords + (row[i] >>> 6)] |= 1L << row[i];
+					values[v * size + row[i]] = rowWeights[i];
+				}
+			}
+		}
+		if(!dense) {
+			targets = null;
+			weights = null;
+			dense = true;
+			++migrations;
+		}
+		capacity = size;
+		words = rowWords;
+		adjacency = bits;
+		matrix = values;
+	}
+
+	/**Moves the edges into sorted rows*/
+	private void toSparse() {
+		targets = new int[degrees.length][];
+		weights = new int[degrees.length][];
+		for(int v = 0; v < vertexCount; v++) {
+			int[] row = degrees[v] == 0 ? EMPTY : new int[degrees[v]];
+			int[] rowWeights = degrees[v] == 0 ? EMPTY : new int[degrees[v]];
+			int i = 0;
+			for(int w = nextNeighbour(v, 0); w >= 0; w = nextNeighbour(v, w + 1)) {
+				row[i] = w;
+				rowWeights[i++] = matrix[v * capacity + w];
+			}
+			targets[v] = row;
+			weights[v] = rowWeights;
+		}
+		dense = false;
+		capacity = 0;
+		words = 0;
+		adjacency = null;
+		matrix = null;
+		++migrations;
+	}
+
+	/**@return the first neighbour of v in dense form from id from onwards, -1
+	 * if there is none*/
+	private int nextNeighbour(int v, int from) {
+		int word = from >>> 6;
+		if(word >= words)
+			return -1;
+		int base = v * words;
+		long bits = adjacency[base + word] & (-1L << from);
+		while(bits == 0) {
+			if(++word == words)
+				return -1;
+			bits = adjacency[base + word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**@return the index of the edge from v to w in the row of v in sparse
+	 * form, negative if there is none*/
+	private int find(int v, int w) {
+		return Arrays.binarySearch(targets[v], 0, degrees[v], w);
+	}
+
+	/**@return true if there is an edge from v to w, in either form*/
+	private boolean hasEdge(int v, int w) {
+		if(dense)
+			return (adjacency[v * words + (w >>> 6)] & (1L << w)) != 0;
+		return find(v, w) >= 0;
+	}
+
+	/**@return a new edge object for the edge from v to w*/
+	private IntegerWeightEdge<V> edge(int v, int w) {
+		int weight = dense ? matrix[v * capacity + w] : weights[v][find(v, w)];
+		return new IntegerWeightEdge<V>(labels.get(w), weight);
+	}
+
+	/**Records a change of the degree of v in the histogram*/
+	private void changeDegree(int v, int change) {
+		--degreeHistogram[32 - Integer.numberOfLeadingZeros(degrees[v])];
+		degrees[v] += change;
+		++degreeHistogram[32 - Integer.numberOfLeadingZeros(degrees[v])];
+	}
+
+	//WeightedGraph interface
+
+	@Override
+	public int vertexCount() {
+		return vertexCount;
+	}
+
+	@Override
+	public int edgeCount() {
+		return edgeCount;
+	}
+
+	@Override
+	public IntegerWeightEdge<V> first(V v) throws GraphException {
+		int from = vertex(v);
+		if(degrees[from] == 0)
+			return null;
+		return edge(from, dense ? nextNeighbour(from, 0) : targets[from][0]);
+	}
+
+	@Override
+	public IntegerWeightEdge<V> next(V v, V w) throws GraphException {
+		int from = vertex(v);
+		int to = vertex(w);
+		if(dense) {
+			if(!hasEdge(from, to))
+				return null;
+			int next = nextNeighbour(from, to + 1);
+			return next < 0 ? null : edge(from, next);
+		}
+		int i = find(from, to);
+		if(i < 0 || i + 1 == degrees[from])
+			return null;
+		return edge(from, targets[from][i + 1]);
+	}
+
+	/**Adds the edge, in constant time in dense form, in time linear in the
+	 * degree of v in sparse form
+	 * @throws GraphException if either vertex is not in the graph, or there
+	 * already is an edge between them*/
+	@Override
+	public void setEdge(V v, V w, int wght) throws GraphException {
+		int from = vertex(v);
+		int to = vertex(w);
+		if(hasEdge(from, to))
+			throw new GraphException("edge already exists between vertices");
+
+		if(dense) {
+			adjacency[from * words + (to >>> 6)] |= 1L << to;
+			matrix[from * capacity + to] = wght;
+		} else {
+			int degree = degrees[from];
+			int[] row = targets[from];
+			int[] rowWeights = weights[from];
+			if(degree == row.length) {
+				int length = Math.max(4, degree << 1);
+				row = targets[from] = Arrays.copyOf(row, length);
+				rowWeights = weights[from] = Arrays.copyOf(rowWeights, length);
+			}
+			//keep the row sorted
+			int i = -find(from, to) - 1;
+			System.arraycopy(row, i, row, i + 1, degree - i);
+			System.arraycopy(rowWeights, i, rowWeights, i + 1, degree - i);
+			row[i] = to;
+			rowWeights[i] = wght;
+		}
+		changeDegree(from, 1);
+		++edgeCount;
+		adapt();
+	}
+
+	@Override
+	public void delEdge(V v, V w) throws GraphException {
+		int from = vertex(v);
+		int to = vertex(w);
+		if(dense) {
+			if(!hasEdge(from, to))
+				throw new GraphException("No such edge");
+			adjacency[from * words + (to >>> 6)] &= ~(1L << to);
+		} else {
+			int i = find(from, to);
+			if(i < 0)
+				throw new GraphException("No such edge");
+			int after = degrees[from] - i - 1;
+			System.arraycopy(targets[from], i + 1, targets[from], i, after);
+			System.arraycopy(weights[from], i + 1, weights[from], i, after);
+		}
+		changeDegree(from, -1);
+		--edgeCount;
+		adapt();
+	}
+
+	@Override
+	public boolean isEdge(V v, V w) throws GraphException {
+		return hasEdge(vertex(v), vertex(w));
+	}
+
+	@Override
+	public int weight(V v, V w) throws GraphException {
+		int from = vertex(v);
+		int to = vertex(w);
+		if(!hasEdge(from, to))
+			throw new GraphException("No such edge");
+		return dense ? matrix[from * capacity + to] : weights[from][find(from, to)];
+	}
+
+	/**Sets the mark of the vertex, ignored if it is not in the graph*/
+	@Override
+	public void setMark(V v, int val) {
+		int id = id(v);
+		if(id >= 0)
+			marks[id] = val;
+	}
+
+	/**@return the mark of the vertex, 0 if it is not in the graph or was never
+	 * marked*/
+	@Override
+	public int getMark(V v) {
+		int id = id(v);
+		return id < 0 ? 0 : marks[id];
+	}
+
+	//RoutableGraph interface
+
+	@Override
+	public int costNeighbour(V start, V destination) throws GraphException {
+		int from = vertex(start);
+		int to = id(destination);
+		if(to >= 0) {
+			if(dense) {
+				if(hasEdge(from, to))
+					return matrix[from * capacity + to];
+			} else {
+				int i = find(from, to);
+				if(i >= 0)
+					return weights[from][i];
+			}
+		}
+		throw new GraphException("no such destination vertex");
+	}
+
+	@Override
+	public int cost(V[] path) throws GraphException {
+		if(path.length <= 1)
+			throw new GraphException("path too short");
+
+		int accumulator = 0;
+		for(int i = 0; i < (path.length - 1); i++)
+			accumulator += costNeighbour(path[i], path[i+1]);
+
+		return accumulator;
+	}
+
+	/**Counts the paths as DirectedWeightedGraph.pathsTo() does. LESSTHAN and
+	 * EXACT count the walks of each number of hops from the previous one, so
+	 * in time proportional to the limit times the size of the graph; counts
+	 * overflow as the recursive count does*/
+	@Override
+	public int pathsTo(V start, V destination, int limit, Conditions c)
+			throws GraphException {
+		int from = vertex(start);
+		int to = vertex(destination);
+		if(limit <= 0)
+			return 0;
+
+		switch(c) {
+		case LESSTHAN:
+			return walks(from, to, limit, true);
+		case EXACT:
+			return walks(from, to, limit, false);
+		case COST_LESSTHAN:
+			BitSet reaching = reaching(to);
+			return reaching.get(from)
+					? pathsToCost(from, to, limit - 1, reaching) : 0;
+		default:
+			return 0;
+		}
+	}
+
+	/**@return the number of walks of exactly hops edges from start to
+	 * destination, or of at most hops edges that reach destination only at
+	 * their end if firstArrival*/
+	private int walks(int start, int destination, int hops,
+			boolean firstArrival) {
+		int[] current = new int[vertexCount];
+		int[] next = new int[vertexCount];
+		current[start] = 1;
+		int accumulator = 0;
+
+		for(int hop = 0; hop < hops; hop++) {
+			boolean any = false;
+			Arrays.fill(next, 0);
+			for(int v = 0; v < vertexCount; v++) {
+				int count = current[v];
+				if(count == 0)
+					continue;
+				any = true;
+				if(dense) {
+					for(int w = nextNeighbour(v, 0); w >= 0;
+							w = nextNeighbour(v, w + 1))
+						next[w] += count;
+				} else {
+					int[] row = targets[v];
+					for(int i = 0; i < degrees[v]; i++)
+						next[row[i]] += count;
+				}
+			}
+			//no walk is left to extend
+			if(!any)
+				return accumulator;
+			if(firstArrival) {
+				accumulator += next[destination];
+				next[destination] = 0;
+			}
+			int[] swap = current;
+			current = next;
+			next = swap;
+		}
+		return firstArrival ? accumulator : current[destination];
+	}
+
+	/**Recursive count of the paths of cost at most limit, following
+	 * DirectedWeightedGraph.pathsToLessThanCost(), only entering vertices
+	 * that can reach destination*/
+	private int pathsToCost(int start, int destination, int limit,
+			BitSet reaching) {
+		//stop if the limit is exceeded
+		if(limit < 0)
+			return 0;
+		int accumulator = 0;
+		int degree = degrees[start];
+		for(int i = 0, w = dense ? nextNeighbour(start, 0) : -1; i < degree;
+				i++) {
+			int terminal;
+			int weight;
+			if(dense) {
+				terminal = w;
+				weight = matrix[start * capacity + w];
+				w = nextNeighbour(start, w + 1);
+			} else {
+				terminal = targets[start][i];
+				weight = weights[start][i];
+			}
+
+			if(terminal == destination) {
+				if(limit - weight < 0)
+					continue;
+				++accumulator;
+			}
+			if(reaching.get(terminal))
+				accumulator += pathsToCost(terminal, destination,
+						limit - weight, reaching);
+		}
+		return accumulator;
+	}
+
+	/**@return the vertices from which there is a path of at least one edge to
+	 * destination, searching backwards: down the columns of the matrix in
+	 * dense form, over a transpose of the rows built on the fly in sparse
+	 * form*/
+	private BitSet reaching(int destination) {
+		BitSet reaching = new BitSet(vertexCount);
+		IntStack pending = new IntStack(16);
+		pending.push(destination);
+
+		if(dense) {
+			while(pending.size() > 0) {
+				int w = pending.pop();
+				int word = w >>> 6;
+				long bit = 1L << w;
+				for(int v = 0; v < vertexCount; v++)
+					if(!reaching.get(v)
+							&& (adjacency[v * words + word] & bit) != 0) {
+						reaching.set(v);
+						pending.push(v);
+					}
+			}
+			return reaching;
+		}
+
+		int[] offsets = new int[vertexCount + 1];
+		for(int v = 0; v < vertexCount; v++)
+			for(int i = 0; i < degrees[v]; i++)
+				++offsets[targets[v][i] + 1];
+		for(int v = 0; v < vertexCount; v++)
+			offsets[v + 1] += offsets[v];
+		int[] sources = new int[edgeCount];
+		int[] fill = Arrays.copyOf(offsets, vertexCount);
+		for(int v = 0; v < vertexCount; v++)
+			for(int i = 0; i < degrees[v]; i++)
+				sources[fill[targets[v][i]]++] = v;
+
+		while(pending.size() > 0) {
+			int w = pending.pop();
+			for(int e = offsets[w]; e < offsets[w + 1]; e++)
+				if(!reaching.get(sources[e])) {
+					reaching.set(sources[e]);
+					pending.push(sources[e]);
+				}
+		}
+		return reaching;
+	}
+
+	/**Dijkstra's algorithm, with a binary heap in sparse form (see
+	 * QueryContext.search()) and a scan of the distances in dense form*/
+	@Override
+	public int shortestPath(V start, V destination) throws GraphException {
+		int from = vertex(start);
+		int to = vertex(destination);
+
+		QueryContext context = QueryContext.acquire(vertexCount);
+		try {
+			int distance = dense ? denseDijkstra(from, to, context)
+					: sparseDijkstra(from, to, context);
+			if(distance >= 0)
+				return distance;
+		} finally {
+			context.release();
+		}
+		throw new GraphException("No such path");
+	}
+
+	/**@return the length of the shortest path, -1 if there is none*/
+	private int sparseDijkstra(int from, int to, QueryContext context) {
+		int distance = context.search(from, 0, to, rows, null);
+		return distance == Integer.MAX_VALUE ? -1 : distance;
+	}
+
+	/**@return the length of the shortest path, -1 if there is none. Picking
+	 * the closest vertex by a scan makes the search quadratic, which a dense
+	 * graph costs anyway in edges, and spares the heap operations*/
+	private int denseDijkstra(int from, int to, QueryContext context) {
+		//from is relaxed but not settled, as by QueryContext.search()
+		int v = from;
+		int distance = 0;
+		while(true) {
+			int base = v * capacity;
+			for(int w = nextNeighbour(v, 0); w >= 0; w = nextNeighbour(v, w + 1)) {
+				int candidate = distance + matrix[base + w];
+				if(candidate < context.distance(w))
+					context.record(w, candidate, v);
+			}
+
+			v = -1;
+			distance = Integer.MAX_VALUE;
+			for(int u = 0; u < vertexCount; u++)
+				if(!context.isVisited(u) && context.distance(u) < distance) {
+					v = u;
+					distance = context.distance(u);
+				}
+			if(v < 0)
+				return -1;
+			if(v == to)
+				return distance;
+			context.visit(v);
+		}
+	}
+}
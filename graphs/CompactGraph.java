@@ -0,0 +1,321 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**Read-only, compressed sparse row (CSR) snapshot of a DirectedWeightedGraph.<p>
+ *
+ * Vertices are relabelled with dense int ids in the range [0, vertexCount()),
+ * and the edges leaving vertex v are stored contiguously in the targets and
+ * weights arrays, between offsets[v] (inclusive) and offsets[v + 1]
+ * (exclusive), sorted by target id. Algorithms that run over the snapshot
+ * therefore touch flat primitive arrays only, and allocate no iterators or
+ * boxed values while walking the graph.<p>
+ *
+ * Ids are the ones assigned by the source graph, unless the snapshot has
+ * been reordered (see reorder() and VertexOrdering), in which case they are a
+ * permutation of them.<p>
+ *
+ * The snapshot does not follow later changes to the graph it was built from,
+ * see DirectedWeightedGraph.compact().*/
+public class CompactGraph<V> implements QueryContext.Relaxation {
+
+	/**Ids assigned to the vertices by the source graph, copied so that the
+	 * snapshot can be read while vertices are added to the graph*/
+	protected final Map<V, Integer> ids;
+	/**Vertex labels, indexed by id*/
+	protected final Object[] labels;
+	/**Index of the first edge of each vertex, plus one trailing entry*/
+	protected final int[] offsets;
+	/**Terminal id of each edge*/
+	protected final int[] targets;
+	/**Weight of each edge*/
+	protected final int[] weights;
+	/**Id in the snapshot of each id of the source graph, and the reverse 
+	 * mapping, both null when the ids are the same*/
+	protected final int[] rank;
+	protected final int[] stable;
+	/**Reverse (incoming) edges in the same layout, built on demand, see 
+	 * transpose()*/
+	protected int[] inOffsets;
+	protected int[] sources;
+	/**Index of each edge in the order of sources*/
+	protected int[] inEdges;
+	/**Consumption of each edge of the last resource it was computed for, see
+	 * LabelSetting.consumptions()*/
+	protected LabelSetting.Resource<V> resource;
+	protected int[] consumptions;
+
+	/**Builds a snapshot of the argument graph*/
+	public CompactGraph(DirectedWeightedGraph<V, ?> graph) {
+		this(graph.ids, graph.labels, graph.vertices);
+	}
+
+	protected <E extends IntegerWeightEdge<V>> CompactGraph(Map<V, Integer> ids,
+			List<V> labels, Map<V, List<E>> vertices) {
+		int n = labels.size();
+		this.ids = new HashMap<V, Integer>(ids);
+		this.labels = labels.toArray();
+		rank = null;
+		stable = null;
+		offsets = new int[n + 1];
+
+		for(int v = 0; v < n; v++)
+			offsets[v + 1] = offsets[v] + vertices.get(labels.get(v)).size();
+		targets = new int[offsets[n]];
+		weights = new int[offsets[n]];
+
+		//each row is sorted by target id by packing (target, weight) pairs in
+		//a long, target in the high half
+		long[] row = new long[0];
+		for(int v = 0; v < n; v++) {
+			List<E> edges = vertices.get(labels.get(v));
+			if(row.length < edges.size())
+				row = new long[edges.size()];
+			int degree = 0;
+			for(E edge : edges)
+				row[degree++] = ((long) ids.get(edge.terminal) << 32)
+						| (edge.weight & 0xFFFFFFFFL);
+			Arrays.sort(row, 0, degree);
+			for(int i = 0; i < degree; i++) {
+				targets[offsets[v] + i] = (int) (row[i] >>> 32);
+				weights[offsets[v] + i] = (int) row[i];
+			}
+		}
+	}
+
+	/**Relabelled copy of the source snapshot, vertex v of source becomes
+	 * vertex order[v]*/
+	protected CompactGraph(CompactGraph<V> source, int[] order) {
+		int n = source.vertexCount();
+		ids = source.ids;
+		labels = new Object[n];
+		offsets = new int[n + 1];
+		targets = new int[source.edgeCount()];
+		weights = new int[source.edgeCount()];
+		stable = new int[n];
+		rank = new int[n];
+		
+		int[] previous = new int[n];
+		for(int v = 0; v < n; v++)
+			previous[order[v]] = v;
+		for(int v = 0; v < n; v++) {
+			labels[order[v]] = source.labels[v];
+			//compose with the ordering of the source, if any
+			int id = source.stable == null ? v : source.stable[v];
+			stable[order[v]] = id;
+			rank[id] = order[v];
+		}
+		
+		long[] row = new long[0];
+		for(int v = 0; v < n; v++) {
+			int old = previous[v];
+			int degree = source.degree(old);
+			offsets[v + 1] = offsets[v] + degree;
+			if(row.length < degree)
+				row = new long[degree];
+			for(int i = 0; i < degree; i++) {
+				int e = source.offsets[old] + i;
+				row[i] = ((long) order[source.targets[e]] << 32)
+						| (source.weights[e] & 0xFFFFFFFFL);
+			}
+			Arrays.sort(row, 0, degree);
+			for(int i = 0; i < degree; i++) {
+				targets[offsets[v] + i] = (int) (row[i] >>> 32);
+				weights[offsets[v] + i] = (int) row[i];
+			}
+		}
+	}
+	
+	/**@return a copy of the snapshot where vertex v is relabelled order[v]
+	 * (order must be a permutation of the ids), see VertexOrdering*/
+	public CompactGraph<V> reorder(int[] order) {
+		return new CompactGraph<V>(this, order);
+	}
+	
+	/**@return the id assigned by the source graph to the vertex with the
+	 * given id in this snapshot*/
+	public int stableId(int id) {
+		return stable == null ? id : stable[id];
+	}
+	
+	/**@return true if the ids of the snapshot are those of the source graph*/
+	public boolean isIdentityOrder() {
+		return stable == null;
+	}
+	
+	/**@return The number of vertices in the snapshot*/
+	public int vertexCount() {
+		return offsets.length - 1;
+	}
+
+	/**@return The number of edges in the snapshot*/
+	public int edgeCount() {
+		return targets.length;
+	}
+
+	/**@return the id of the vertex, or -1 if the vertex is not part of the
+	 * snapshot*/
+	public int id(V vertex) {
+		Integer id = ids.get(vertex);
+		if(id == null || id >= vertexCount())
+			return -1;
+		return rank == null ? id : rank[id];
+	}
+
+	/**@return the vertex with the given id*/
+	@SuppressWarnings("unchecked")
+	public V label(int id) {
+		return (V) labels[id];
+	}
+
+	/**@return the index of the first edge leaving v*/
+	public int firstEdge(int v) {
+		return offsets[v];
+	}
+
+	/**@return the index one past the last edge leaving v*/
+	public int endEdge(int v) {
+		return offsets[v + 1];
+	}
+
+	/**@return the number of edges leaving v*/
+	public int degree(int v) {
+		return offsets[v + 1] - offsets[v];
+	}
+
+	/**@return a new cursor over the edges of the snapshot, which later
+	 * changes to the source graph do not affect*/
+	public EdgeCursor<V> cursor() {
+		return new Cursor();
+	}
+
+	/**Cursor over the rows of the snapshot*/
+	protected class Cursor implements EdgeCursor<V> {
+		protected int edge;
+		protected int end;
+
+		@Override
+		public void reset(V v) throws GraphException {
+			int id = id(v);
+			if(id < 0)
+				throw new GraphException("No such vertex");
+			edge = offsets[id] - 1;
+			end = offsets[id + 1];
+		}
+
+		@Override
+		public boolean advance() {
+			return ++edge < end;
+		}
+
+		@Override
+		public V target() {
+			return label(targets[edge]);
+		}
+
+		@Override
+		public int weight() {
+			return weights[edge];
+		}
+	}
+
+	/**@return an empty set of vertices over the ids of the source graph as
+	 * of this snapshot, to be filled with VertexMarks.load(BitSet,
+	 * CompactGraph); unlike a set over the ids of the graph, it can be read
+	 * while vertices are added to the graph*/
+	public VertexMarks<V> marks() {
+		return new VertexMarks<V>(ids, new AbstractList<V>() {
+			@Override
+			public V get(int id) {
+				return label(rank == null ? id : rank[id]);
+			}
+
+			@Override
+			public int size() {
+				return labels.length;
+			}
+		});
+	}
+
+	/**Relaxes the edges leaving v, by their weight*/
+	@Override
+	public int relax(QueryContext context, int v, int distance) {
+		for(int e = offsets[v]; e < offsets[v + 1]; e++)
+			context.relax(targets[e], distance + weights[e], v);
+		return offsets[v + 1] - offsets[v];
+	}
+
+	/**@return the terminal id of the edge with the given index*/
+	public int target(int edge) {
+		return targets[edge];
+	}
+
+	/**@return the weight of the edge with the given index*/
+	public int weight(int edge) {
+		return weights[edge];
+	}
+
+	/**Builds the incoming edge index if it does not already exist. After the
+	 * call, the edges entering v are listed by inOffsets[v] (inclusive) and 
+	 * inOffsets[v + 1] (exclusive), with their start vertex in sources, 
+	 * sorted by id, and their index in inEdges.*/
+	public synchronized void transpose() {
+		if(inOffsets != null)
+			return;
+		int n = vertexCount();
+		int[] in = new int[n + 1];
+		int[] from = new int[targets.length];
+		int[] edges = new int[targets.length];
+		
+		//counting sort of the edges by target
+		for(int e = 0; e < targets.length; e++)
+			++in[targets[e] + 1];
+		for(int v = 0; v < n; v++)
+			in[v + 1] += in[v];
+		int[] fill = Arrays.copyOf(in, n);
+		for(int v = 0; v < n; v++)
+			for(int e = offsets[v]; e < offsets[v + 1]; e++) {
+				edges[fill[targets[e]]] = e;
+				from[fill[targets[e]]++] = v;
+			}
+		
+		sources = from;
+		inEdges = edges;
+		inOffsets = in;
+	}
+
+	/**Sets in result the vertices from which v can be reached along a path
+	 * of at least one edge (v included only if it lies on a cycle), by a
+	 * search backwards along the incoming edges, in time linear in the size
+	 * of the graph
+	 * @return result*/
+	public BitSet reaching(int v, BitSet result) {
+		result.clear();
+		transpose();
+		IntStack stack = new IntStack(64);
+		stack.push(v);
+		while(!stack.isEmpty()) {
+			int w = stack.pop();
+			for(int e = inOffsets[w]; e < inOffsets[w + 1]; e++) {
+				int s = sources[e];
+				if(!result.get(s)) {
+					result.set(s);
+					stack.push(s);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**@return the number of edges entering v, see transpose()*/
+	public int inDegree(int v) {
+		transpose();
+		return inOffsets[v + 1] - inOffsets[v];
+	}
+
+}
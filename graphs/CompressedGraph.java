@@ -0,0 +1,524 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**Read-only, compressed representation of a weighted directed graph, in the
+ * style of WebGraph:
+ * P. Boldi, S. Vigna, 2004, <em>The WebGraph Framework I: Compression
+ * Techniques</em>, WWW '04.<p>
+ *
+ * The successors of each vertex are sorted by id and stored as gaps between
+ * consecutive ids (the first one relative to the vertex itself), each gap a
+ * variable length integer of 7 bits per byte. Neighbouring vertices having
+ * neighbouring ids (see VertexOrdering), most gaps fit in one byte. Weights
+ * are kept in a separate stream, bit-packed per vertex: the smallest weight of
+ * the vertex, then every weight as an offset from it in the fewest bits that
+ * fit them all, so the weight of the i-th edge is read directly.<p>
+ *
+ * The streams are addressed with long positions, in pages, so they are not
+ * limited to 2GB. Every ANCHOR-th vertex has a skip pointer into each stream;
+ * locating any other vertex skips at most ANCHOR - 1 rows from its anchor,
+ * using the length stored at the start of each row.<p>
+ *
+ * costNeighbour(), cost(), pathsTo() and shortestPath() run directly on the
+ * compressed streams, with the same semantics as in DirectedWeightedGraph.*/
+public class CompressedGraph<V> implements RoutableGraph<V, IntegerWeightEdge<V>> {
+
+	/**Number of vertices per skip pointer*/
+	public static final int ANCHOR = 16;
+
+	/**Ids of the vertices*/
+	protected final Map<V, Integer> ids;
+	/**Id in this graph of each id of the map, null when the same*/
+	protected final int[] rank;
+	protected final Object[] labels;
+	protected final int vertexCount;
+	protected final long edgeCount;
+	protected final PagedBytes successors;
+	protected final PagedBytes weights;
+	protected final long[] successorAnchors;
+	protected final long[] weightAnchors;
+
+	/**Compresses the argument snapshot*/
+	public CompressedGraph(CompactGraph<V> graph) {
+		ids = graph.ids;
+		rank = graph.rank;
+		labels = graph.labels;
+		vertexCount = graph.vertexCount();
+		edgeCount = graph.edgeCount();
+		successors = new PagedBytes();
+		weights = new PagedBytes();
+		successorAnchors = new long[(vertexCount + ANCHOR - 1) / ANCHOR];
+		weightAnchors = new long[successorAnchors.length];
+		for(int v = 0; v < vertexCount; v++)
+			encode(v, graph.targets, graph.weights, graph.offsets[v],
+					graph.degree(v));
+	}
+
+	/**Constructor used by Builder*/
+	protected CompressedGraph(Builder<V> builder) {
+		ids = builder.ids;
+		rank = null;
+		labels = builder.labels.toArray();
+		vertexCount = labels.length;
+		edgeCount = builder.edgeCount;
+		successors = builder.successors;
+		weights = builder.weights;
+		successorAnchors = Arrays.copyOf(builder.successorAnchors,
+				(vertexCount + ANCHOR - 1) / ANCHOR);
+		weightAnchors = Arrays.copyOf(builder.weightAnchors,
+				successorAnchors.length);
+	}
+
+	/**Incremental construction of a CompressedGraph, one vertex at a time,
+	 * so that graphs too large to be held uncompressed can be built from a
+	 * stream. Vertices get ids in the order they are added, and edges refer
+	 * to their end vertex by id, so a vertex may have edges to vertices yet
+	 * to be added*/
+	public static class Builder<V> {
+		protected final Map<V, Integer> ids = new HashMap<V, Integer>();
+		protected final List<V> labels = new ArrayList<V>();
+		protected final PagedBytes successors = new PagedBytes();
+		protected final PagedBytes weights = new PagedBytes();
+		protected long[] successorAnchors = new long[16];
+		protected long[] weightAnchors = new long[16];
+		protected long edgeCount;
+
+		/**Adds the next vertex (with id vertexCount()) and its edges
+		 * @param targets ids of the end vertices, in increasing order
+		 * @param weights weights of the edges
+		 * @param degree number of edges*/
+		public void addVertex(V label, int[] targets, int[] weights,
+				int degree) {
+			int v = labels.size();
+			for(int i = 1; i < degree; i++)
+				if(targets[i] < targets[i - 1])
+					throw new IllegalArgumentException("targets not sorted");
+			if(v % ANCHOR == 0 && v / ANCHOR == successorAnchors.length) {
+				successorAnchors = Arrays.copyOf(successorAnchors,
+						successorAnchors.length << 1);
+				weightAnchors = Arrays.copyOf(weightAnchors,
+						weightAnchors.length << 1);
+			}
+			ids.put(label, v);
+			labels.add(label);
+			edgeCount += degree;
+			CompressedGraph.encode(v, targets, weights, 0, degree,
+					this.successors, this.weights, successorAnchors,
+					weightAnchors);
+		}
+
+		/**@return The number of vertices added so far*/
+		public int vertexCount() {
+			return labels.size();
+		}
+
+		public CompressedGraph<V> build() {
+			return new CompressedGraph<V>(this);
+		}
+	}
+
+	private void encode(int v, int[] targets, int[] weights, int from,
+			int degree) {
+		encode(v, targets, weights, from, degree, successors, this.weights,
+				successorAnchors, weightAnchors);
+	}
+
+	/**Appends the row of vertex v, made of degree edges starting at index
+	 * from of the targets and weights arrays, to the streams*/
+	private static void encode(int v, int[] targets, int[] weights, int from,
+			int degree, PagedBytes successorStream, PagedBytes weightStream,
+			long[] successorAnchors, long[] weightAnchors) {
+		if(v % ANCHOR == 0) {
+			successorAnchors[v / ANCHOR] = successorStream.size();
+			weightAnchors[v / ANCHOR] = weightStream.size();
+		}
+		successorStream.writeVarint(degree);
+		if(degree == 0)
+			return;
+
+		//gaps, measured first to write the length of the row
+		long first = zigzag(targets[from] - (long) v);
+		int bytes = PagedBytes.varintLength(first);
+		for(int i = 1; i < degree; i++)
+			bytes += PagedBytes.varintLength(targets[from + i]
+					- (long) targets[from + i - 1]);
+		successorStream.writeVarint(bytes);
+		successorStream.writeVarint(first);
+		for(int i = 1; i < degree; i++)
+			successorStream.writeVarint(targets[from + i]
+					- (long) targets[from + i - 1]);
+
+		//weights, as offsets from the smallest
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for(int i = 0; i < degree; i++) {
+			min = Math.min(min, weights[from + i]);
+			max = Math.max(max, weights[from + i]);
+		}
+		int width = 64 - Long.numberOfLeadingZeros(max - min);
+		weightStream.writeVarint(zigzag(min));
+		weightStream.write(width);
+		long buffer = 0;
+		int buffered = 0;
+		for(int i = 0; i < degree; i++) {
+			buffer |= (weights[from + i] - min) << buffered;
+			buffered += width;
+			while(buffered >= 8) {
+				weightStream.write((int) buffer & 0xFF);
+				buffer >>>= 8;
+				buffered -= 8;
+			}
+		}
+		if(buffered > 0)
+			weightStream.write((int) buffer & 0xFF);
+	}
+
+	private static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**@return The number of vertices*/
+	public int vertexCount() {
+		return vertexCount;
+	}
+
+	/**@return The number of edges*/
+	public long edgeCount() {
+		return edgeCount;
+	}
+
+	/**@return the memory used by the compressed streams and skip pointers,
+	 * in bytes (vertex labels excluded)*/
+	public long sizeInBytes() {
+		return successors.size() + weights.size()
+				+ 16L * successorAnchors.length;
+	}
+
+	/**@return the id of the vertex, -1 if it is not in the graph*/
+	public int id(V vertex) {
+		Integer id = ids.get(vertex);
+		if(id == null || id >= vertexCount)
+			return -1;
+		return rank == null ? id : rank[id];
+	}
+
+	/**@return the vertex with the given id*/
+	@SuppressWarnings("unchecked")
+	public V label(int id) {
+		return (V) labels[id];
+	}
+
+	/**@return the number of edges leaving v*/
+	public int degree(int v) {
+		Cursor cursor = new Cursor();
+		cursor.reset(v);
+		return cursor.degree;
+	}
+
+	/**@return a new cursor over the edges of the graph*/
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**Cursor decoding the edges of one vertex at a time*/
+	public class Cursor implements EdgeCursor<V>, QueryContext.Relaxation {
+		protected int vertex;
+		protected int degree;
+		protected int index;
+		protected int target;
+		protected long position;
+		protected long min;
+		protected int width;
+		/**Position of the first bit of the packed weights of the row*/
+		protected long bits;
+
+		@Override
+		public void reset(V v) throws GraphException {
+			int id = id(v);
+			if(id < 0)
+				throw new GraphException("No such vertex");
+			reset(id);
+		}
+
+		/**Positions the cursor before the first edge of vertex v*/
+		public void reset(int v) {
+			vertex = v;
+			index = 0;
+			position = successorAnchors[v / ANCHOR];
+			long weightPosition = weightAnchors[v / ANCHOR];
+
+			//skip the rows between the anchor and v
+			for(int u = v - v % ANCHOR; u < v; u++) {
+				int skipped = (int) readVarint();
+				if(skipped == 0)
+					continue;
+				long length = readVarint();
+				position += length;
+				long header = weightPosition;
+				while((weights.get(header++) & 0x80) != 0)
+					;
+				int width = weights.get(header++);
+				weightPosition = header + (skipped * (long) width + 7) / 8;
+			}
+
+			degree = (int) readVarint();
+			if(degree == 0)
+				return;
+			readVarint();
+			long header = weightPosition;
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = weights.get(header++);
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			min = unzigzag(value);
+			width = weights.get(header++);
+			bits = header * 8;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = successors.get(position++);
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return value;
+		}
+
+		@Override
+		public boolean advance() {
+			if(index >= degree)
+				return false;
+			long gap = readVarint();
+			target = index == 0 ? (int) (vertex + unzigzag(gap))
+					: (int) (target + gap);
+			++index;
+			return true;
+		}
+
+		/**@return the id of the end vertex of the current edge*/
+		public int targetId() {
+			return target;
+		}
+
+		@Override
+		public V target() {
+			return label(target);
+		}
+
+		@Override
+		public int weight() {
+			if(width == 0)
+				return (int) min;
+			//read width bits starting at bit (index - 1) * width of the row
+			long first = bits + (index - 1) * (long) width;
+			long value = 0;
+			int read = 0;
+			long bit = first;
+			while(read < width) {
+				int b = weights.get(bit >>> 3) >>> (int) (bit & 7);
+				int available = 8 - (int) (bit & 7);
+				value |= (long) b << read;
+				read += available;
+				bit += available;
+			}
+			value &= (1L << width) - 1;
+			return (int) (min + value);
+		}
+
+		/**@return the number of edges of the current vertex*/
+		public int degree() {
+			return degree;
+		}
+
+		/**Relaxes the edges leaving v, decoding its row with this cursor*/
+		@Override
+		public int relax(QueryContext context, int v, int distance) {
+			reset(v);
+			while(advance())
+				context.relax(target, distance + weight(), v);
+			return degree;
+		}
+	}
+
+	/**Byte stream in pages of 16MB, addressed by long positions*/
+	protected static class PagedBytes {
+		private static final int PAGE_BITS = 24;
+		private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+		protected byte[][] pages = new byte[1][];
+		protected long size;
+
+		public PagedBytes() {
+			pages[0] = new byte[1024];
+		}
+
+		public long size() {
+			return size;
+		}
+
+		/**@return the unsigned byte at the position*/
+		public int get(long position) {
+			return pages[(int) (position >>> PAGE_BITS)]
+					[(int) (position & (PAGE_SIZE - 1))] & 0xFF;
+		}
+
+		public void write(int b) {
+			int page = (int) (size >>> PAGE_BITS);
+			int offset = (int) (size & (PAGE_SIZE - 1));
+			if(page == pages.length)
+				pages = Arrays.copyOf(pages, pages.length << 1);
+			if(pages[page] == null)
+				pages[page] = new byte[PAGE_SIZE];
+			else if(offset == pages[page].length)
+				//first page grows until it reaches the page size
+				pages[page] = Arrays.copyOf(pages[page],
+						Math.min(PAGE_SIZE, pages[page].length << 1));
+			pages[page][offset] = (byte) b;
+			++size;
+		}
+
+		public void writeVarint(long value) {
+			while((value & ~0x7FL) != 0) {
+				write((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		/**@return the number of bytes of the varint encoding of value*/
+		public static int varintLength(long value) {
+			int length = 1;
+			while((value & ~0x7FL) != 0) {
+				++length;
+				value >>>= 7;
+			}
+			return length;
+		}
+	}
+
+	//RoutableGraph interface
+
+	@Override
+	public int costNeighbour(V start, V destination) throws GraphException {
+		int from = id(start);
+		int to = id(destination);
+		if(from < 0)
+			throw new GraphException("No such vertex");
+		if(to >= 0) {
+			Cursor cursor = new Cursor();
+			cursor.reset(from);
+			//successors are sorted, stop as soon as they go past destination
+			while(cursor.advance() && cursor.target <= to)
+				if(cursor.target == to)
+					return cursor.weight();
+		}
+		throw new GraphException("no such destination vertex");
+	}
+
+	@Override
+	public int cost(V[] path) throws GraphException {
+		if(path.length <= 1)
+			throw new GraphException("path too short");
+
+		int accumulator = 0;
+		for(int i = 0; i < (path.length - 1); i++)
+			accumulator += costNeighbour(path[i], path[i+1]);
+
+		return accumulator;
+	}
+
+	@Override
+	public int pathsTo(V start, V destination, int limit, Conditions c)
+			throws GraphException {
+		int from = id(start);
+		int to = id(destination);
+		if(from < 0 || to < 0)
+			throw new GraphException("No such vertex");
+		return pathsTo(from, to, limit - 1, c, new ArrayList<Cursor>(), 0);
+	}
+
+	/**Recursive path count over the ids, following the three conditions of
+	 * DirectedWeightedGraph.pathsToLessThan(), pathsToExact() and
+	 * pathsToLessThanCost(). Each depth uses its own cursor. Vertices without
+	 * edges are not tested before recursing (that would decode their row
+	 * twice): the cursor of the next depth finds them empty*/
+	private int pathsTo(int start, int destination, int limit, Conditions c,
+			List<Cursor> cursors, int depth) {
+		if(depth == cursors.size())
+			cursors.add(new Cursor());
+		Cursor edge = cursors.get(depth);
+		edge.reset(start);
+		int accumulator = 0;
+
+		while(edge.advance()) {
+			//stop if the limit is exceeded
+			if(limit < 0)
+				break;
+			int terminal = edge.target;
+
+			switch(c) {
+			case LESSTHAN:
+				if(terminal == destination)
+					++accumulator;
+				else
+					accumulator += pathsTo(terminal, destination, limit - 1,
+							c, cursors, depth + 1);
+				break;
+			case EXACT:
+				if(limit == 0 && terminal == destination)
+					++accumulator;
+				else
+					accumulator += pathsTo(terminal, destination, limit - 1,
+							c, cursors, depth + 1);
+				break;
+			case COST_LESSTHAN:
+				int weight = edge.weight();
+				if(terminal == destination) {
+					if(limit - weight < 0)
+						continue;
+					++accumulator;
+				}
+				accumulator += pathsTo(terminal, destination,
+							limit - weight, c, cursors, depth + 1);
+				break;
+			}
+		}
+		return accumulator;
+	}
+
+	/**Dijkstra's algorithm (see QueryContext.search()), decoding edges on
+	 * the fly*/
+	@Override
+	public int shortestPath(V start, V destination) throws GraphException {
+		int from = id(start);
+		int to = id(destination);
+		if(from < 0 || to < 0)
+			throw new GraphException("No such vertex");
+
+		QueryContext context = QueryContext.acquire(vertexCount);
+		try {
+			int distance = context.search(from, 0, to, new Cursor(), null);
+			if(distance != Integer.MAX_VALUE)
+				return distance;
+		} finally {
+			context.release();
+		}
+		throw new GraphException("No such path");
+	}
+}
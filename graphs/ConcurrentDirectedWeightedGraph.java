@@ -0,0 +1,396 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**DirectedWeightedGraph that can be queried and changed from many threads.<p>
+ *
+ * Changes (addVertex(), setEdge(), delEdge(), doTraversal() and setMark(),
+ * which write the mark record) take the write lock of a read-write lock,
+ * queries take its read lock, so any number of queries run in parallel
+ * between changes. Queries run on the compact snapshot with pooled search
+ * state (see QueryContext), and the snapshot and its components
+ * are built once per change, by the first query that needs them.<p>
+ *
+ * edges() returns a copy of the list of the vertex, and cursor() a cursor
+ * over the current snapshot, so neither is affected by later changes.*/
+public class ConcurrentDirectedWeightedGraph<V> extends
+		DirectedWeightedGraph<V, IntegerWeightEdge<V>> {
+
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**Distances from one vertex to every other, computed on one snapshot*/
+	public static class SourceDistances<V> {
+		protected final CompactGraph<V> graph;
+		protected final int[] distances;
+
+		protected SourceDistances(CompactGraph<V> graph, int[] distances) {
+			this.graph = graph;
+			this.distances = distances;
+		}
+
+		/**@return the length of the shortest path to destination, as
+		 * shortestPath(), Integer.MAX_VALUE if there is none
+		 * @throws GraphException if destination was not in the graph*/
+		public int distance(V destination) throws GraphException {
+			int id = graph.id(destination);
+			if(id < 0)
+				throw new GraphException("No such vertex");
+			return distances[id];
+		}
+	}
+
+	@Override
+	public void Init(int capacity) {
+		//called by the superclass constructor, before the lock exists
+		if(lock == null) {
+			super.Init(capacity);
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			super.Init(capacity);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void addVertex(V vertex) {
+		lock.writeLock().lock();
+		try {
+			super.addVertex(vertex);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void setEdge(V start, V destination, int cost)
+			throws GraphException {
+		lock.writeLock().lock();
+		try {
+			super.setEdge(start, destination, cost);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void delEdge(V v, V w) throws GraphException {
+		lock.writeLock().lock();
+		try {
+			super.delEdge(v, w);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void doTraversal(V start) {
+		lock.writeLock().lock();
+		try {
+			super.doTraversal(start);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void setMark(V v, int val) {
+		lock.writeLock().lock();
+		try {
+			super.setMark(v, val);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int getMark(V v) {
+		lock.readLock().lock();
+		try {
+			return super.getMark(v);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**Builds the snapshot at most once per change, however many queries ask
+	 * for it at the same time. The read lock is taken before the monitor, as
+	 * by the queries that call it*/
+	@Override
+	public CompactGraph<V> compact() {
+		lock.readLock().lock();
+		try {
+			synchronized(this) {
+				return super.compact();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public StronglyConnectedComponents components() {
+		lock.readLock().lock();
+		try {
+			synchronized(this) {
+				return super.components();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**Reads the index under the monitor it is built under*/
+	@Override
+	protected synchronized boolean indexed() {
+		return super.indexed();
+	}
+
+	@Override
+	public synchronized void setVertexOrdering(
+			VertexOrdering.Strategy ordering) {
+		super.setVertexOrdering(ordering);
+	}
+
+	@Override
+	public int costNeighbour(V start, V destination) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.costNeighbour(start, destination);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int cost(V[] path) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.cost(path);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int pathsTo(V start, V destination, int limit, Conditions c,
+			QueryBudget budget) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.pathsTo(start, destination, limit, c, budget);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public PathCountEstimate estimatePathsTo(V start, V destination,
+			int limit, Conditions c, double error, double confidence,
+			QueryBudget budget) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.estimatePathsTo(start, destination, limit, c, error,
+					confidence, budget);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int[] costAll(Iterable<V[]> paths) {
+		lock.readLock().lock();
+		try {
+			return super.costAll(paths);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean canReach(V start, V destination) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.canReach(start, destination);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int[] shortestPaths(V start, int delta) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.shortestPaths(start, delta);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**@return the shortest paths from start to every vertex, computed in
+	 * parallel on the current snapshot (see shortestPaths())
+	 * @throws GraphException if start does not exist*/
+	public SourceDistances<V> distancesFrom(V start) throws GraphException {
+		lock.readLock().lock();
+		try {
+			CompactGraph<V> graph = compact();
+			return new SourceDistances<V>(graph, super.shortestPaths(start,
+					DeltaStepping.defaultDelta(graph)));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	protected int dijkstraShortestPath(V start, V destination,
+			QueryBudget budget) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.dijkstraShortestPath(start, destination, budget);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<V> shortestRoute(V start, V destination)
+			throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.shortestRoute(start, destination);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public ParetoPath<V> constrainedShortestPath(V start, V destination,
+			LabelSetting.Resource<V> resource, int limit, QueryBudget budget)
+			throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.constrainedShortestPath(start, destination, resource,
+					limit, budget);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<ParetoPath<V>> paretoFront(V start, V destination,
+			LabelSetting.Resource<V> resource, int limit, QueryBudget budget)
+			throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.paretoFront(start, destination, resource, limit,
+					budget);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public List<IntegerWeightEdge<V>> edges(V vertex) {
+		lock.readLock().lock();
+		try {
+			List<IntegerWeightEdge<V>> edges = super.edges(vertex);
+			return edges == null ? null 
+					: new ArrayList<IntegerWeightEdge<V>>(edges);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public EdgeCursor<V> cursor() {
+		return compact().cursor();
+	}
+
+	@Override
+	public IntegerWeightEdge<V> first(V v) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.first(v);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public IntegerWeightEdge<V> next(V v, V w) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.next(v, w);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<V> withinHops(V start, int hops) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.withinHops(start, hops);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public VertexOrdering.Report getLocalityReport() {
+		lock.readLock().lock();
+		try {
+			//the report is written along with the snapshot, under the monitor
+			synchronized(this) {
+				return super.getLocalityReport();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int vertexCount() {
+		lock.readLock().lock();
+		try {
+			return super.vertexCount();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int edgeCount() {
+		lock.readLock().lock();
+		try {
+			return super.edgeCount();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isEdge(V v, V w) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.isEdge(v, w);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int weight(V v, V w) throws GraphException {
+		lock.readLock().lock();
+		try {
+			return super.weight(v, w);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
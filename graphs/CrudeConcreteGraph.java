@@ -3,6 +3,7 @@ package uk.ac.ucl.ucabter.graphs;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 
 /*First iteration, implements Dijkstra's algorithm to determine shortest path
@@ -102,5 +103,19 @@ public class CrudeConcreteGraph {
 		//startingVertex to destination vertex:
 		return distances[destinationVertex];
 	}
+	
+	/**All-pairs alternative to shortestPath(), for dense graphs queried many 
+	 * times: computes every distance once (blocked Floyd-Warshall over the 
+	 * edges matrix) and answers each pair in constant time afterwards. The 
+	 * matrix does not follow later calls to setEdge()*/
+	public DistanceMatrix allPairsShortestPaths() {
+		return new DistanceMatrix(edges);
+	}
+	
+	/**As allPairsShortestPaths(), updating independent tiles in parallel on 
+	 * the common fork-join pool*/
+	public DistanceMatrix parallelAllPairsShortestPaths() {
+		return new DistanceMatrix(edges, ForkJoinPool.commonPool());
+	}
 
 }
@@ -0,0 +1,215 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**Parallel single-source shortest paths over a CompactGraph, using the
+ * delta-stepping algorithm described in:
+ * U. Meyer, P. Sanders, 2003, <em>Delta-stepping: a parallelizable shortest
+ * path algorithm</em>, Journal of Algorithms 49.<p>
+ *
+ * Tentative distances are kept in buckets of width delta. The vertices of the
+ * lowest non-empty bucket are settled together: their light edges (weight at
+ * most delta) are relaxed in parallel until the bucket stops refilling, then
+ * their heavy edges are relaxed in parallel once. A small delta approaches
+ * Dijkstra's algorithm (little parallelism, no wasted work), a large one
+ * approaches Bellman-Ford (lots of parallelism, repeated relaxations).<p>
+ *
+ * Like DirectedWeightedGraph.shortestPath(), weights are assumed not to be
+ * negative and distances to be less than Integer.MAX_VALUE.*/
+public class DeltaStepping {
+
+	/**Number of vertices below which a relaxation task stops splitting*/
+	public static final int GRAIN = 256;
+
+	protected final CompactGraph<?> graph;
+	protected final int delta;
+	protected final ForkJoinPool pool;
+
+	/**Constructs an instance with a delta equal to the average edge weight,
+	 * running on the common pool*/
+	public DeltaStepping(CompactGraph<?> graph) {
+		this(graph, defaultDelta(graph), ForkJoinPool.commonPool());
+	}
+
+	public DeltaStepping(CompactGraph<?> graph, int delta, ForkJoinPool pool) {
+		if(delta <= 0)
+			throw new IllegalArgumentException("delta must be positive");
+		this.graph = graph;
+		this.delta = delta;
+		this.pool = pool;
+	}
+
+	/**@return the average edge weight of the graph, at least 1*/
+	public static int defaultDelta(CompactGraph<?> graph) {
+		long total = 0;
+		for(int e = 0; e < graph.edgeCount(); e++)
+			total += graph.weights[e];
+		return (int) Math.max(1, total / Math.max(1, graph.edgeCount()));
+	}
+
+	/**@return the length of the shortest path from source to each vertex
+	 * (indexed by id), 0 for the source itself and Integer.MAX_VALUE for the
+	 * vertices that cannot be reached*/
+	public int[] distances(int source) {
+		int n = graph.vertexCount();
+		AtomicIntegerArray distances = new AtomicIntegerArray(n);
+		for(int v = 0; v < n; v++)
+			distances.set(v, Integer.MAX_VALUE);
+
+		//distance at which each vertex was last relaxed, to skip duplicates
+		//and stale bucket entries
+		int[] relaxed = new int[n];
+		Arrays.fill(relaxed, -1);
+
+		//pending distances are never more than the heaviest edge past the
+		//current bucket, so the buckets can be reused cyclically
+		int maxWeight = 0;
+		for(int e = 0; e < graph.edgeCount(); e++)
+			maxWeight = Math.max(maxWeight, graph.weights[e]);
+		IntStack[] buckets = new IntStack[maxWeight / delta + 2];
+		for(int b = 0; b < buckets.length; b++)
+			buckets[b] = new IntStack(16);
+
+		distances.set(source, 0);
+		buckets[0].push(source);
+		int pending = 1;
+		IntStack settled = new IntStack(64);
+
+		for(long current = 0; pending > 0; current++) {
+			IntStack bucket = buckets[(int) (current % buckets.length)];
+			if(bucket.isEmpty())
+				continue;
+			settled.clear();
+
+			//light edges, until the bucket stops refilling
+			while(!bucket.isEmpty()) {
+				pending -= bucket.size();
+				int[] frontier = select(bucket, distances, relaxed, current);
+				for(int v : frontier)
+					settled.push(v);
+				pending += relax(frontier, frontier.length, distances, buckets,
+						true);
+			}
+
+			//heavy edges, once
+			pending += relax(settled.items, settled.size(), distances, buckets,
+					false);
+		}
+
+		int[] result = new int[n];
+		for(int v = 0; v < n; v++)
+			result[v] = distances.get(v);
+		return result;
+	}
+
+	/**Empties the bucket, returning the vertices in it that still belong to
+	 * it and have not yet been relaxed at their current distance*/
+	protected int[] select(IntStack bucket, AtomicIntegerArray distances,
+			int[] relaxed, long current) {
+		IntStack selected = new IntStack(bucket.size());
+		while(!bucket.isEmpty()) {
+			int v = bucket.pop();
+			int distance = distances.get(v);
+			if(distance / delta != current || relaxed[v] == distance)
+				continue;
+			relaxed[v] = distance;
+			selected.push(v);
+		}
+		return Arrays.copyOf(selected.items, selected.size());
+	}
+
+	/**Relaxes the light (or heavy) edges of the first size vertices of
+	 * frontier in parallel, filing improved vertices in their bucket
+	 * @return the number of vertices added to the buckets*/
+	protected int relax(int[] frontier, int size, AtomicIntegerArray distances,
+			IntStack[] buckets, boolean light) {
+		Relaxation task = new Relaxation(frontier, 0, size, distances, light);
+		if(size <= GRAIN)
+			task.compute();
+		else
+			pool.invoke(task);
+
+		//file the improved vertices sequentially
+		int added = 0;
+		for(Relaxation leaf = task; leaf != null; leaf = leaf.nextLeaf) {
+			IntStack improved = leaf.improved;
+			while(improved != null && !improved.isEmpty()) {
+				int t = improved.pop();
+				buckets[(distances.get(t) / delta) % buckets.length].push(t);
+				++added;
+			}
+		}
+		return added;
+	}
+
+	/**Relaxation of a range of the frontier. Leaves collect the vertices whose
+	 * distance they improved, and are chained through nextLeaf*/
+	protected class Relaxation extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final int[] frontier;
+		protected final int from;
+		protected final int to;
+		protected final AtomicIntegerArray distances;
+		protected final boolean light;
+		protected IntStack improved;
+		protected Relaxation nextLeaf;
+
+		protected Relaxation(int[] frontier, int from, int to,
+				AtomicIntegerArray distances, boolean light) {
+			this.frontier = frontier;
+			this.from = from;
+			this.to = to;
+			this.distances = distances;
+			this.light = light;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > GRAIN) {
+				int middle = (from + to) >>> 1;
+				Relaxation left = new Relaxation(frontier, from, middle,
+						distances, light);
+				Relaxation right = new Relaxation(frontier, middle, to,
+						distances, light);
+				invokeAll(left, right);
+				//chain the leaves of both halves after this task
+				nextLeaf = left;
+				Relaxation last = left;
+				while(last.nextLeaf != null)
+					last = last.nextLeaf;
+				last.nextLeaf = right;
+				return;
+			}
+
+			improved = new IntStack(16);
+			int[] offsets = graph.offsets;
+			int[] targets = graph.targets;
+			int[] weights = graph.weights;
+			for(int i = from; i < to; i++) {
+				int v = frontier[i];
+				int base = distances.get(v);
+				for(int e = offsets[v]; e < offsets[v + 1]; e++) {
+					int weight = weights[e];
+					if((weight <= delta) != light)
+						continue;
+					int t = targets[e];
+					int candidate = base + weight;
+					//lower the distance of t to candidate, unless another
+					//thread got it lower already
+					int current = distances.get(t);
+					while(candidate < current) {
+						if(distances.compareAndSet(t, current, candidate)) {
+							improved.push(t);
+							break;
+						}
+						current = distances.get(t);
+					}
+				}
+			}
+		}
+	}
+}
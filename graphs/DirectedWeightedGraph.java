@@ -1,6 +1,8 @@
 package uk.ac.ucl.ucabter.graphs;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**Concrete implementation of an adjacency-list based, weighted directed 
  * graph<p>
@@ -27,7 +29,7 @@ import java.util.*;
  * sparse (as opposed to dense) see Shaffer, page 373-376. For an example of 
  * an adjacency matrix implementation, please refer to Shaffer, page 379.<p>
  * 
- * The current implementation uses HashMap, HashSet and LinkedList, but could 
+ * The current implementation uses HashMap, HashSet and ArrayList, but could 
  * in principle be extended to delegate to other classes implementing the 
  * Map, Set and List interface respectively.<p>
  * 
@@ -45,6 +47,30 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 	protected Map<V, List<E>> vertices;
 	/**Record of visited vertices (used in traversal and shortest path)*/
 	protected Set<V> mark;
+	/**Dense id of each vertex, assigned in order of insertion and never 
+	 * reassigned*/
+	protected Map<V, Integer> ids;
+	/**Vertices by id*/
+	protected List<V> labels;
+	/**Bit set backed mark record, reused by every traversal*/
+	protected VertexMarks<V> marks;
+	/**Number of structural changes made to the graph, used to tell when the 
+	 * compact snapshot is out of date*/
+	protected int modCount;
+	/**Most recent compact snapshot, see compact()*/
+	private CompactGraph<V> compact;
+	/**Ordering applied to snapshots, null to keep insertion order*/
+	private VertexOrdering.Strategy ordering;
+	/**Locality measured when the last snapshot was reordered*/
+	private VertexOrdering.Report localityReport;
+	private int compactModCount;
+	/**Strongly connected components of the most recent snapshot, see 
+	 * components()*/
+	private StronglyConnectedComponents components;
+	/**Query instrumentation, null (disabled) by default*/
+	protected volatile GraphMetrics metrics;
+	/**Traversal engine reused by doTraversal()*/
+	private Traversal traversal;
 	
 	/**Constructs a default instance with an initial capacity of 10 that 
 	 * increases automatically*/
@@ -62,17 +88,29 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 	 * interfaces*/
 	private void InitHashMap(int capacity) {
 		vertices = new HashMap<V, List<E>>(capacity);
-		mark = new HashSet<V>(capacity);
+		ids = new HashMap<V, Integer>(capacity);
+		labels = new ArrayList<V>(capacity);
+		marks = new VertexMarks<V>(ids, labels);
+		mark = marks;
+		compact = null;
+		components = null;
+		traversal = null;
+		++modCount;
 	}
 		
 	/**Adds a new vertex to the graph*/
 	public void addVertex(V vertex) {
-		addVertexLinkedList(vertex);
+		addVertexArrayList(vertex);
 	}
 	
 	/**method delegated to by addVertex()*/
-	private void addVertexLinkedList(V vertex) {
-		vertices.put(vertex, new LinkedList<E>());
+	private void addVertexArrayList(V vertex) {
+		vertices.put(vertex, new ArrayList<E>(4));
+		if(!ids.containsKey(vertex)) {
+			ids.put(vertex, labels.size());
+			labels.add(vertex);
+		}
+		++modCount;
 	}
 	
 	/**Returns a list of all vertices reachable from this vertex*/
@@ -87,22 +125,73 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 	@Override
 	public int costNeighbour(V start, V destination) 
 			throws GraphException {
-		int result = 0;
-		boolean found = false;
-		Iterator<E> edgePointer = vertices.get(start).iterator();
+		List<E> edges = vertices.get(start);
+		if(edges == null)
+			throw new GraphException("No such vertex");
 		
-		//destination must be in list of vertices reachable from the start
-		while(edgePointer.hasNext()) {
-			IntegerWeightEdge<V> current = edgePointer.next();
-			if(current.terminal == destination) {
-				result = current.weight;
-				found = true;
+		//destination must be in list of vertices reachable from the start,
+		//indexed access avoids allocating an iterator
+		for(int i = 0; i < edges.size(); i++) {
+			IntegerWeightEdge<V> current = edges.get(i);
+			if(current.terminal == destination)
+				return current.weight;
+		}
+		
+		throw new GraphException("no such destination vertex");
+	}
+	
+	/**@return a new cursor over the edges of the graph, to be reset to a 
+	 * vertex before use and reused for as many walks as needed*/
+	public EdgeCursor<V> cursor() {
+		return new ListEdgeCursor();
+	}
+	
+	/**Cursor over the edge lists of the graph. Edges are accessed by index, 
+	 * which is constant time on the ArrayLists used for storage*/
+	protected class ListEdgeCursor implements EdgeCursor<V> {
+		protected List<E> edges;
+		protected int position;
+		protected E current;
+		
+		@Override
+		public void reset(V v) throws GraphException {
+			List<E> edges = vertices.get(v);
+			if(edges == null)
+				throw new GraphException("No such vertex");
+			this.edges = edges;
+			position = -1;
+		}
+		
+		/**Positions the cursor before the first edge of the argument list*/
+		protected void reset(List<E> edges) {
+			this.edges = edges;
+			position = -1;
+		}
+		
+		@Override
+		public boolean advance() {
+			if(++position < edges.size()) {
+				current = edges.get(position);
+				return true;
 			}
+			current = null;
+			return false;
 		}
 		
-		if(!found)
-			throw new GraphException("no such destination vertex");
-		return result;	
+		@Override
+		public V target() {
+			return current.terminal;
+		}
+		
+		@Override
+		public int weight() {
+			return current.weight;
+		}
+		
+		/**@return the current edge*/
+		protected E edge() {
+			return current;
+		}
 	}
 		
 	/* (non-Javadoc)
@@ -112,37 +201,174 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 	public int cost(V[] path) throws GraphException {
 		if(path.length <= 1)
 			throw new GraphException("path too short");
+		GraphMetrics metrics = this.metrics;
+		long begin = metrics == null ? 0 : System.nanoTime();
 		
 		int accumulator = 0;
 		for(int i = 0; i < (path.length - 1); i++) 
 			accumulator += costNeighbour(path[i], path[i+1]);
 		
+		if(metrics != null)
+			metrics.recordCost(System.nanoTime() - begin, path.length - 1);
 		return accumulator;
 	}
 	
-	/**Visits the graph depth-first from currentVertex parameter, returns a 
-	 * record of vertices visited as a map from vertices labes to true boolean
-	 * objects */
-	private void dfTraverse(V currentVertex, 
-			Set<V> visited) {
-		
-		//visit action
-		visited.add(currentVertex);
-		
-		Iterator<E> edgePointer = vertices.get(currentVertex).iterator();
-		while(edgePointer.hasNext()) {
-			IntegerWeightEdge<V> current = edgePointer.next();
-			if(!visited.contains(current.terminal))
-				dfTraverse(current.terminal, visited);
+	/**@return the cost of each path of the flat encoding, in ids of 
+	 * compact(), computed in parallel, PathCosts.NO_PATH for the paths that 
+	 * cannot be costed (see PathCosts)*/
+	public int[] costAll(int[] vertexIds, int[] pathOffsets) {
+		return new PathCosts(compact()).costAll(vertexIds, pathOffsets);
+	}
+	
+	/**@return the cost of each of the paths, in iteration order, as cost() 
+	 * would compute it, but PathCosts.NO_PATH in place of an exception for 
+	 * the paths that cannot be costed. The paths are translated to the flat
+	 * encoding of costAll(int[], int[]) first, then costed in parallel*/
+	public int[] costAll(Iterable<V[]> paths) {
+		CompactGraph<V> graph = compact();
+		IntStack ids = new IntStack(1024);
+		IntStack offsets = new IntStack(256);
+		offsets.push(0);
+		for(V[] path : paths) {
+			for(V vertex : path)
+				ids.push(graph.id(vertex));
+			offsets.push(ids.size());
 		}
-		
+		return new PathCosts(graph).costAll(ids.items, 
+				Arrays.copyOf(offsets.items, offsets.size()));
+	}
+	
+	/**@return a compact (CSR) snapshot of the current state of the graph.<p>
+	 * 
+	 * The snapshot is cached and only rebuilt after the graph has been 
+	 * changed through addVertex(), setEdge() or delEdge(); changes made 
+	 * directly to the lists returned by edges() are not tracked.*/
+	public CompactGraph<V> compact() {
+		if(compact == null || compactModCount != modCount) {
+			CompactGraph<V> graph = new CompactGraph<V>(this);
+			if(ordering != null) {
+				double before = VertexOrdering.logGapCost(graph);
+				graph = graph.reorder(VertexOrdering.order(graph, ordering));
+				localityReport = new VertexOrdering.Report(ordering, before, 
+						VertexOrdering.logGapCost(graph));
+			}
+			compact = graph;
+			compactModCount = modCount;
+		}
+		return compact;
+	}
+
+	/**@return a compressed, read-only copy of the current state of the
+	 * graph, with the vertex ids of compact(); set a vertex ordering first
+	 * (see setVertexOrdering()) for the best compression*/
+	public CompressedGraph<V> compress() {
+		return new CompressedGraph<V>(compact());
+	}
+
+	/**Sets the ordering used to relabel the vertices of the snapshots built
+	 * by compact(), to improve their memory locality, or null to number them
+	 * in order of insertion (the default). The vertices themselves, and 
+	 * every method taking or returning them, are unaffected; only the ids of
+	 * the snapshot change*/
+	public void setVertexOrdering(VertexOrdering.Strategy ordering) {
+		this.ordering = ordering;
+		compact = null;
+		localityReport = null;
+	}
+	
+	/**@return the locality of the current snapshot before and after it was
+	 * reordered, null if no ordering is set*/
+	public VertexOrdering.Report getLocalityReport() {
+		compact();
+		return localityReport;
+	}
+	
+	/**@return the strongly connected components and condensation index of
+	 * the current snapshot, rebuilt along with it*/
+	public StronglyConnectedComponents components() {
+		CompactGraph<V> graph = compact();
+		if(components == null || components.graph != graph)
+			components = new StronglyConnectedComponents(graph);
+		return components;
+	}
+	
+	/**@return true if the snapshot and its components are up to date, so
+	 * that canReach() answers without rebuilding them. Queries only use the
+	 * index when this holds: after a change, they do without it rather than 
+	 * pay for Tarjan's algorithm and the closure on the first query*/
+	protected boolean indexed() {
+		return compact != null && compactModCount == modCount 
+				&& components != null && components.graph == compact;
+	}
+	
+	/**@return true if there is a path of at least one edge from start to 
+	 * destination (a cycle when they are the same vertex). Answered from the
+	 * condensation index, see StronglyConnectedComponents
+	 * @throws GraphException if start,destination do not exist*/
+	public boolean canReach(V start, V destination) throws GraphException {
+		CompactGraph<V> graph = compact();
+		int from = graph.id(start);
+		int to = graph.id(destination);
+		if(from < 0 || to < 0)
+			throw new GraphException("No such vertex");
+		return components().reaches(from, to);
 	}
 	
-	/**Traverses the graph from the argument starting vertex*/
+	/**@return the traversal engine, bound to the current snapshot*/
+	protected Traversal traversal() {
+		CompactGraph<V> graph = compact();
+		if(traversal == null)
+			traversal = new Traversal(graph);
+		else if(traversal.graph() != graph)
+			traversal.reset(graph);
+		return traversal;
+	}
+	
+	/**Traverses the graph from the argument starting vertex, marking every
+	 * vertex reached (see getMark()). The traversal is depth-first, iterative
+	 * and reuses its buffers between calls, so it does not allocate once they
+	 * have grown to the size of the graph. ParallelBreadthFirstSearch is not
+	 * used here: it allocates its state and sweeps every bitmap word at each
+	 * level, which deep graphs (e.g. long chains) make quadratic*/
 	public void doTraversal(V start) {
+		CompactGraph<V> graph = compact();
+		int id = graph.id(start);
+		
 		//initialize mark record, record of visited vertices
-		mark = new HashSet<V>(vertices.size() + 1, 1.0f);
-		dfTraverse(start, mark);
+		marks.clear();
+		mark = marks;
+		if(id < 0)
+			return;
+		Traversal engine = traversal();
+		engine.depthFirst(id, null);
+		marks.load(engine.marks(), graph);
+	}
+	
+	/**@return the number of hops (edges) on the shortest route from start to
+	 * every vertex, indexed by the vertex ids of compact(), -1 for vertices 
+	 * that cannot be reached. Computed with a parallel breadth-first search
+	 * @throws GraphException if start does not exist*/
+	public int[] hopDistances(V start) throws GraphException {
+		CompactGraph<V> graph = compact();
+		int id = graph.id(start);
+		if(id < 0)
+			throw new GraphException("No such vertex");
+		return new ParallelBreadthFirstSearch(graph).hops(id);
+	}
+	
+	/**@return the set of vertices that can be reached from start in at most
+	 * hops edges, start included. Computed with a parallel breadth-first 
+	 * search
+	 * @throws GraphException if start does not exist*/
+	public Set<V> withinHops(V start, int hops) throws GraphException {
+		CompactGraph<V> graph = compact();
+		int id = graph.id(start);
+		if(id < 0)
+			throw new GraphException("No such vertex");
+		VertexMarks<V> result = graph.marks();
+		result.load(new ParallelBreadthFirstSearch(graph).reachable(id, hops), 
+				graph);
+		return result;
 	}
 
 	/* (non-Javadoc)
@@ -151,128 +377,248 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 	@Override
 	public int pathsTo(V start, V destination, int limit, 
 			Conditions c) throws GraphException {
+		return pathsTo(start, destination, limit, c, null);
+	}
+	
+	/**As pathsTo(V, V, int, Conditions), within the given budget (unlimited
+	 * if null)
+	 * @throws QueryBudgetExceededException if the budget runs out, with the 
+	 * number of paths counted until then*/
+	public int pathsTo(V start, V destination, int limit, Conditions c, 
+			QueryBudget budget) throws GraphException {
 		if(vertices.get(start) == null || vertices.get(destination) == null)
 			throw new GraphException("No such vertex");
 		
+		GraphMetrics metrics = this.metrics;
+		long begin = metrics == null ? 0 : System.nanoTime();
+		
+		//no need to search when destination cannot be reached at all, 
+		//otherwise only vertices that can still lead to destination are
+		//explored. Without an up to date index, they are found by a search 
+		//backwards from destination, rather than by building the index
+		CompactGraph<V> graph = compact();
+		int to = graph.id(destination);
+		BitSet leading = new BitSet(graph.vertexCount());
+		if(indexed())
+			components().reaching(to, leading);
+		else
+			graph.reaching(to, leading);
+		if(!leading.get(graph.id(start)))
+			return 0;
+		VertexMarks<V> reaching = graph.marks();
+		reaching.load(leading, graph);
+		PathsToQuery<V> query = new PathsToQuery<V>(this, reaching, budget);
+		
+		int result;
 		switch(c) {
 		case LESSTHAN:
-			return pathsToLessThan(start, destination, limit - 1);
+			result = pathsToLessThan(start, destination, limit - 1, query);
+			break;
 		case EXACT:
-			return pathsToExact(start, destination, limit - 1);
+			result = pathsToExact(start, destination, limit - 1, query);
+			break;
 		case COST_LESSTHAN:
-			return pathsToLessThanCost(start, destination, limit - 1); //limit -1?
+			result = pathsToLessThanCost(start, destination, limit - 1, 
+					query); //limit -1?
+			break;
 		default:
-			return 0;
+			result = 0;
+		}
+		
+		if(metrics != null)
+			metrics.recordPathsTo(System.nanoTime() - begin, query.expanded(), 
+					query.maxDepth());
+		if(query.exceeded() != null)
+			throw new QueryBudgetExceededException(query.exceeded(), result);
+		return result;
+	}
+	
+	/**@return an estimate of pathsTo(start, destination, limit, c), with the 
+	 * given relative error at the given confidence, in bounded time however 
+	 * large the limit, see PathCountSampler
+	 * @throws GraphException if either vertex does not exist*/
+	public PathCountEstimate estimatePathsTo(V start, V destination, 
+			int limit, Conditions c, double error, double confidence) 
+			throws GraphException {
+		return estimatePathsTo(start, destination, limit, c, error, 
+				confidence, null);
+	}
+	
+	/**As estimatePathsTo(V, V, int, Conditions, double, double), within the
+	 * given budget: when it runs out, the estimate is returned with the 
+	 * interval reached until then (see PathCountEstimate.isConverged())*/
+	public PathCountEstimate estimatePathsTo(V start, V destination, 
+			int limit, Conditions c, double error, double confidence, 
+			QueryBudget budget) throws GraphException {
+		CompactGraph<V> graph = compact();
+		int from = graph.id(start);
+		int to = graph.id(destination);
+		if(from < 0 || to < 0)
+			throw new GraphException("No such vertex");
+		GraphMetrics metrics = this.metrics;
+		long begin = metrics == null ? 0 : System.nanoTime();
+		PathCountSampler sampler = new PathCountSampler(graph, 
+				ThreadLocalRandom.current());
+		PathCountEstimate estimate = sampler.estimate(from, to, limit, c, 
+				error, confidence, budget);
+		if(metrics != null)
+			metrics.recordPathsTo(System.nanoTime() - begin, sampler.steps(), 
+					sampler.longestWalk());
+		return estimate;
+	}
+	
+	/**@return the cursor of the query for the current recursion depth, 
+	 * positioned before the first edge of start. Cursors come from cursor(),
+	 * so a subclass may supply its own*/
+	private EdgeCursor<V> cursor(PathsToQuery<V> query, V start) {
+		EdgeCursor<V> cursor = query.cursor();
+		try {
+			cursor.reset(start);
+		} catch(GraphException e) {
+			//the recursion only enters vertices of the graph
+			throw new IllegalStateException(e);
 		}
+		return cursor;
+	}
+	
+	/**Unpruned form of pathsToLessThan(V, V, int, PathsToQuery)*/
+	protected int pathsToLessThan(V start, V destination, int limit) {
+		return pathsToLessThan(start, destination, limit, 
+				new PathsToQuery<V>(this, null));
+	}
+	
+	/**Unpruned form of pathsToExact(V, V, int, PathsToQuery)*/
+	protected int pathsToExact(V start, V destination, int limit) {
+		return pathsToExact(start, destination, limit, 
+				new PathsToQuery<V>(this, null));
+	}
+	
+	/**Unpruned form of pathsToLessThanCost(V, V, int, PathsToQuery)*/
+	protected int pathsToLessThanCost(V start, V destination, int limit) {
+		return pathsToLessThanCost(start, destination, limit, 
+				new PathsToQuery<V>(this, null));
 	}
 	
 	/**Computes recursively all available paths from start to destination that 
 	 * take less than or exactly the limit parameter number of junctures. 
-	 * Further conditions may be added as other delegates*/
-	protected int pathsToLessThan(V start, V destination, int limit) {
-		//each recursion step uses its own local accumulator
+	 * Further conditions may be added as other delegates. Recursion is 
+	 * limited to the vertices admitted by the query*/
+	protected int pathsToLessThan(V start, V destination, int limit, 
+			PathsToQuery<V> query) {
+		query.enter();
+		//each recursion step uses its own local accumulator and cursor
 		int accumulator = 0;
+		EdgeCursor<V> edge = cursor(query, start);
 
 		//iterate through available edges from current node
-		for(IntegerWeightEdge<V> edge : edges(start)) {
+		while(edge.advance()) {
 			
-			//stop if no of junctures is strictly larger than limit
-			if(limit < 0)
+			//stop if no of junctures is strictly larger than limit, or the
+			//query is out of budget
+			if(limit < 0 || query.stopped())
 				break;
+			++query.expanded;
 			
 			//increase path No accumulator if destination is reached
-			if(edge.terminal == destination) 
+			if(edge.target() == destination) 
 				++accumulator;
 			
 			//recurse over next available non-terminal edge
-			else if(!edges(edge.terminal).isEmpty())
-				accumulator += 
-				pathsToLessThan(edge.terminal, destination, limit - 1);
+			else if(!vertices.get(edge.target()).isEmpty() 
+					&& query.admits(edge.target()))
+				accumulator += pathsToLessThan(edge.target(), destination, 
+						limit - 1, query);
 		}
 
+		query.exit();
 		return accumulator;
 	}
 	
 	/**Computes recursively all available paths from start vertex to destination
 	 * that exactly match the limit on the number of junctures taken.
-	 * Further conditions may be added as other delegates*/
-	protected int pathsToExact(V start, V destination, int limit) {
-		//each recursion step uses its own local accumulator
+	 * Further conditions may be added as other delegates. Recursion is 
+	 * limited to the vertices admitted by the query*/
+	protected int pathsToExact(V start, V destination, int limit, 
+			PathsToQuery<V> query) {
+		query.enter();
+		//each recursion step uses its own local accumulator and cursor
 		int accumulator = 0;
+		EdgeCursor<V> edge = cursor(query, start);
 		
 		//iterate through available edges from current node
-		for(IntegerWeightEdge<V> edge : edges(start)) {
+		while(edge.advance()) {
 			
-			//stop if no of junctures is strictly larger than limit
-			if(limit < 0)
+			//stop if no of junctures is strictly larger than limit, or the
+			//query is out of budget
+			if(limit < 0 || query.stopped())
 				break;
+			++query.expanded;
 			
 			//increase path No accumulator if destination is reached AND No of
 			//junctures matches condition
-			if(limit == 0 && edge.terminal == destination) 
+			if(limit == 0 && edge.target() == destination) 
 				++accumulator;
 			
 			//recurse over next available non-terminal edge
-			else if(!edges(edge.terminal).isEmpty())
-				accumulator += 
-				pathsToExact(edge.terminal, destination, limit - 1);
+			else if(!vertices.get(edge.target()).isEmpty() 
+					&& query.admits(edge.target()))
+				accumulator += pathsToExact(edge.target(), destination, 
+						limit - 1, query);
 		}
 		
+		query.exit();
 		return accumulator;
 	}
 	
 	/**Computes the number of paths available from the start node to the 
 	 * destination node such that they cost strictly less than the limit 
-	 * parameter in terms of path length/cost/weight*/
-	protected int pathsToLessThanCost(V start, V destination, int limit) {
-		//each recursion step uses its own local accumulator, accumulator 
-		//stores No of discovered routes meeting the condition on the limit
+	 * parameter in terms of path length/cost/weight. Recursion is limited to 
+	 * the vertices admitted by the query*/
+	protected int pathsToLessThanCost(V start, V destination, int limit, 
+			PathsToQuery<V> query) {
+		query.enter();
+		//each recursion step uses its own local accumulator and cursor, 
+		//accumulator stores No of discovered routes meeting the condition on
+		//the limit
 		int accumulator = 0;
+		EdgeCursor<V> edge = cursor(query, start);
 
 		//iterate through available edges from current node
-		for(IntegerWeightEdge<V> edge : edges(start)) {
+		while(edge.advance()) {
 
-			//stop if cost is strictly larger than limit
-			if(limit < 0)
+			//stop if cost is strictly larger than limit, or the query is out
+			//of budget
+			if(limit < 0 || query.stopped())
 				break;
+			++query.expanded;
 
 			//increase cost accumulator if destination is reached, limit must 
-			//also be checked as final step may be too costly to count. Using
-			//costNeighbour may cause an exception, but should not occur since 
-			//at this stage is known that destination is a terminal in at least
-			//one edge from the current start vertex
-			try {
-				if(edge.terminal == destination) {
-					if(!(limit - costNeighbour(start, destination) < 0))
-						++accumulator;
-						//skip to next iteration if current edge to destination
-						//is too costly
-					else
-						continue;
-				}
-
-				//recurse over next available non-terminal edge, since loops are
-				//allowed, the recursion is not an alternative, but something to
-				//always do whenever possible, until limit is reached!
-				//removing the "else" in the same section of the other methods
-				//such as pathsToLessThan() and pathsToExact() does not break
-				//the unit tests
-				if(!edges(edge.terminal).isEmpty())
-					accumulator += 
-					pathsToLessThanCost(edge.terminal, destination, 
-							limit - costNeighbour(start, edge.terminal));
-			} catch (GraphException e) {
-				//costNeighbour will throw an exception if the relevant edge 
-				//has been deleted between the time that the current recursion 
-				//and iteration over the edges steps began 
-				//should not occur unless edges are deleted concurrently while
-				//the present method is in progress
-				throw new ConcurrentModificationException("Edge deleted from "
-						+ this.getClass().getName() + " graph during global "
-								+ "graph instance state read");
+			//also be checked as final step may be too costly to count. The 
+			//cursor carries the weight of the current edge, so there is no 
+			//need to look it up again with costNeighbour
+			if(edge.target() == destination) {
+				if(!(limit - edge.weight() < 0))
+					++accumulator;
+					//skip to next iteration if current edge to destination
+					//is too costly
+				else
+					continue;
 			}
+
+			//recurse over next available non-terminal edge, since loops are
+			//allowed, the recursion is not an alternative, but something to
+			//always do whenever possible, until limit is reached!
+			//removing the "else" in the same section of the other methods
+			//such as pathsToLessThan() and pathsToExact() does not break
+			//the unit tests
+			if(!vertices.get(edge.target()).isEmpty() 
+					&& query.admits(edge.target()))
+				accumulator += 
+				pathsToLessThanCost(edge.target(), destination, 
+						limit - edge.weight(), query);
 		}
 
+		query.exit();
 		return accumulator;
 	}
 	/* (non-Javadoc)
@@ -282,87 +628,218 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 	public int shortestPath(V start, V destination) 
 			throws GraphException {
 		
-		return dijkstraShortestPath(start, destination);
+		return dijkstraShortestPath(start, destination, null);
 	}
 	
-	/**Implementation of Dijkstra's algorithm based on Map to Lists graph 
-	 * structure. Delegated to by shortestPath() interface method*/
-	protected int dijkstraShortestPath(V start, V destination)
+	/**As shortestPath(V, V), within the given budget (unlimited if null)
+	 * @throws QueryBudgetExceededException if the budget runs out, with the
+	 * length of the shortest path to destination found until then*/
+	public int shortestPath(V start, V destination, QueryBudget budget) 
+			throws GraphException {
+		return dijkstraShortestPath(start, destination, budget);
+	}
+	
+	/**@return the vertices of a shortest path from start to destination, 
+	 * both included (start twice for the shortest cycle through it)
+	 * @throws GraphException if either vertex does not exist or there is no 
+	 * path between them*/
+	public List<V> shortestRoute(V start, V destination) 
 			throws GraphException {
 		if(vertices.get(start) == null || vertices.get(destination) == null)
 			throw new GraphException("No such vertex");
-		
-		//reserve memory to store distances from start to each vertex, and to
-		//keep track of which vertices have already been explored/exhausted/
-		//visited
-		mark = new HashSet<V>(vertices.size() + 1, 1.0f);
-		Set<V> verticesSet = vertices.keySet();
-		
-		//initialize record of all distances
-		//setting the initial capacity to 1 more than the size of the vertex map
-		//setting load factor to 100% in order to ensure the hashmap will never
-		//be rehashed while it exists 
-		// see https://docs.oracle.com/javase/8/docs/api/java/util/HashMap.html
-		HashMap<V, Integer> distances = 
-				new HashMap<V, Integer>(vertices.size() + 1, 1.0f);
-		
-		//Stage 1: initialize all distances based on immediate accessiblity 
-		//from start (i.e. from weight of edge between start and vertex, 
-		//if any)
-		
-		//Initialize all distances to positive infinity
-		for(V vertex : verticesSet) 
-			distances.put(vertex, Integer.MAX_VALUE);
-		//then compute actual distances from starting vertex to immediately
-		//accessible vertices
-		for(IntegerWeightEdge<V> edge : vertices.get(start)) {
-			int cost = costNeighbour(start, edge.terminal);
-			distances.put(edge.terminal, cost);
+		if(indexed() && !canReach(start, destination))
+			throw new GraphException("No such path");
+		CompactGraph<V> graph = compact();
+		int from = graph.id(start);
+		int to = graph.id(destination);
+		QueryContext context = QueryContext.acquire(graph.vertexCount());
+		try {
+			dijkstra(graph, from, to, null, context);
+			LinkedList<V> route = new LinkedList<V>();
+			route.addFirst(graph.label(to));
+			for(int v = context.predecessor(to); v != from; 
+					v = context.predecessor(v))
+				route.addFirst(graph.label(v));
+			route.addFirst(graph.label(from));
+			return route;
+		} finally {
+			context.release();
 		}
+	}
+
+	/**@return a cheapest path from start to destination of at most maxHops
+	 * edges, see LabelSetting
+	 * @throws GraphException if either vertex does not exist or there is no
+	 * such path*/
+	public ParetoPath<V> constrainedShortestPath(V start, V destination,
+			int maxHops) throws GraphException {
+		return constrainedShortestPath(start, destination, null, maxHops,
+				null);
+	}
+
+	/**@return a cheapest path from start to destination consuming at most
+	 * limit of the resource (of edges if the resource is null), within the
+	 * given budget (unlimited if null), see LabelSetting
+	 * @throws QueryBudgetExceededException if the budget runs out
+	 * @throws GraphException if either vertex does not exist or there is no
+	 * such path*/
+	public ParetoPath<V> constrainedShortestPath(V start, V destination,
+			LabelSetting.Resource<V> resource, int limit, QueryBudget budget)
+			throws GraphException {
+		CompactGraph<V> graph = compact();
+		int from = graph.id(start);
+		int to = graph.id(destination);
+		if(from < 0 || to < 0)
+			throw new GraphException("No such vertex");
+		GraphMetrics metrics = this.metrics;
+		long begin = metrics == null ? 0 : System.nanoTime();
+		LabelSetting<V> search = LabelSetting.acquire(graph, resource);
+		try {
+			ParetoPath<V> path = search.shortestPath(from, to, limit, budget);
+			if(path == null)
+				throw new GraphException("No such path");
+			return path;
+		} finally {
+			if(metrics != null)
+				metrics.recordShortestPath(System.nanoTime() - begin,
+						search.settled(), search.expanded());
+			search.release();
+		}
+	}
+
+	/**@return the Pareto front of the paths from start to destination by
+	 * cost and resource (edges if the resource is null): by increasing cost,
+	 * each path uses strictly less of the resource than the previous one;
+	 * empty if there is no path, see LabelSetting
+	 * @throws GraphException if either vertex does not exist*/
+	public List<ParetoPath<V>> paretoFront(V start, V destination,
+			LabelSetting.Resource<V> resource) throws GraphException {
+		return paretoFront(start, destination, resource, Integer.MAX_VALUE,
+				null);
+	}
+
+	/**As paretoFront(V, V, LabelSetting.Resource), limited to the paths
+	 * consuming at most limit, within the given budget (unlimited if null)
+	 * @throws QueryBudgetExceededException if the budget runs out*/
+	public List<ParetoPath<V>> paretoFront(V start, V destination,
+			LabelSetting.Resource<V> resource, int limit, QueryBudget budget)
+			throws GraphException {
+		CompactGraph<V> graph = compact();
+		int from = graph.id(start);
+		int to = graph.id(destination);
+		if(from < 0 || to < 0)
+			throw new GraphException("No such vertex");
+		GraphMetrics metrics = this.metrics;
+		long begin = metrics == null ? 0 : System.nanoTime();
+		LabelSetting<V> search = LabelSetting.acquire(graph, resource);
+		try {
+			return search.paretoFront(from, to, limit, budget);
+		} finally {
+			if(metrics != null)
+				metrics.recordShortestPath(System.nanoTime() - begin,
+						search.settled(), search.expanded());
+			search.release();
+		}
+	}
+
+	/**Implementation of Dijkstra's algorithm, with a binary heap over the 
+	 * snapshot. Delegated to by shortestPath() interface method. The state 
+	 * of the search is held by a pooled QueryContext, so 
+	 * queries do not allocate per vertex, do not touch the mark record and 
+	 * may run concurrently*/
+	protected int dijkstraShortestPath(V start, V destination, 
+			QueryBudget budget) throws GraphException {
+		if(vertices.get(start) == null || vertices.get(destination) == null)
+			throw new GraphException("No such vertex");
 		
-		mark.add(start);
-		V vertexPointer = start;
-		
-		//outer loop for stages 2 and 3
-		for(int i = 0; i < vertices.size(); i++) {
-			//set minimum distance variable to positive infinity
-			int min = Integer.MAX_VALUE; 
-			
-			//Stage 2: determine next vertex closest to starting vertex 
-			//(shortest path from startingVertex), from the current vertex 
-			//pointer
-			for(V vertex : verticesSet) {
-				int distanceRecord = distances.get(vertex);
-				//if the vertex has not been visited, 
-				if(!mark.contains(vertex) && distanceRecord < min) {
-					vertexPointer = vertex;//update pointer
-					min = distanceRecord;//update smallest distance record for
-					//target
-				}
-			}
-			
-			//mark current vertex as visited
-			mark.add(vertexPointer);
-			
-			//Stage 3: update distances if element is reachable from current
-			//vertex pointer and path from current vertex pointer to element is
-			//shorter than recorded distance between start and element
-			//That is, if there is a shorter path to the pointer element than
-			//the one currently recorded
-			for(IntegerWeightEdge<V> edge : vertices.get(vertexPointer)) {
-				int cost = costNeighbour(vertexPointer, edge.terminal);
-				int costFromStartingVertex = cost + min;
-				if(costFromStartingVertex < distances.get(edge.terminal))
-					distances.put(edge.terminal, costFromStartingVertex);
-			}
-			
+		//reject impossible queries without searching, if the index is up to
+		//date; otherwise the search finds there is no path
+		if(indexed() && !canReach(start, destination))
+			throw new GraphException("No such path");
+		CompactGraph<V> graph = compact();
+		QueryContext context = QueryContext.acquire(graph.vertexCount());
+		try {
+			return dijkstra(graph, graph.id(start), graph.id(destination), 
+					budget, context);
+		} finally {
+			context.release();
 		}
-		int result = distances.get(destination);
+	}
+	
+	/**Dijkstra's algorithm from vertex from to vertex to of the snapshot, 
+	 * leaving distances and predecessors in the context
+	 * @return the length of the shortest path
+	 * @throws QueryBudgetExceededException if the budget (if any) runs out
+	 * @throws GraphException if there is no path*/
+	private int dijkstra(CompactGraph<V> graph, int from, int to, 
+			QueryBudget budget, QueryContext context) throws GraphException {
+		GraphMetrics metrics = this.metrics;
+		long begin = metrics == null ? 0 : System.nanoTime();
+		int result = context.search(from, 0, to, graph, budget);
+		if(metrics != null)
+			metrics.recordShortestPath(System.nanoTime() - begin, 
+					context.settled(), context.relaxed());
+		if(context.exceeded() != null)
+			throw new QueryBudgetExceededException(context.exceeded(), result);
 		if(result == Integer.MAX_VALUE)
 			throw new GraphException("No such path");
 		return result;
 	}
 
+	/**@return the length of the shortest path from start to every vertex, 
+	 * indexed by the vertex ids of compact(): entry v equals 
+	 * shortestPath(start, v), or Integer.MAX_VALUE when there is no such path
+	 * (the entry of start itself is the shortest cycle through it). Computed
+	 * in parallel with delta-stepping and the default delta
+	 * @throws GraphException if start does not exist*/
+	public int[] shortestPaths(V start) throws GraphException {
+		CompactGraph<V> graph = compact();
+		return shortestPaths(start, DeltaStepping.defaultDelta(graph));
+	}
+	
+	/**As shortestPaths(V), with the given delta (bucket width, see 
+	 * DeltaStepping)
+	 * @throws GraphException if start does not exist*/
+	public int[] shortestPaths(V start, int delta) throws GraphException {
+		CompactGraph<V> graph = compact();
+		int id = graph.id(start);
+		if(id < 0)
+			throw new GraphException("No such vertex");
+		int[] distances = new DeltaStepping(graph, delta, 
+				ForkJoinPool.commonPool()).distances(id);
+		
+		//like shortestPath(), a path from start to itself must go around a 
+		//cycle
+		graph.transpose();
+		int cycle = Integer.MAX_VALUE;
+		for(int e = graph.inOffsets[id]; e < graph.inOffsets[id + 1]; e++) {
+			int from = distances[graph.sources[e]];
+			if(from != Integer.MAX_VALUE)
+				cycle = Math.min(cycle, from + weightOf(graph, graph.sources[e], id));
+		}
+		distances[id] = cycle;
+		return distances;
+	}
+	
+	/**@return the weight of the edge v, w of the snapshot (rows are sorted by
+	 * target, so the edge is found by binary search)*/
+	private static int weightOf(CompactGraph<?> graph, int v, int w) {
+		int e = Arrays.binarySearch(graph.targets, graph.firstEdge(v), 
+				graph.endEdge(v), w);
+		return graph.weights[e];
+	}
+	
+	/**Attaches query instrumentation to the graph, or detaches it when the
+	 * argument is null (the default)*/
+	public void setMetrics(GraphMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**@return the attached query instrumentation, null if disabled*/
+	public GraphMetrics getMetrics() {
+		return metrics;
+	}
+	
 	//WeightedGraph interface
 	
 	@Override
@@ -396,23 +873,33 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 		if(edges == null || vertices.get(w) == null)
 			throw new GraphException("No such vertex");
 		
-		E result = null;
-		for(int i = 0; i < edges.size(); i++){
-			if(edges.get(i).getTerminal() == w) {
-				if(i < edges.size())
-					result = edges.get(i + 1);
-				else
-					throw new GraphException("No more vertices accessible after"
-							+ w);
-			}
+		//each call has to find w again, walking all the neighbours this way 
+		//takes quadratic time, cursor() does it in linear time
+		ListEdgeCursor edge = new ListEdgeCursor();
+		edge.reset(edges);
+		while(edge.advance()) {
+			if(edge.target() == w)
+				return edge.advance() ? edge.edge() : null;
 		}
 		
-		return result;
+		return null;
 	}
 
 	@Override
 	public void setEdge(V start, V destination, int cost) 
 			throws GraphException{
+		@SuppressWarnings("unchecked")
+		//should be safe as long as E extends WeightedEdge
+		E edge = (E) new IntegerWeightEdge<V>(destination, cost);
+		addEdge(start, edge);
+	}
+	
+	/**Adds the edge to the edges leaving start, delegated to by setEdge(), 
+	 * subclasses with their own kind of edge add them through this method
+	 * @throws GraphException if either vertex is not in the graph, or there
+	 * already is an edge between them*/
+	protected void addEdge(V start, E edge) throws GraphException {
+		V destination = edge.getTerminal();
 		
 		//destination vertex must exist in graph
 		if(vertices.get(start) == null || vertices.get(destination) == null) 
@@ -429,11 +916,8 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 				GraphException("edge already exists between vertices");
 		}
 		
-		
-		@SuppressWarnings("unchecked")
-		//should be safe as long as E extends WeightedEdge
-		E edge = (E) new IntegerWeightEdge<V>(destination, cost);
 		edges.add(edge);
+		++modCount;
 	}
 
 	@Override
@@ -446,6 +930,7 @@ implements RoutableGraph<V, E>, WeightedGraph<V, E> {
 		for(int i = 0; i < edges.size(); i++) {
 			if(edges.get(i).getTerminal() == w) {
 				edges.remove(i);
+				++modCount;
 				found = true;
 				break;
 			}
@@ -2,7 +2,18 @@ package uk.ac.ucl.ucabter.graphs;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -171,6 +182,101 @@ public class DirectedWeightedGraphUnitT extends DirectedWeightedGraph {
 		
 	}
 
+	@Test
+	public void testDFTraverseLongChain() throws GraphException {
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> chain = 
+				new DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>>();
+		for(int i = 0; i < 100000; i++)
+			chain.addVertex(i);
+		for(int i = 0; i < 99999; i++)
+			chain.setEdge(i, i + 1, 1);
+		
+		chain.doTraversal(0);
+		assertEquals(100000, chain.mark.size());
+		chain.doTraversal(50000);
+		assertEquals(50000, chain.mark.size());
+		assertEquals(0, chain.getMark(49999));
+		assertEquals(1, chain.getMark(99999));
+	}
+	
+	@Test
+	public void testTraversalOrder() {
+		final CompactGraph<String> graph = acyclicalGraph.compact();
+		Traversal engine = new Traversal(graph);
+		final StringBuilder order = new StringBuilder();
+		final int[] depths = new int[graph.vertexCount()];
+		
+		engine.breadthFirst(graph.id("A"), new VertexVisitor() {
+			public boolean visit(int vertex, int depth) {
+				order.append(graph.label(vertex));
+				depths[vertex] = depth;
+				return true;
+			}
+		});
+		assertEquals("ABCDEF", order.toString());
+		assertEquals(3, depths[graph.id("F")]);
+		
+		order.setLength(0);
+		assertEquals(6, engine.depthFirst(graph.id("A"), new VertexVisitor() {
+			public boolean visit(int vertex, int depth) {
+				order.append(graph.label(vertex));
+				return true;
+			}
+		}));
+		assertEquals("ABCEFD", order.toString());
+		
+		assertTrue(engine.reaches(graph.id("B"), graph.id("F")));
+		assertFalse(engine.reaches(graph.id("F"), graph.id("A")));
+	}
+	
+	@Test
+	public void testWithinHops() throws GraphException {
+		Set<String> near = acyclicalGraph.withinHops("A", 1);
+		assertEquals(3, near.size());
+		assertTrue(near.contains("B"));
+		assertFalse(near.contains("E"));
+		assertEquals(6, acyclicalGraph.withinHops("A", 3).size());
+		
+		int[] hops = acyclicalGraph.hopDistances("B");
+		CompactGraph<String> graph = acyclicalGraph.compact();
+		assertEquals(0, hops[graph.id("B")]);
+		assertEquals(2, hops[graph.id("F")]);
+		assertEquals(-1, hops[graph.id("A")]);
+	}
+	
+	@Test
+	public void testParallelHopDistances() throws GraphException {
+		final CompactGraph<Integer> graph = randomGraph(5000, 40000, 42).compact();
+		final int[] expected = new int[graph.vertexCount()];
+		Arrays.fill(expected, -1);
+		new Traversal(graph).breadthFirst(0, new VertexVisitor() {
+			public boolean visit(int vertex, int depth) {
+				expected[vertex] = depth;
+				return true;
+			}
+		});
+		assertArrayEquals(expected, new ParallelBreadthFirstSearch(graph).hops(0));
+	}
+	
+	/**@return a graph with random edges between the vertices 0 to n - 1, and
+	 * weights between 1 and 100*/
+	static DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> randomGraph(
+			int n, int m, long seed) throws GraphException {
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> graph = 
+				new DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>>();
+		Random random = new Random(seed);
+		Set<Long> edges = new HashSet<Long>();
+		for(int i = 0; i < n; i++)
+			graph.addVertex(i);
+		for(int i = 0; i < m; i++) {
+			int v = random.nextInt(n);
+			int w = random.nextInt(n);
+			if(edges.add((long) v * n + w))
+				graph.setEdge(v, w, 1 + random.nextInt(100));
+		}
+		return graph;
+	}
+	
 	@Test
 	public void testPathsToLessThan() throws GraphException {
 		assertEquals(5, acyclicalGraph.pathsTo("A", "F", 10, Conditions.LESSTHAN));
@@ -197,6 +303,32 @@ public class DirectedWeightedGraphUnitT extends DirectedWeightedGraph {
 		
 		assertEquals(9, generalGraph.shortestPath("A", "C"));
 		assertEquals(9, generalGraph.shortestPath("B", "B"));
+		assertEquals(5, generalGraph.shortestPath("A", "D"));
+		assertEquals(7, generalGraph.shortestPath("A", "E"));
+	}
+	
+	@Test
+	public void testShortestPaths() throws GraphException {
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> graph = 
+				randomGraph(300, 1500, 7);
+		CompactGraph<Integer> compact = graph.compact();
+		for(int source = 0; source < 3; source++) {
+			int[] distances = graph.shortestPaths(source);
+			for(int v = 0; v < compact.vertexCount(); v++) {
+				int expected;
+				try {
+					expected = graph.shortestPath(source, compact.label(v));
+				} catch(GraphException e) {
+					expected = Integer.MAX_VALUE;
+				}
+				assertEquals(expected, distances[v]);
+			}
+		}
+		
+		//the choice of delta must not change the result
+		graph = randomGraph(20000, 100000, 11);
+		assertArrayEquals(graph.shortestPaths(0, 1), 
+				graph.shortestPaths(0, 1000));
 	}
 	
 	@Test(expected=GraphException.class)
@@ -205,6 +337,1178 @@ public class DirectedWeightedGraphUnitT extends DirectedWeightedGraph {
 		assertNotEquals(Integer.MAX_VALUE, acyclicalGraph.shortestPath("F", "A"));
 	}
 	
+	@Test
+	public void testComponents() throws GraphException {
+		StronglyConnectedComponents components = generalGraph.components();
+		CompactGraph<String> graph = generalGraph.compact();
+		//B, C, D, E form a single component
+		assertEquals(2, components.componentCount());
+		assertEquals(components.component(graph.id("B")), 
+				components.component(graph.id("D")));
+		assertFalse(components.isCyclic(components.component(graph.id("A"))));
+		
+		assertTrue(generalGraph.canReach("A", "E"));
+		assertTrue(generalGraph.canReach("C", "C"));
+		assertFalse(generalGraph.canReach("A", "A"));
+		assertFalse(generalGraph.canReach("E", "A"));
+		assertTrue(acyclicalGraph.canReach("A", "F"));
+		assertFalse(acyclicalGraph.canReach("C", "D"));
+		
+		//index is rebuilt after changes
+		acyclicalGraph.setEdge("F", "A", 1);
+		assertTrue(acyclicalGraph.canReach("C", "D"));
+		assertEquals(1, acyclicalGraph.components().componentCount());
+	}
+	
+	@Test
+	public void testQueriesWithoutIndex() throws GraphException {
+		assertTrue(generalGraph.canReach("A", "E"));
+		assertTrue(generalGraph.indexed());
+		
+		//queries after a change answer without rebuilding the index
+		generalGraph.setEdge("E", "A", 1);
+		assertFalse(generalGraph.indexed());
+		assertEquals(1, generalGraph.shortestPath("E", "A"));
+		assertTrue(generalGraph.pathsTo("E", "A", 3, Conditions.LESSTHAN) > 0);
+		generalGraph.delEdge("E", "A");
+		assertEquals(0, generalGraph.pathsTo("E", "A", 3, Conditions.LESSTHAN));
+		try {
+			generalGraph.shortestPath("E", "A");
+			fail();
+		} catch(GraphException e) {
+			assertEquals("No such path", e.getMessage());
+		}
+		assertFalse(generalGraph.indexed());
+	}
+	
+	@Test
+	public void testComponentsWithoutClosure() throws GraphException {
+		CompactGraph<Integer> graph = randomGraph(20000, 24000, 3).compact();
+		StronglyConnectedComponents components = 
+				new StronglyConnectedComponents(graph);
+		assertTrue(components.componentCount() > 
+				StronglyConnectedComponents.CLOSURE_LIMIT);
+		
+		Traversal engine = new Traversal(graph);
+		Random random = new Random(5);
+		for(int i = 0; i < 200; i++) {
+			int u = random.nextInt(20000);
+			int v = random.nextInt(20000);
+			if(u != v)
+				assertEquals(engine.reaches(u, v), components.reaches(u, v));
+		}
+	}
+	
+	@Test
+	public void testVertexOrdering() throws GraphException {
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> graph = 
+				randomGraph(2000, 8000, 13);
+		CompactGraph<Integer> natural = graph.compact();
+		int[] expected = graph.shortestPaths(7);
+		int paths = graph.pathsTo(7, 11, 5, Conditions.LESSTHAN);
+		graph.doTraversal(7);
+		Set<Integer> marked = new HashSet<Integer>(graph.mark);
+		
+		for(VertexOrdering.Strategy strategy : VertexOrdering.Strategy.values()) {
+			graph.setVertexOrdering(strategy);
+			CompactGraph<Integer> reordered = graph.compact();
+			assertEquals(natural.edgeCount(), reordered.edgeCount());
+			
+			//same answers, under the new ids
+			int[] distances = graph.shortestPaths(7);
+			for(int v = 0; v < natural.vertexCount(); v++)
+				assertEquals(expected[v], 
+						distances[reordered.id(natural.label(v))]);
+			assertEquals(paths, graph.pathsTo(7, 11, 5, Conditions.LESSTHAN));
+			graph.doTraversal(7);
+			assertEquals(marked, new HashSet<Integer>(graph.mark));
+			assertEquals(strategy, graph.getLocalityReport().strategy);
+		}
+		graph.setVertexOrdering(null);
+		assertNull(graph.getLocalityReport());
+	}
+	
+	@Test
+	public void testOrderingLocality() throws GraphException {
+		//a path whose vertices were inserted in scrambled order
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> path = 
+				new DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>>();
+		List<Integer> scrambled = new ArrayList<Integer>();
+		for(int i = 0; i < 1000; i++)
+			scrambled.add(i);
+		Collections.shuffle(scrambled, new Random(17));
+		for(int i : scrambled)
+			path.addVertex(i);
+		for(int i = 0; i < 999; i++)
+			path.setEdge(i, i + 1, 1);
+		
+		path.setVertexOrdering(VertexOrdering.Strategy.RCM);
+		VertexOrdering.Report report = path.getLocalityReport();
+		assertTrue(report.improvement() > 4);
+		assertEquals(1.0, report.after, 0.0001);
+	}
+	
+	@Test
+	public void testPathsToUnreachable() throws GraphException {
+		assertEquals(0, acyclicalGraph.pathsTo("F", "A", 100, Conditions.LESSTHAN));
+		assertEquals(0, generalGraph.pathsTo("B", "A", 1000, Conditions.COST_LESSTHAN));
+	}
+
+	@Test
+	public void testCompress() throws GraphException {
+		CompressedGraph<String> compressed = generalGraph.compress();
+		assertEquals(5, compressed.vertexCount());
+		assertEquals(9, compressed.edgeCount());
+		assertEquals(7, compressed.costNeighbour("C", "D"));
+		assertEquals(3, compressed.costNeighbour("E", "B"));
+		assertEquals(generalGraph.cost(new String[]{"A", "B", "C", "D"}),
+				compressed.cost(new String[]{"A", "B", "C", "D"}));
+		for(Conditions c : Conditions.values())
+			for(int limit = 1; limit < 30; limit += 7)
+				assertEquals(generalGraph.pathsTo("A", "E", limit, c),
+						compressed.pathsTo("A", "E", limit, c));
+		assertEquals(generalGraph.shortestPath("C", "C"),
+				compressed.shortestPath("C", "C"));
+		assertEquals(acyclicalGraph.shortestPath("A", "F"),
+				acyclicalGraph.compress().shortestPath("A", "F"));
+		try {
+			compressed.costNeighbour("A", "C");
+			fail();
+		} catch(GraphException e) {}
+		try {
+			acyclicalGraph.compress().shortestPath("F", "A");
+			fail();
+		} catch(GraphException e) {}
+	}
+
+	@Test
+	public void testTravelTimeFunction() {
+		//10 minutes at night, 30 at 8am, back to 10 at noon
+		TravelTimeFunction rush = new TravelTimeFunction(TravelTimeFunction.DAY,
+				new int[]{6 * 3600, 8 * 3600, 12 * 3600},
+				new int[]{600, 1800, 600});
+		assertEquals(600, rush.minimum());
+		assertEquals(600, rush.travelTime(3600));
+		assertEquals(1200, rush.travelTime(7 * 3600));
+		assertEquals(1800, rush.travelTime(8 * 3600 + TravelTimeFunction.DAY));
+		assertEquals(1200, rush.travelTime(10 * 3600));
+		assertEquals(rush, new TravelTimeFunction(TravelTimeFunction.DAY,
+				new int[]{6 * 3600, 8 * 3600, 12 * 3600},
+				new int[]{600, 1800, 600}));
+		try {
+			//travel time dropping faster than time passes
+			new TravelTimeFunction(TravelTimeFunction.DAY,
+					new int[]{0, 60}, new int[]{600, 0});
+			fail();
+		} catch(IllegalArgumentException e) {}
+	}
+
+	@Test
+	public void testTimeDependentShortestPath() throws GraphException {
+		TimeDependentGraph<String> graph = new TimeDependentGraph<String>();
+		for(String v : new String[]{"A", "B", "C", "D"})
+			graph.addVertex(v);
+		TravelTimeFunction rush = new TravelTimeFunction(TravelTimeFunction.DAY,
+				new int[]{6 * 3600, 8 * 3600, 12 * 3600},
+				new int[]{600, 3600, 600});
+		//motorway A-B-D, congested in the morning, or side road A-C-D
+		graph.setEdge("A", "B", rush);
+		graph.setEdge("B", "D", new TravelTimeFunction(TravelTimeFunction.DAY,
+				new int[]{6 * 3600, 8 * 3600, 12 * 3600},
+				new int[]{600, 3600, 600}));
+		graph.setEdge("A", "C", 1500);
+		graph.setEdge("C", "D", 1500);
+		graph.setEdge("D", "A", 100);
+		assertEquals(3, graph.profileCount());
+
+		assertEquals(1200, graph.shortestPath("A", "D"));
+		assertEquals(1200, graph.shortestPath("A", "D", 0));
+		assertEquals(3000, graph.shortestPath("A", "D", 8 * 3600));
+		assertEquals(5075, graph.cost(new String[]{"A", "B", "D"}, 7 * 3600));
+		assertEquals(3000, graph.shortestPath("A", "D", 7 * 3600));
+		assertEquals(1300, graph.shortestPath("A", "A", 0));
+		//time-dependent travel times are never below the static lower bound
+		for(int t = 0; t < TravelTimeFunction.DAY; t += 1800)
+			assertTrue(graph.shortestPath("A", "D", t) >= 1200);
+		try {
+			graph.shortestPath("D", "E", 0);
+			fail();
+		} catch(GraphException e) {}
+	}
+
+	@Test
+	public void testQueryBudget() throws GraphException {
+		QueryBudget unlimited = QueryBudget.work(Long.MAX_VALUE, Long.MAX_VALUE);
+		assertEquals(10, generalGraph.shortestPath("A", "B", unlimited)
+				+ generalGraph.shortestPath("A", "D", unlimited));
+		assertEquals(generalGraph.pathsTo("A", "E", 40, Conditions.COST_LESSTHAN),
+				generalGraph.pathsTo("A", "E", 40, Conditions.COST_LESSTHAN,
+						unlimited));
+
+		try {
+			acyclicalGraph.shortestPath("A", "F", QueryBudget.work(1, 100));
+			fail();
+		} catch(QueryBudgetExceededException e) {
+			assertEquals(QueryBudget.Limit.SETTLED, e.getLimit());
+			assertEquals(Integer.MAX_VALUE, e.getPartialResult());
+		}
+		try {
+			generalGraph.pathsTo("A", "E", 1000, Conditions.COST_LESSTHAN,
+					QueryBudget.work(Long.MAX_VALUE, 500));
+			fail();
+		} catch(QueryBudgetExceededException e) {
+			assertEquals(QueryBudget.Limit.EXPANDED, e.getLimit());
+			assertTrue(e.getPartialResult() > 0);
+		}
+
+		//cancelled before it starts, the query stops at its first check
+		QueryBudget cancelled = QueryBudget.timeout(1, TimeUnit.HOURS);
+		cancelled.cancel();
+		try {
+			generalGraph.pathsTo("A", "E", 1000, Conditions.COST_LESSTHAN,
+					cancelled);
+			fail();
+		} catch(QueryBudgetExceededException e) {
+			assertEquals(QueryBudget.Limit.CANCELLED, e.getLimit());
+		}
+
+		//an expired deadline stops the query within CHECK_INTERVAL edges
+		try {
+			generalGraph.pathsTo("A", "E", 1000, Conditions.COST_LESSTHAN,
+					QueryBudget.timeout(0, TimeUnit.NANOSECONDS));
+			fail();
+		} catch(QueryBudgetExceededException e) {
+			assertEquals(QueryBudget.Limit.DEADLINE, e.getLimit());
+		}
+	}
+
+	@Test
+	public void testPartitionedGraph() throws Exception {
+		List<ShardServer> servers = new ArrayList<ShardServer>();
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		try {
+			for(int s = 0; s < 3; s++) {
+				servers.add(ShardServer.start(0));
+				addresses.add(new InetSocketAddress(
+						InetAddress.getLoopbackAddress(),
+						servers.get(s).getPort()));
+			}
+			checkPartitionedGraph(addresses);
+		} finally {
+			for(ShardServer server : servers)
+				server.stop();
+		}
+	}
+
+	private void checkPartitionedGraph(List<InetSocketAddress> addresses)
+			throws Exception {
+		PartitionedGraph<String> partitioned = new PartitionedGraph<String>(
+				generalGraph.compact(), addresses);
+		assertEquals(7, partitioned.costNeighbour("C", "D"));
+		assertEquals(21, partitioned.cost(new String[]{"A", "E", "B", "C", "D"}));
+		String[] names = {"A", "B", "C", "D", "E"};
+		for(String start : names)
+			for(String dest : names) {
+				if(generalGraph.canReach(start, dest))
+					assertEquals(generalGraph.shortestPath(start, dest),
+							partitioned.shortestPath(start, dest));
+				for(Conditions c : Conditions.values())
+					assertEquals(generalGraph.pathsTo(start, dest, 25, c),
+							partitioned.pathsTo(start, dest, 25, c));
+			}
+		try {
+			partitioned.shortestPath("B", "A");
+			fail();
+		} catch(GraphException e) {}
+		partitioned.close();
+
+		//shards serve the next coordinator once the previous one is closed
+		final DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> graph =
+				randomGraph(2000, 8000, 23);
+		graph.setVertexOrdering(VertexOrdering.Strategy.RCM);
+		final PartitionedGraph<Integer> random = new PartitionedGraph<Integer>(
+				graph.compact(), addresses);
+		final int[] expected = graph.shortestPaths(0);
+		final int paths = graph.pathsTo(0, 1, 6, Conditions.EXACT);
+
+		//queries from many threads run at the same time, each over its own
+		//connections
+		Thread[] threads = new Thread[4];
+		final List<Throwable> failures = Collections.synchronizedList(
+				new ArrayList<Throwable>());
+		for(int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for(int v = offset; v < 2000; v += 97)
+							if(expected[graph.compact().id(v)]
+									!= Integer.MAX_VALUE)
+								assertEquals(expected[graph.compact().id(v)],
+										random.shortestPath(0, v));
+						assertEquals(paths, random.pathsTo(0, 1, 6,
+								Conditions.EXACT));
+					} catch(Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+		random.close();
+	}
+
+	@Test
+	public void testPartitionedGraphProcesses() throws Exception {
+		PartitionedGraph<String> partitioned = PartitionedGraph.launch(
+				acyclicalGraph.compact(), 2);
+		assertEquals(2, partitioned.shardCount());
+		assertEquals(acyclicalGraph.shortestPath("A", "F"),
+				partitioned.shortestPath("A", "F"));
+		assertEquals(5, partitioned.pathsTo("A", "F", 10, Conditions.LESSTHAN));
+		
+		//a query holding connections while the graph is closed lets the
+		//shards stop once it gives them back
+		final PartitionedGraph<String> closing = partitioned;
+		ShardClient[] held = partitioned.acquire();
+		Thread close = new Thread() {
+			public void run() {
+				try {
+					closing.close();
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		close.start();
+		while(!partitioned.closed)
+			Thread.sleep(1);
+		close.join(100);
+		assertTrue(close.isAlive());
+		partitioned.release(held, false);
+		close.join();
+		for(Process process : partitioned.processes)
+			assertFalse(process.isAlive());
+		try {
+			partitioned.shortestPath("A", "F");
+			fail();
+		} catch(GraphException e) {
+			assertEquals("Graph closed", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testConcurrentGraph() throws Exception {
+		final ConcurrentDirectedWeightedGraph<Integer> graph =
+				new ConcurrentDirectedWeightedGraph<Integer>();
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> reference =
+				randomGraph(500, 2500, 31);
+		for(int v = 0; v < 500; v++)
+			graph.addVertex(v);
+		for(int v = 0; v < 500; v++)
+			for(IntegerWeightEdge<Integer> edge : reference.edges(v))
+				graph.setEdge(v, edge.getTerminal(), edge.getWeight());
+		final int[] expected = new int[500];
+		for(int v = 0; v < 500; v++)
+			expected[v] = reference.canReach(0, v)
+					? reference.shortestPath(0, v) : -1;
+
+		//queries from many threads, while edges to a new vertex are added
+		graph.addVertex(500);
+		Thread[] threads = new Thread[4];
+		final List<Throwable> failures = Collections.synchronizedList(
+				new ArrayList<Throwable>());
+		for(int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						for(int v = 0; v < 500; v++)
+							if(expected[v] >= 0)
+								assertEquals(expected[v], graph.shortestPath(0, v));
+					} catch(Throwable e) {
+						failures.add(e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(int v = 1; v < 500; v += 10)
+			graph.setEdge(v, 500, 1);
+		for(Thread thread : threads)
+			thread.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(expected[7], graph.distancesFrom(0).distance(7));
+
+		//distances read after the lock is released keep the ids of their
+		//snapshot, whatever vertices are added meanwhile
+		ConcurrentDirectedWeightedGraph.SourceDistances<Integer> distances =
+				graph.distancesFrom(0);
+		graph.addVertex(501);
+		assertEquals(expected[7], distances.distance(7));
+		try {
+			distances.distance(501);
+			fail();
+		} catch(GraphException e) {
+		}
+	}
+
+	@Test
+	public void testQueryContext() throws GraphException {
+		QueryContext context = QueryContext.acquire(4);
+		context.reach(2, 7, 1);
+		context.visit(2);
+		assertEquals(7, context.distance(2));
+		assertEquals(1, context.predecessor(2));
+		assertTrue(context.isVisited(2));
+		//held contexts are not shared with nested searches
+		QueryContext nested = QueryContext.acquire(4);
+		assertNotSame(context, nested);
+		nested.release();
+		context.release();
+
+		//a new search sees nothing of the previous one, and may be larger
+		assertSame(context, QueryContext.acquire(100));
+		assertEquals(Integer.MAX_VALUE, context.distance(2));
+		assertEquals(-1, context.predecessor(2));
+		assertFalse(context.isVisited(2));
+		assertTrue(context.heap().isEmpty());
+		context.reach(99, 1, 0);
+		assertEquals(1, context.distance(99));
+		context.release();
+
+		//the pool is not per thread: a new thread reuses the context
+		final QueryContext[] acquired = new QueryContext[1];
+		Thread thread = new Thread() {
+			public void run() {
+				acquired[0] = QueryContext.acquire(4);
+				acquired[0].release();
+			}
+		};
+		thread.start();
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			throw new AssertionError(e);
+		}
+		assertSame(context, acquired[0]);
+
+		//shortest paths leave the mark record alone
+		acyclicalGraph.doTraversal("D");
+		assertEquals(16, acyclicalGraph.shortestPath("A", "F"));
+		assertEquals(0, acyclicalGraph.getMark("A"));
+		assertEquals(1, acyclicalGraph.getMark("F"));
+		assertEquals(Arrays.asList("A", "B", "D", "F"),
+				acyclicalGraph.shortestRoute("A", "F"));
+		assertEquals(Arrays.asList("B", "C", "E", "B"),
+				generalGraph.shortestRoute("B", "B"));
+		assertEquals(9, generalGraph.cost(new String[]{"B", "C", "E", "B"}));
+		assertEquals(9, generalGraph.shortestPath("B", "B"));
+	}
+
+	@Test
+	public void testCostAll() throws GraphException {
+		List<String[]> paths = new ArrayList<String[]>();
+		paths.add(new String[]{"A", "B", "C"});
+		paths.add(new String[]{"A", "E", "D"});
+		paths.add(new String[]{"A"});
+		paths.add(new String[]{"A", "E", "B", "C", "D"});
+		paths.add(new String[]{"A", "Z"});
+		assertArrayEquals(new int[]{9, PathCosts.NO_PATH, PathCosts.NO_PATH,
+				21, PathCosts.NO_PATH}, generalGraph.costAll(paths));
+
+		//random walks on a large graph, some broken, costed in parallel
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> graph =
+				randomGraph(2000, 12000, 13);
+		CompactGraph<Integer> compact = graph.compact();
+		Random random = new Random(17);
+		int[] ids = new int[200000];
+		int[] offsets = new int[20001];
+		int size = 0;
+		for(int p = 0; p < 20000; p++) {
+			offsets[p] = size;
+			int v = random.nextInt(2000);
+			int length = 1 + random.nextInt(9);
+			ids[size++] = compact.id(v);
+			for(int i = 1; i < length && compact.degree(compact.id(v)) > 0;
+					i++) {
+				List<IntegerWeightEdge<Integer>> edges = graph.edges(v);
+				v = random.nextInt(50) == 0 ? random.nextInt(2000)
+						: edges.get(random.nextInt(edges.size())).getTerminal();
+				ids[size++] = compact.id(v);
+			}
+		}
+		offsets[20000] = size;
+		int[] costs = graph.costAll(ids, offsets);
+		int broken = 0;
+		for(int p = 0; p < 20000; p++) {
+			//cost() compares terminals by identity, which boxed ids above 127
+			//do not share, so the edges are looked up by equality here
+			int expected = offsets[p + 1] - offsets[p] < 2 
+					? PathCosts.NO_PATH : 0;
+			for(int i = offsets[p] + 1; i < offsets[p + 1]; i++) {
+				Integer w = null;
+				for(IntegerWeightEdge<Integer> edge : 
+						graph.edges(compact.label(ids[i - 1])))
+					if(edge.getTerminal().equals(compact.label(ids[i])))
+						w = edge.getWeight();
+				if(w == null) {
+					expected = PathCosts.NO_PATH;
+					break;
+				}
+				expected += w;
+			}
+			if(expected == PathCosts.NO_PATH)
+				++broken;
+			assertEquals(expected, costs[p]);
+		}
+		assertTrue(broken > 0 && broken < 20000);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCostAllOffsets() {
+		generalGraph.costAll(new int[]{0, 1, 2}, new int[]{0, 2, 1});
+	}
+
+	@Test
+	public void testAdaptiveGraph() throws GraphException {
+		String[] vertices = {"A", "B", "C", "D", "E"};
+		//same graph in either form
+		AdaptiveGraph<String> dense = new AdaptiveGraph<String>();
+		AdaptiveGraph<String> sparse = new AdaptiveGraph<String>(2);
+		for(AdaptiveGraph<String> graph : Arrays.asList(dense, sparse)) {
+			for(String v : vertices)
+				graph.addVertex(v);
+			for(String v : vertices)
+				for(IntegerWeightEdge<String> edge : generalGraph.edges(v))
+					graph.setEdge(v, edge.getTerminal(), edge.getWeight());
+			assertEquals(9, graph.edgeCount());
+			assertEquals(21, graph.cost(new String[]{"A", "E", "B", "C", "D"}));
+			assertEquals(3, graph.pathsTo("C", "C", 3, Conditions.LESSTHAN)
+					+ graph.pathsTo("A", "B", 1, Conditions.EXACT));
+			assertEquals(3, graph.degree("A"));
+			assertEquals("D", graph.next("A", graph.first("A").getTerminal())
+					.getTerminal());
+			assertNull(graph.next("A", "E"));
+			assertNull(graph.next("A", "C"));
+			compare(generalGraph, graph, vertices, 4, 30);
+		}
+		assertTrue(dense.isDense());
+		assertFalse(sparse.isDense());
+		assertEquals(1, dense.migrations());
+
+		dense.setMark("C", 3);
+		assertEquals(3, dense.getMark("C"));
+		assertEquals(0, dense.getMark("Z"));
+		try {
+			dense.setEdge("A", "B", 1);
+			fail();
+		} catch(GraphException e) {}
+		try {
+			sparse.weight("A", "C");
+			fail();
+		} catch(GraphException e) {}
+	}
+
+	@Test
+	public void testAdaptiveGraphMigration() throws GraphException {
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> reference =
+				new DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>>();
+		AdaptiveGraph<Integer> graph = new AdaptiveGraph<Integer>(0.2);
+		Integer[] vertices = new Integer[40];
+		for(int v = 0; v < 40; v++) {
+			vertices[v] = v;
+			reference.addVertex(v);
+			graph.addVertex(v);
+		}
+		Random random = new Random(3);
+		List<Integer> edges = new ArrayList<Integer>();
+		for(int i = 0; i < 2400; i++)
+			edges.add(i % 1600);
+		Collections.shuffle(edges, random);
+
+		//densify past the threshold, then thin out below half of it
+		for(int e : new HashSet<Integer>(edges.subList(0, 500))) {
+			int weight = 1 + random.nextInt(9);
+			reference.setEdge(e / 40, e % 40, weight);
+			graph.setEdge(e / 40, e % 40, weight);
+			if(graph.edgeCount() == 200) {
+				assertFalse(graph.isDense());
+				compare(reference, graph, vertices, 4, 12);
+			}
+		}
+		assertTrue(graph.isDense());
+		assertEquals(1, graph.migrations());
+		assertEquals(reference.edgeCount(), graph.edgeCount());
+		compare(reference, graph, vertices, 4, 12);
+
+		int migrations = graph.migrations();
+		while(graph.density() >= 0.1) {
+			int v = random.nextInt(40);
+			IntegerWeightEdge<Integer> edge = reference.first(v);
+			if(edge == null)
+				continue;
+			reference.delEdge(v, edge.getTerminal());
+			graph.delEdge(v, edge.getTerminal());
+			assertTrue(graph.isDense() || graph.density() < 0.1);
+		}
+		assertFalse(graph.isDense());
+		assertEquals(migrations + 1, graph.migrations());
+		compare(reference, graph, vertices, 5, 20);
+
+		int[] histogram = graph.degreeHistogram();
+		int total = 0;
+		for(int count : histogram)
+			total += count;
+		assertEquals(40, total);
+		int top = histogram.length - 1;
+		while(histogram[top] == 0)
+			--top;
+		assertEquals(32 - Integer.numberOfLeadingZeros(graph.maxDegree()), top);
+
+		//growing the vertex set dilutes the graph back to sparse form
+		AdaptiveGraph<Integer> small = new AdaptiveGraph<Integer>(0.5);
+		small.addVertex(0);
+		small.addVertex(1);
+		small.setEdge(0, 1, 2);
+		small.setEdge(1, 0, 3);
+		assertTrue(small.isDense());
+		for(int v = 2; v < 20; v++)
+			small.addVertex(v);
+		assertFalse(small.isDense());
+		assertEquals(5, small.shortestPath(0, 0));
+	}
+
+	/**Checks shortest paths, costs and path counts of the adaptive graph
+	 * against the reference*/
+	private static <V> void compare(
+			DirectedWeightedGraph<V, IntegerWeightEdge<V>> reference,
+			AdaptiveGraph<V> graph, V[] vertices, int hops, int cost)
+					throws GraphException {
+		for(V v : vertices) {
+			for(IntegerWeightEdge<V> edge : reference.edges(v))
+				assertEquals(edge.getWeight(),
+						graph.costNeighbour(v, edge.getTerminal()));
+			assertEquals(reference.edges(v).size(), graph.degree(v));
+			for(V w : vertices) {
+				if(reference.canReach(v, w))
+					assertEquals(reference.shortestPath(v, w),
+							graph.shortestPath(v, w));
+				else
+					try {
+						graph.shortestPath(v, w);
+						fail();
+					} catch(GraphException e) {}
+				if(w.hashCode() % 7 != v.hashCode() % 5)
+					continue;
+				for(Conditions c : Conditions.values())
+					assertEquals(reference.pathsTo(v, w,
+							c == Conditions.COST_LESSTHAN ? cost : hops, c),
+							graph.pathsTo(v, w,
+							c == Conditions.COST_LESSTHAN ? cost : hops, c));
+			}
+		}
+	}
+
+	@Test
+	public void testConstrainedShortestPath() throws GraphException {
+		//cheapest is A, B, C in two hops, A, C is dearer in one
+		generalGraph.setEdge("A", "C", 20);
+		assertEquals(9, generalGraph.constrainedShortestPath("A", "C", 2)
+				.cost());
+		ParetoPath<String> direct =
+				generalGraph.constrainedShortestPath("A", "C", 1);
+		assertEquals(20, direct.cost());
+		assertEquals(Arrays.asList("A", "C"), direct.route());
+		List<ParetoPath<String>> front =
+				generalGraph.paretoFront("A", "C", null);
+		assertEquals(2, front.size());
+		assertEquals(Arrays.asList("A", "B", "C"), front.get(0).route());
+		assertEquals(2, front.get(0).resource());
+		assertEquals(1, front.get(1).resource());
+
+		assertEquals(16, acyclicalGraph.constrainedShortestPath("A", "F", 3)
+				.cost());
+		try {
+			acyclicalGraph.constrainedShortestPath("A", "F", 2);
+			fail();
+		} catch(GraphException e) {}
+		assertTrue(acyclicalGraph.paretoFront("F", "A", null).isEmpty());
+		//a path from a vertex to itself is a cycle
+		assertEquals(Arrays.asList("B", "C", "E", "B"),
+				generalGraph.constrainedShortestPath("B", "B", 3).route());
+	}
+
+	@Test
+	public void testParetoFront() throws GraphException {
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> graph =
+				randomGraph(60, 300, 11);
+		LabelSetting.Resource<Integer> resource =
+				new LabelSetting.Resource<Integer>() {
+			public int consumption(Integer v, Integer w, int weight) {
+				return (v * 7 + w) % 5 + 1;
+			}
+		};
+		CompactGraph<Integer> compact = graph.compact();
+		int n = compact.vertexCount();
+		int maxResource = 5 * n;
+		Random random = new Random(9);
+		for(int query = 0; query < 30; query++) {
+			int from = random.nextInt(n);
+			int to = query == 0 ? from : random.nextInt(n);
+			//cheapest walk of each exact consumption, by dynamic programming
+			int[][] best = new int[maxResource + 1][n];
+			for(int[] row : best)
+				Arrays.fill(row, Integer.MAX_VALUE);
+			best[0][from] = 0;
+			for(int r = 0; r <= maxResource; r++)
+				for(int v = 0; v < n; v++) {
+					if(best[r][v] == Integer.MAX_VALUE)
+						continue;
+					for(int e = compact.firstEdge(v); e < compact.endEdge(v);
+							e++) {
+						int w = compact.target(e);
+						int next = r + resource.consumption(compact.label(v),
+								compact.label(w), compact.weight(e));
+						if(next <= maxResource)
+							best[next][w] = Math.min(best[next][w],
+									best[r][v] + compact.weight(e));
+					}
+				}
+			List<Integer> costs = new ArrayList<Integer>();
+			List<Integer> resources = new ArrayList<Integer>();
+			int cheapest = Integer.MAX_VALUE;
+			for(int r = 1; r <= maxResource; r++)
+				if(best[r][to] < cheapest) {
+					cheapest = best[r][to];
+					costs.add(0, cheapest);
+					resources.add(0, r);
+				}
+
+			List<ParetoPath<Integer>> front = graph.paretoFront(
+					compact.label(from), compact.label(to), resource);
+			assertEquals(costs.size(), front.size());
+			for(int i = 0; i < front.size(); i++) {
+				ParetoPath<Integer> path = front.get(i);
+				assertEquals((int) costs.get(i), path.cost());
+				assertEquals((int) resources.get(i), path.resource());
+				List<Integer> route = path.route();
+				int cost = 0;
+				int consumed = 0;
+				for(int j = 1; j < route.size(); j++) {
+					int v = compact.id(route.get(j - 1));
+					int w = compact.id(route.get(j));
+					int e = Arrays.binarySearch(compact.targets,
+							compact.firstEdge(v), compact.endEdge(v), w);
+					assertTrue(e >= 0);
+					cost += compact.weight(e);
+					consumed += resource.consumption(route.get(j - 1),
+							route.get(j), compact.weight(e));
+				}
+				assertEquals(path.cost(), cost);
+				assertEquals(path.resource(), consumed);
+				//each point of the front is the cheapest within its resource
+				assertEquals(path.cost(), graph.constrainedShortestPath(
+						route.get(0), route.get(route.size() - 1), resource,
+						path.resource(), null).cost());
+			}
+		}
+
+		//the search stops within its budget
+		int far = 0;
+		int farthest = -1;
+		for(int v = 0; v < n; v++)
+			if(graph.canReach(0, v) && graph.shortestPath(0, v) > farthest) {
+				far = v;
+				farthest = graph.shortestPath(0, v);
+			}
+		try {
+			graph.paretoFront(0, far, null, Integer.MAX_VALUE,
+					QueryBudget.work(Long.MAX_VALUE, 10));
+			fail();
+		} catch(QueryBudgetExceededException e) {
+			assertEquals(QueryBudget.Limit.EXPANDED, e.getLimit());
+		}
+
+		//the consumptions of a resource are computed once per snapshot
+		final int[] calls = new int[1];
+		LabelSetting.Resource<Integer> counted =
+				new LabelSetting.Resource<Integer>() {
+			public int consumption(Integer v, Integer w, int weight) {
+				++calls[0];
+				return 1;
+			}
+		};
+		List<ParetoPath<Integer>> hops = graph.paretoFront(0, far, null);
+		List<ParetoPath<Integer>> counts = graph.paretoFront(0, far, counted);
+		assertEquals(hops.size(), counts.size());
+		for(int i = 0; i < hops.size(); i++) {
+			assertEquals(hops.get(i).cost(), counts.get(i).cost());
+			assertEquals(hops.get(i).resource(), counts.get(i).resource());
+		}
+		graph.constrainedShortestPath(0, far, counted, n, null);
+		assertEquals(compact.edgeCount(), calls[0]);
+	}
+
+	@Test
+	public void testLoadTest() throws Exception {
+		ConcurrentDirectedWeightedGraph<String> graph =
+				new ConcurrentDirectedWeightedGraph<String>();
+		String[] vertices = {"A", "B", "C", "D", "E"};
+		for(String v : vertices)
+			graph.addVertex(v);
+		for(String v : vertices)
+			for(IntegerWeightEdge<String> edge : generalGraph.edges(v))
+				graph.setEdge(v, edge.getTerminal(), edge.getWeight());
+
+		//a saved workload replays to the same requests
+		List<LoadTest.Request<String>> workload = LoadTest.generate(graph, 200,
+				0.2, 3, new Random(4));
+		StringBuilder log = new StringBuilder("# saved workload\n\n");
+		for(LoadTest.Request<String> request : workload)
+			log.append(request).append('\n');
+		List<LoadTest.Request<String>> replayed = LoadTest.replay(graph,
+				QueryServer.STRINGS, new BufferedReader(
+						new StringReader(log.toString())));
+		assertEquals(workload.toString(), replayed.toString());
+		try {
+			LoadTest.replay(graph, QueryServer.STRINGS, new BufferedReader(
+					new StringReader("pathsTo A B three EXACT")));
+			fail();
+		} catch(GraphException e) {}
+
+		//one request due every half millisecond, for 200ms
+		LoadTest.Report report = new LoadTest<String>(graph, replayed).run(
+				2000, 2, 200, TimeUnit.MILLISECONDS);
+		assertEquals(400, report.requests());
+		assertEquals(400, report.latency().count());
+		assertTrue(report.latency(LoadTest.Operation.SET_EDGE).count() > 0);
+		assertTrue(report.throughput() > 0);
+		assertTrue(report.allocatedBytes() != 0);
+		//latencies count from the time requests were due, so never fall
+		//short of the service times
+		for(LoadTest.Operation operation : LoadTest.Operation.values()) {
+			LatencyHistogram latency = report.latency(operation);
+			LatencyHistogram service = report.serviceTime(operation);
+			assertEquals(latency.count(), service.count());
+			assertTrue(latency.percentile(50) >= service.percentile(50));
+			assertTrue(latency.max() >= service.max());
+		}
+		assertTrue(report.toString().contains("p99.9"));
+	}
+
+	@Test
+	public void testEstimatePathsTo() throws GraphException {
+		CompactGraph<String> graph = generalGraph.compact();
+		int[] limits = {8, 8, 60};
+		for(Conditions c : Conditions.values()) {
+			int limit = limits[c.ordinal()];
+			int exact = generalGraph.pathsTo("A", "C", limit, c);
+			//counted by the table
+			assertEquals(exact, generalGraph.estimatePathsTo("A", "C", limit, 
+					c, 0.05, 0.99).estimate(), exact * 1e-12);
+			//sampled, by plain walks and with a partial table
+			for(int rows : new int[]{0, 3}) {
+				PathCountSampler sampler = new PathCountSampler(graph, 
+						new Random(5), rows);
+				PathCountEstimate estimate = sampler.estimate(graph.id("A"),
+						graph.id("C"), limit, c, 0.05, 0.99, null);
+				assertTrue(c + " " + estimate, estimate.isConverged());
+				assertTrue(c + " " + exact + " " + estimate,
+						estimate.lower() <= exact && exact <= estimate.upper());
+			}
+		}
+		assertEquals(0, generalGraph.estimatePathsTo("B", "A", 10,
+				Conditions.LESSTHAN, 0.1, 0.9).estimate(), 0);
+
+		//walks of 600 edges from A to C, counted exactly by dynamic
+		//programming; far beyond the range of long
+		BigInteger[] walks = new BigInteger[graph.vertexCount()];
+		Arrays.fill(walks, BigInteger.ZERO);
+		walks[graph.id("A")] = BigInteger.ONE;
+		for(int step = 0; step < 600; step++) {
+			BigInteger[] next = new BigInteger[walks.length];
+			Arrays.fill(next, BigInteger.ZERO);
+			for(int v = 0; v < walks.length; v++)
+				for(int e = graph.firstEdge(v); e < graph.endEdge(v); e++)
+					next[graph.target(e)] = next[graph.target(e)].add(walks[v]);
+			walks = next;
+		}
+		double logExact = Math.log(walks[graph.id("C")].doubleValue());
+		assertTrue(logExact > Math.log(Long.MAX_VALUE));
+		assertEquals(logExact, generalGraph.estimatePathsTo("A", "C", 600, 
+				Conditions.EXACT, 0.1, 0.99).logEstimate(), 1e-9);
+		PathCountSampler sampler = new PathCountSampler(graph, new Random(5), 
+				40);
+		PathCountEstimate estimate = sampler.estimate(graph.id("A"),
+				graph.id("C"), 600, Conditions.EXACT, 0.01, 0.99, null);
+		assertTrue(estimate.toString(), estimate.isConverged() 
+				&& estimate.logLower() <= logExact 
+				&& logExact <= estimate.logUpper());
+
+		//a budget bounds the time taken
+		estimate = sampler.estimate(graph.id("A"), graph.id("C"), 600,
+				Conditions.EXACT, 1e-9, 0.99, QueryBudget.work(Long.MAX_VALUE,
+						5000));
+		assertFalse(estimate.isConverged());
+		assertTrue(sampler.steps() <= 5000);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testEstimatePathsToConfidence() throws GraphException {
+		generalGraph.estimatePathsTo("A", "C", 5, Conditions.EXACT, 0.1, 1);
+	}
+
+	@Test
+	public void testConcurrentGraphReads() throws GraphException {
+		ConcurrentDirectedWeightedGraph<String> graph =
+				new ConcurrentDirectedWeightedGraph<String>();
+		for(String v : new String[]{"A", "B", "C"})
+			graph.addVertex(v);
+		graph.setEdge("A", "B", 1);
+		graph.setEdge("B", "C", 2);
+		List<IntegerWeightEdge<String>> edges = graph.edges("A");
+		EdgeCursor<String> cursor = graph.cursor();
+		cursor.reset("A");
+		Set<String> reached = graph.withinHops("A", 2);
+		
+		//changes after the reads leave their results as they were
+		graph.addVertex("D");
+		graph.setEdge("A", "D", 3);
+		assertEquals(1, edges.size());
+		assertTrue(cursor.advance());
+		assertEquals("B", cursor.target());
+		assertFalse(cursor.advance());
+		assertEquals(new HashSet<String>(Arrays.asList("A", "B", "C")), reached);
+		assertEquals("B", graph.first("A").getTerminal());
+		assertEquals("D", graph.next("A", "B").getTerminal());
+		assertNull(graph.getLocalityReport());
+	}
+
+	@Test
+	public void testQueryServer() throws Exception {
+		ConcurrentDirectedWeightedGraph<String> graph =
+				new ConcurrentDirectedWeightedGraph<String>();
+		for(String v : new String[]{"A", "B", "C", "D", "E"})
+			graph.addVertex(v);
+		for(String v : new String[]{"A", "B", "C", "D", "E"})
+			for(IntegerWeightEdge<String> edge : generalGraph.edges(v))
+				graph.setEdge(v, edge.getTerminal(), edge.getWeight());
+		QueryServer server = new QueryServer(graph, QueryServer.STRINGS, 0);
+		server.start();
+		try {
+			String base = "http://127.0.0.1:" + server.getPort();
+			assertEquals("{\"distance\": 9}", get(base + "/shortestPath?from=A&to=C"));
+			assertEquals("{\"paths\": " + generalGraph.pathsTo("A", "C", 4,
+					Conditions.EXACT) + "}", get(base
+							+ "/pathsTo?from=A&to=C&limit=4&condition=EXACT"));
+			assertEquals("{\"cost\": 21}", get(base + "/cost?path=A,E,B,C,D"));
+			assertTrue(get(base + "/shortestPath?from=B&to=A").startsWith("404"));
+			assertTrue(get(base + "/pathsTo?from=A&to=C").startsWith("400"));
+			String stats = get(base + "/stats");
+			assertTrue(stats, stats.contains("\"requests\": 5"));
+			assertTrue(stats, stats.contains("\"errors\": 2"));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void testQueryServerCoalescing() throws Exception {
+		//searches and runs wait for the release, so that the requests
+		//overlap in a known order
+		final CountDownLatch searching = new CountDownLatch(1);
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ConcurrentDirectedWeightedGraph<String> graph =
+				new ConcurrentDirectedWeightedGraph<String>() {
+			@Override
+			public int shortestPath(String start, String destination,
+					QueryBudget budget) throws GraphException {
+				searching.countDown();
+				await(release);
+				return super.shortestPath(start, destination, budget);
+			}
+
+			@Override
+			public SourceDistances<String> distancesFrom(String start)
+					throws GraphException {
+				running.countDown();
+				await(release);
+				return super.distancesFrom(start);
+			}
+		};
+		for(String v : new String[]{"A", "B", "C", "D", "E"})
+			graph.addVertex(v);
+		for(String v : new String[]{"A", "B", "C", "D", "E"})
+			for(IntegerWeightEdge<String> edge : generalGraph.edges(v))
+				graph.setEdge(v, edge.getTerminal(), edge.getWeight());
+		final QueryServer server = new QueryServer(graph, QueryServer.STRINGS,
+				0);
+		server.start();
+		try {
+			final String base = "http://127.0.0.1:" + server.getPort()
+					+ "/shortestPath?from=A&to=";
+			final String[] destinations = {"C", "D", "E"};
+			final String[] answers = new String[destinations.length];
+			Thread[] threads = new Thread[destinations.length];
+			for(int i = 0; i < threads.length; i++) {
+				final int request = i;
+				threads[i] = new Thread() {
+					public void run() {
+						try {
+							answers[request] = get(base + destinations[request]);
+						} catch(IOException e) {
+							answers[request] = e.toString();
+						}
+					}
+				};
+			}
+			//the first request searches, the second starts a run as A is
+			//being searched, and waits for it at most its timeout; the run
+			//goes on for the next two, which join it
+			threads[0].start();
+			await(searching);
+			assertTrue(get(base + "B&timeoutMillis=10").startsWith("503"));
+			await(running);
+			threads[1].start();
+			threads[2].start();
+			while(server.coalesced.sum() < 2)
+				Thread.sleep(1);
+			//so does a request joining the run
+			assertTrue(get(base + "B&timeoutMillis=10").startsWith("503"));
+			assertEquals(3, server.coalesced.sum());
+			release.countDown();
+			for(Thread thread : threads)
+				thread.join();
+			for(int i = 0; i < destinations.length; i++)
+				assertEquals("{\"distance\": " + generalGraph.shortestPath("A",
+						destinations[i]) + "}", answers[i]);
+		} finally {
+			release.countDown();
+			server.stop(0);
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+		} catch(InterruptedException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**@return the body of the response, prefixed by the status if not 200*/
+	private static String get(String url) throws IOException {
+		HttpURLConnection connection =
+				(HttpURLConnection) new URL(url).openConnection();
+		int status = connection.getResponseCode();
+		InputStream in = status == 200 ? connection.getInputStream()
+				: connection.getErrorStream();
+		Scanner scanner = new Scanner(in, "UTF-8").useDelimiter("\\A");
+		String body = scanner.hasNext() ? scanner.next() : "";
+		scanner.close();
+		return status == 200 ? body : status + " " + body;
+	}
+
+	@Test
+	public void testCompressRandom() throws GraphException {
+		DirectedWeightedGraph<Integer, IntegerWeightEdge<Integer>> graph =
+				randomGraph(3000, 15000, 21);
+		graph.setVertexOrdering(VertexOrdering.Strategy.RCM);
+		CompactGraph<Integer> compact = graph.compact();
+		CompressedGraph<Integer> compressed = graph.compress();
+		assertTrue(compressed.sizeInBytes() < 4L * (compact.vertexCount() + 1)
+				+ 8L * compact.edgeCount());
+
+		CompressedGraph<Integer>.Cursor cursor = compressed.cursor();
+		for(int v = 0; v < compact.vertexCount(); v++) {
+			cursor.reset(v);
+			assertEquals(compact.degree(v), cursor.degree());
+			for(int e = compact.firstEdge(v); e < compact.endEdge(v); e++) {
+				assertTrue(cursor.advance());
+				assertEquals(compact.target(e), cursor.targetId());
+				assertEquals(compact.weight(e), cursor.weight());
+			}
+			assertFalse(cursor.advance());
+		}
+		Random random = new Random(5);
+		for(int i = 0; i < 20; i++) {
+			int start = random.nextInt(3000);
+			int dest = random.nextInt(3000);
+			if(graph.canReach(start, dest))
+				assertEquals(graph.shortestPath(start, dest),
+						compressed.shortestPath(start, dest));
+		}
+
+		//same graph, built from a stream
+		CompressedGraph.Builder<Integer> builder = new CompressedGraph.Builder<Integer>();
+		for(int v = 0; v < compact.vertexCount(); v++) {
+			int degree = compact.degree(v);
+			int[] targets = new int[degree];
+			int[] weights = new int[degree];
+			for(int i = 0; i < degree; i++) {
+				targets[i] = compact.target(compact.firstEdge(v) + i);
+				weights[i] = compact.weight(compact.firstEdge(v) + i);
+			}
+			builder.addVertex(compact.label(v), targets, weights, degree);
+		}
+		CompressedGraph<Integer> built = builder.build();
+		assertEquals(compressed.sizeInBytes(), built.sizeInBytes());
+		for(int i = 0; i < 20; i++) {
+			int start = random.nextInt(3000);
+			cursor.reset(compressed.id(start));
+			while(cursor.advance())
+				assertEquals(compressed.costNeighbour(start, cursor.target()),
+						built.costNeighbour(start, cursor.target()));
+		}
+	}
+
+	@Test
+	public void testMetrics() throws GraphException {
+		GraphMetrics metrics = new GraphMetrics();
+		final long[] work = new long[GraphMetrics.QueryType.values().length];
+		metrics.addListener(new GraphMetricsListener() {
+			public void queryCompleted(GraphMetrics.QueryType type, long nanos, 
+					long done, int depth) {
+				work[type.ordinal()] += done;
+			}
+		});
+		generalGraph.setMetrics(metrics);
+		
+		generalGraph.shortestPath("A", "C");
+		generalGraph.pathsTo("C", "C", 3, Conditions.LESSTHAN);
+		String[] path = {"A", "B", "C"};
+		generalGraph.cost(path);
+		
+		assertEquals(1, metrics.getShortestPathCount());
+		assertEquals(1, metrics.getPathsToCount());
+		assertEquals(1, metrics.getCostCount());
+		assertEquals(4, metrics.getSettledVertices());
+		assertEquals(4, metrics.getMaxRecursionDepth());
+		assertTrue(metrics.getExpandedEdges() > 0);
+		assertEquals(2, work[GraphMetrics.QueryType.COST.ordinal()]);
+		assertEquals(1, metrics.latency(GraphMetrics.QueryType.COST).count());
+		
+		metrics.reset();
+		generalGraph.setMetrics(null);
+		generalGraph.shortestPath("A", "C");
+		assertEquals(0, metrics.getShortestPathCount());
+	}
+	
+	@Test
+	public void testLatencyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for(long i = 1; i <= 100000; i++)
+			histogram.record(i * 1000);
+		assertEquals(100000, histogram.count());
+		assertEquals(50000000, histogram.percentile(50), 50000000 / 64);
+		assertEquals(99000000, histogram.percentile(99), 99000000 / 64);
+		assertEquals(100000000, histogram.max(), 100000000 / 64);
+	}
+	
 	@Test
 	public void testEdgeCount() {
 		assertEquals(9, acyclicalGraph.edgeCount());
@@ -218,6 +1522,66 @@ public class DirectedWeightedGraphUnitT extends DirectedWeightedGraph {
 	@Test
 	public void testNext() throws GraphException {
 		assertEquals("E", acyclicalGraph.next("B", "C").getTerminal());
+		assertNull(acyclicalGraph.next("B", "D"));
+		assertNull(acyclicalGraph.next("B", "A"));
+	}
+	
+	@Test
+	public void testCursor() throws GraphException {
+		EdgeCursor<String> cursor = acyclicalGraph.cursor();
+		StringBuilder walk = new StringBuilder();
+		int total = 0;
+		cursor.reset("B");
+		while(cursor.advance()) {
+			walk.append(cursor.target());
+			total += cursor.weight();
+		}
+		assertEquals("CED", walk.toString());
+		assertEquals(19, total);
+		
+		cursor.reset("F");
+		assertFalse(cursor.advance());
+	}
+	
+	@Test(expected=GraphException.class)
+	public void testCursorNoSuchVertex() throws GraphException {
+		acyclicalGraph.cursor().reset("Z");
+	}
+
+	@Test
+	public void testCursorOverride() throws GraphException {
+		//pathsTo() walks the edges with the cursors of the subclass
+		final int[] resets = new int[1];
+		DirectedWeightedGraph<String, IntegerWeightEdge<String>> graph =
+				new DirectedWeightedGraph<String, IntegerWeightEdge<String>>() {
+			@Override
+			public EdgeCursor<String> cursor() {
+				final EdgeCursor<String> cursor = super.cursor();
+				return new EdgeCursor<String>() {
+					public void reset(String v) throws GraphException {
+						++resets[0];
+						cursor.reset(v);
+					}
+					public boolean advance() {
+						return cursor.advance();
+					}
+					public String target() {
+						return cursor.target();
+					}
+					public int weight() {
+						return cursor.weight();
+					}
+				};
+			}
+		};
+		for(String v : new String[]{"A", "B", "C", "D", "E"})
+			graph.addVertex(v);
+		for(String v : new String[]{"A", "B", "C", "D", "E"})
+			for(IntegerWeightEdge<String> edge : generalGraph.edges(v))
+				graph.setEdge(v, edge.getTerminal(), edge.getWeight());
+		assertEquals(generalGraph.pathsTo("A", "C", 4, Conditions.EXACT),
+				graph.pathsTo("A", "C", 4, Conditions.EXACT));
+		assertTrue(resets[0] > 0);
 	}
 
 	@Test
@@ -0,0 +1,191 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**All-pairs shortest path distances of a dense graph, computed with a
+ * cache-blocked Floyd-Warshall algorithm, see:
+ * G. Venkataraman, S. Sahni, S. Mukhopadhyaya, 2003, <em>A blocked all-pairs
+ * shortest-paths algorithm</em>, Journal of Experimental Algorithmics 8.<p>
+ *
+ * The matrix is padded to a multiple of BLOCK and stored as a flat int array
+ * of BLOCK x BLOCK tiles, each tile contiguous in memory, so the three tiles
+ * involved in an update fit in the processor cache. Each round k updates the
+ * diagonal tile (k, k), then the other tiles of row and column k, then every
+ * remaining tile; the tiles of the last two phases are independent and can
+ * be updated in parallel on a fork-join pool.<p>
+ *
+ * The min-plus kernel is a plain counted loop over the columns of a tile
+ * (no branches, no bounds that change within the loop), the shape the JIT
+ * compiler turns into SIMD instructions on its own.<p>
+ *
+ * Once built, the distance between any two vertices is read in constant
+ * time.*/
+public class DistanceMatrix {
+
+	/**Side of a tile, in vertices*/
+	public static final int BLOCK = 64;
+	/**Distance of unreachable pairs while computing, small enough that the
+	 * sum of two of them does not overflow*/
+	private static final int INFINITY = Integer.MAX_VALUE / 2;
+
+	protected final int size;
+	/**Number of tiles per row*/
+	protected final int tiles;
+	protected final int[] distances;
+
+	/**Computes the distances of the graph with the argument adjacency
+	 * matrix, where 0 means that there is no edge (as in
+	 * CrudeConcreteGraph), sequentially*/
+	public DistanceMatrix(int[][] weights) {
+		this(weights, null);
+	}
+
+	/**Computes the distances of the graph with the argument adjacency
+	 * matrix, where 0 means that there is no edge (as in
+	 * CrudeConcreteGraph), on the argument pool (sequentially if null)*/
+	public DistanceMatrix(int[][] weights, ForkJoinPool pool) {
+		size = weights.length;
+		tiles = (size + BLOCK - 1) / BLOCK;
+		distances = new int[tiles * tiles * BLOCK * BLOCK];
+
+		//padding vertices have no edges, they do not change any distance
+		Arrays.fill(distances, INFINITY);
+		for(int i = 0; i < size; i++) {
+			for(int j = 0; j < size; j++)
+				if(weights[i][j] != 0)
+					distances[index(i, j)] = weights[i][j];
+			distances[index(i, i)] = 0;
+		}
+
+		for(int k = 0; k < tiles; k++) {
+			//phase 1: diagonal tile
+			update(k, k, k);
+
+			//phase 2: rest of row and column k, which depend on the diagonal
+			List<RecursiveAction> phase = new ArrayList<RecursiveAction>();
+			for(int t = 0; t < tiles; t++) {
+				if(t == k)
+					continue;
+				phase.add(new TileUpdate(k, t, k));
+				phase.add(new TileUpdate(t, k, k));
+			}
+			run(phase, pool);
+
+			//phase 3: all other tiles, which depend on row and column k
+			phase.clear();
+			for(int i = 0; i < tiles; i++)
+				if(i != k)
+					phase.add(new RowUpdate(i, k));
+			run(phase, pool);
+		}
+	}
+
+	private static void run(final List<RecursiveAction> tasks, ForkJoinPool pool) {
+		if(pool == null) {
+			for(RecursiveAction task : tasks)
+				task.invoke();
+			return;
+		}
+		pool.invoke(new RecursiveAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/**@return the position of the distance from i to j in the tiled array*/
+	protected int index(int i, int j) {
+		int tile = (i / BLOCK) * tiles + j / BLOCK;
+		return tile * BLOCK * BLOCK + (i % BLOCK) * BLOCK + j % BLOCK;
+	}
+
+	/**@return the offset of tile (row, column) in the tiled array*/
+	protected int tile(int row, int column) {
+		return (row * tiles + column) * BLOCK * BLOCK;
+	}
+
+	/**Updates tile (i, j) with the paths through the vertices of tile k:
+	 * C = min(C, A + B), in the min-plus sense, where A is tile (i, k) and B
+	 * tile (k, j). The k loop is outermost, so the update is also correct when
+	 * C is A or B (phases 1 and 2)*/
+	protected void update(int i, int j, int k) {
+		int[] d = distances;
+		int c = tile(i, j);
+		int a = tile(i, k);
+		int b = tile(k, j);
+		for(int m = 0; m < BLOCK; m++) {
+			int bRow = b + m * BLOCK;
+			for(int row = 0; row < BLOCK; row++) {
+				int through = d[a + row * BLOCK + m];
+				if(through >= INFINITY)
+					continue;
+				int cRow = c + row * BLOCK;
+				//min-plus kernel
+				for(int col = 0; col < BLOCK; col++)
+					d[cRow + col] = Math.min(d[cRow + col], through + d[bRow + col]);
+			}
+		}
+	}
+
+	/**@return the number of vertices*/
+	public int size() {
+		return size;
+	}
+
+	/**@return the length of the shortest path from i to j, 0 when i equals j,
+	 * Integer.MAX_VALUE if there is no such path*/
+	public int distance(int i, int j) {
+		if(i < 0 || j < 0 || i >= size || j >= size)
+			throw new IndexOutOfBoundsException();
+		int distance = distances[index(i, j)];
+		return distance >= INFINITY ? Integer.MAX_VALUE : distance;
+	}
+
+	/**Phase 2 update of one tile*/
+	protected class TileUpdate extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final int i;
+		protected final int j;
+		protected final int k;
+
+		protected TileUpdate(int i, int j, int k) {
+			this.i = i;
+			this.j = j;
+			this.k = k;
+		}
+
+		@Override
+		protected void compute() {
+			update(i, j, k);
+		}
+	}
+
+	/**Phase 3 update of the tiles of a row, tile (i, k) stays in cache across
+	 * the row*/
+	protected class RowUpdate extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final int i;
+		protected final int k;
+
+		protected RowUpdate(int i, int k) {
+			this.i = i;
+			this.k = k;
+		}
+
+		@Override
+		protected void compute() {
+			for(int j = 0; j < tiles; j++)
+				if(j != k)
+					update(i, j, k);
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DistanceMatrixUnitT {
+	CrudeConcreteGraph graph;
+	int[][] expected;
+	
+	@Before
+	public void constructInstance() {
+		//size is not a multiple of the tile size, to exercise padding
+		int size = 150;
+		Random random = new Random(1);
+		graph = new CrudeConcreteGraph(size);
+		for(int i = 0; i < size; i++)
+			for(int j = 0; j < size; j++)
+				if(i != j && random.nextInt(10) == 0)
+					graph.setEdge(i, j, 1 + random.nextInt(100));
+		
+		//reference, textbook Floyd-Warshall
+		expected = new int[size][size];
+		for(int i = 0; i < size; i++)
+			for(int j = 0; j < size; j++)
+				expected[i][j] = i == j ? 0 : graph.getEdge(i, j) == 0 
+						? Integer.MAX_VALUE : graph.getEdge(i, j);
+		for(int k = 0; k < size; k++)
+			for(int i = 0; i < size; i++)
+				for(int j = 0; j < size; j++)
+					if(expected[i][k] != Integer.MAX_VALUE 
+							&& expected[k][j] != Integer.MAX_VALUE)
+						expected[i][j] = Math.min(expected[i][j], 
+								expected[i][k] + expected[k][j]);
+	}
+	
+	@Test
+	public void testAllPairs() {
+		DistanceMatrix distances = graph.allPairsShortestPaths();
+		assertEquals(150, distances.size());
+		for(int i = 0; i < 150; i++)
+			for(int j = 0; j < 150; j++)
+				assertEquals(expected[i][j], distances.distance(i, j));
+	}
+	
+	@Test
+	public void testParallelAllPairs() {
+		DistanceMatrix distances = new DistanceMatrix(edges(), new ForkJoinPool(4));
+		for(int i = 0; i < 150; i++)
+			for(int j = 0; j < 150; j++)
+				assertEquals(expected[i][j], distances.distance(i, j));
+	}
+	
+	@Test
+	public void testUnreachable() {
+		CrudeConcreteGraph pair = new CrudeConcreteGraph(2);
+		pair.setEdge(0, 1, 3);
+		DistanceMatrix distances = pair.allPairsShortestPaths();
+		assertEquals(3, distances.distance(0, 1));
+		assertEquals(Integer.MAX_VALUE, distances.distance(1, 0));
+	}
+	
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testOutOfBounds() {
+		graph.allPairsShortestPaths().distance(0, 150);
+	}
+	
+	private int[][] edges() {
+		int[][] edges = new int[150][150];
+		for(int i = 0; i < 150; i++)
+			for(int j = 0; j < 150; j++)
+				edges[i][j] = graph.getEdge(i, j);
+		return edges;
+	}
+}
@@ -0,0 +1,31 @@
+package uk.ac.ucl.ucabter.graphs;
+
+/**Reusable cursor over the edges leaving a vertex.<p>
+ * 
+ * Unlike WeightedGraph.first()/next(), which look up the previous neighbour 
+ * again at every step, a cursor remembers its position, so walking all the 
+ * neighbours of a vertex takes time proportional to its degree. A cursor is
+ * reset to a new vertex rather than recreated, and does not allocate while
+ * walking:
+ * <pre>
+ * cursor.reset(v);
+ * while(cursor.advance())
+ *     visit(cursor.target(), cursor.weight());
+ * </pre>
+ * The result of changing the edges of the vertex while a cursor walks them is
+ * undefined.*/
+public interface EdgeCursor<V> {
+	/**Positions the cursor before the first edge leaving v
+	 * @throws GraphException if v does not exist*/
+	void reset(V v) throws GraphException;
+	
+	/**Moves to the next edge
+	 * @return false if there are no more edges*/
+	boolean advance();
+	
+	/**@return the end vertex of the current edge*/
+	V target();
+	
+	/**@return the weight of the current edge*/
+	int weight();
+}
@@ -0,0 +1,213 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**Counters and latency histograms of the queries run on a graph.<p>
+ *
+ * Attach an instance to a graph with DirectedWeightedGraph.setMetrics().
+ * Queries count their work in local variables and report it once, on
+ * completion, so instrumentation costs a few adder updates per query; with no
+ * metrics attached (the default) the graph does not read the clock or
+ * record anything. Counters are LongAdders, which keep per-thread cells
+ * rather than contending on a single value.<p>
+ *
+ * The counters can be read directly, through JMX (see register()), or
+ * observed query by query by GraphMetricsListener instances.*/
+public class GraphMetrics implements GraphMetricsMXBean {
+
+	/**Kind of instrumented query*/
+	public enum QueryType {
+		SHORTEST_PATH,
+		PATHS_TO,
+		COST
+	}
+
+	protected final LongAdder shortestPathCount = new LongAdder();
+	protected final LongAdder pathsToCount = new LongAdder();
+	protected final LongAdder costCount = new LongAdder();
+	protected final LongAdder settledVertices = new LongAdder();
+	protected final LongAdder relaxedEdges = new LongAdder();
+	protected final LongAdder expandedEdges = new LongAdder();
+	protected final LongAccumulator maxRecursionDepth = new LongAccumulator(
+			new LongBinaryOperator() {
+				@Override
+				public long applyAsLong(long left, long right) {
+					return Math.max(left, right);
+				}
+			}, 0);
+	protected final LatencyHistogram shortestPathLatency = new LatencyHistogram();
+	protected final LatencyHistogram pathsToLatency = new LatencyHistogram();
+	protected final LatencyHistogram costLatency = new LatencyHistogram();
+	protected final List<GraphMetricsListener> listeners =
+			new CopyOnWriteArrayList<GraphMetricsListener>();
+
+	public void addListener(GraphMetricsListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(GraphMetricsListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**Records a completed shortest path query*/
+	public void recordShortestPath(long nanos, long settled, long relaxed) {
+		shortestPathCount.increment();
+		settledVertices.add(settled);
+		relaxedEdges.add(relaxed);
+		shortestPathLatency.record(nanos);
+		notify(QueryType.SHORTEST_PATH, nanos, settled, 0);
+	}
+
+	/**Records a completed path counting query*/
+	public void recordPathsTo(long nanos, long expanded, int depth) {
+		pathsToCount.increment();
+		expandedEdges.add(expanded);
+		maxRecursionDepth.accumulate(depth);
+		pathsToLatency.record(nanos);
+		notify(QueryType.PATHS_TO, nanos, expanded, depth);
+	}
+
+	/**Records a completed path costing query*/
+	public void recordCost(long nanos, int hops) {
+		costCount.increment();
+		costLatency.record(nanos);
+		notify(QueryType.COST, nanos, hops, 0);
+	}
+
+	private void notify(QueryType type, long nanos, long work, int depth) {
+		for(GraphMetricsListener listener : listeners)
+			listener.queryCompleted(type, nanos, work, depth);
+	}
+
+	/**@return the latency histogram (in nanoseconds) of a kind of query*/
+	public LatencyHistogram latency(QueryType type) {
+		switch(type) {
+		case SHORTEST_PATH:
+			return shortestPathLatency;
+		case PATHS_TO:
+			return pathsToLatency;
+		default:
+			return costLatency;
+		}
+	}
+
+	/**Registers the instance with the platform MBean server, under the name
+	 * uk.ac.ucl.ucabter.graphs:type=GraphMetrics,name=<em>name</em>
+	 * @return the name registered*/
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(
+				"uk.ac.ucl.ucabter.graphs:type=GraphMetrics,name="
+						+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+	//GraphMetricsMXBean interface
+
+	@Override
+	public long getShortestPathCount() {
+		return shortestPathCount.sum();
+	}
+
+	@Override
+	public long getPathsToCount() {
+		return pathsToCount.sum();
+	}
+
+	@Override
+	public long getCostCount() {
+		return costCount.sum();
+	}
+
+	@Override
+	public long getSettledVertices() {
+		return settledVertices.sum();
+	}
+
+	@Override
+	public long getRelaxedEdges() {
+		return relaxedEdges.sum();
+	}
+
+	@Override
+	public long getExpandedEdges() {
+		return expandedEdges.sum();
+	}
+
+	@Override
+	public long getMaxRecursionDepth() {
+		return maxRecursionDepth.get();
+	}
+
+	@Override
+	public long getShortestPathLatencyP50() {
+		return micros(shortestPathLatency.percentile(50));
+	}
+
+	@Override
+	public long getShortestPathLatencyP99() {
+		return micros(shortestPathLatency.percentile(99));
+	}
+
+	@Override
+	public long getShortestPathLatencyMax() {
+		return micros(shortestPathLatency.max());
+	}
+
+	@Override
+	public long getPathsToLatencyP50() {
+		return micros(pathsToLatency.percentile(50));
+	}
+
+	@Override
+	public long getPathsToLatencyP99() {
+		return micros(pathsToLatency.percentile(99));
+	}
+
+	@Override
+	public long getPathsToLatencyMax() {
+		return micros(pathsToLatency.max());
+	}
+
+	@Override
+	public long getCostLatencyP50() {
+		return micros(costLatency.percentile(50));
+	}
+
+	@Override
+	public long getCostLatencyP99() {
+		return micros(costLatency.percentile(99));
+	}
+
+	@Override
+	public long getCostLatencyMax() {
+		return micros(costLatency.max());
+	}
+
+	@Override
+	public void reset() {
+		shortestPathCount.reset();
+		pathsToCount.reset();
+		costCount.reset();
+		settledVertices.reset();
+		relaxedEdges.reset();
+		expandedEdges.reset();
+		maxRecursionDepth.reset();
+		shortestPathLatency.reset();
+		pathsToLatency.reset();
+		costLatency.reset();
+	}
+}
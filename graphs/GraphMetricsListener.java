@@ -0,0 +1,16 @@
+package uk.ac.ucl.ucabter.graphs;
+
+/**Listener notified by GraphMetrics after every instrumented query, e.g. to 
+ * log pathological queries.<p>
+ * 
+ * Called on the thread that ran the query, implementations should return
+ * quickly.*/
+public interface GraphMetricsListener {
+	/**@param type the kind of query
+	 * @param nanos the latency of the query
+	 * @param work vertices settled (SHORTEST_PATH), edges expanded (PATHS_TO)
+	 * or hops costed (COST)
+	 * @param depth deepest recursion reached (PATHS_TO), 0 otherwise*/
+	void queryCompleted(GraphMetrics.QueryType type, long nanos, long work, 
+			int depth);
+}
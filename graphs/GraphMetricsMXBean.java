@@ -0,0 +1,30 @@
+package uk.ac.ucl.ucabter.graphs;
+
+/**JMX view of GraphMetrics. Latencies are in microseconds*/
+public interface GraphMetricsMXBean {
+	long getShortestPathCount();
+	long getPathsToCount();
+	long getCostCount();
+	
+	/**@return total vertices settled by shortest path queries*/
+	long getSettledVertices();
+	/**@return total edges relaxed by shortest path queries*/
+	long getRelaxedEdges();
+	/**@return total edges expanded by path counting queries*/
+	long getExpandedEdges();
+	/**@return deepest recursion reached by a path counting query*/
+	long getMaxRecursionDepth();
+	
+	long getShortestPathLatencyP50();
+	long getShortestPathLatencyP99();
+	long getShortestPathLatencyMax();
+	long getPathsToLatencyP50();
+	long getPathsToLatencyP99();
+	long getPathsToLatencyMax();
+	long getCostLatencyP50();
+	long getCostLatencyP99();
+	long getCostLatencyMax();
+	
+	/**Discards all counters and latencies recorded so far*/
+	void reset();
+}
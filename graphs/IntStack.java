@@ -0,0 +1,54 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+
+/**Growable stack of primitive ints.<p>
+ * 
+ * Used by the traversal algorithms in place of the call stack, so that deep 
+ * graphs (e.g. long chains) do not overflow it. The backing array is only ever
+ * grown, never shrunk, so an instance that is cleared and reused between 
+ * traversals does not allocate once it has reached its working size.*/
+public class IntStack {
+	protected int[] items;
+	protected int size;
+	
+	/**Constructs an empty stack with the given initial capacity*/
+	public IntStack(int capacity) {
+		items = new int[Math.max(capacity, 1)];
+	}
+	
+	/**Pushes the value on top of the stack*/
+	public void push(int value) {
+		if(size == items.length)
+			items = Arrays.copyOf(items, items.length << 1);
+		items[size++] = value;
+	}
+	
+	/**@return and removes the value on top of the stack
+	 * @throws IllegalStateException if the stack is empty*/
+	public int pop() {
+		if(size == 0)
+			throw new IllegalStateException("Stack is empty");
+		return items[--size];
+	}
+	
+	/**@return the value on top of the stack without removing it*/
+	public int peek() {
+		if(size == 0)
+			throw new IllegalStateException("Stack is empty");
+		return items[size - 1];
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**Empties the stack, retaining the backing array*/
+	public void clear() {
+		size = 0;
+	}
+}
@@ -0,0 +1,419 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Label-setting search for resource-constrained and bi-criteria shortest
+ * paths over a CompactGraph, see:
+ * M. Desrochers, F. Soumis, 1988, <em>A generalized permanent labelling
+ * algorithm for the shortest path problem with time windows</em>, INFOR 26.
+ * <p>
+ *
+ * Each edge has a cost (its weight) and a non-negative consumption of a
+ * resource: one per edge for a hop limit, or any secondary weight (see
+ * Resource). A label is a path from the start, held by its vertex, cost,
+ * resource and predecessor label; labels live in primitive pools (parallel
+ * int arrays) and the queue is a binary heap of label indices, so a search
+ * allocates nothing per label once the pools have grown. Searches are pooled
+ * like QueryContext (see acquire()), so that the pools are reused across
+ * queries, and the incoming edges and consumptions of a snapshot are computed
+ * once per snapshot (see CompactGraph.transpose() and consumptions()).<p>
+ *
+ * Labels are taken in order of cost plus a lower bound of the remaining cost
+ * (the reverse shortest path distance to the destination, as in A*), ties
+ * broken by resource. The bounds of cost and consumption come from two
+ * reverse searches from the destination, which only settle vertices when a
+ * label asks for their bound, and the consumption one no further than the
+ * limit, so a search that ends early does not pay for the whole graph. A label is dropped, when created and when taken, if:
+ * <ol>
+ * <li>even the least consumption to the destination would exceed the limit
+ * </li>
+ * <li>its vertex already settled a label of no greater resource, which came
+ * first so costs no more (dominance)</li>
+ * <li>the destination already has a path of no greater cost (by the order of
+ * the queue) and of no greater resource than the label plus the least
+ * consumption to the destination</li>
+ * </ol>
+ * so each vertex settles labels of strictly decreasing resource, and the
+ * labels reaching the destination form the Pareto front: by increasing cost,
+ * each uses strictly less of the resource than the previous one. The first of
+ * them is the cheapest path within the limit.<p>
+ *
+ * As in DirectedWeightedGraph.shortestPath(), a path from a vertex to itself
+ * is a cycle. Instances hold their pools and are not thread safe.*/
+public class LabelSetting<V> {
+
+	/**Consumption of a resource along the edges of a graph*/
+	public interface Resource<V> {
+		/**@return the (non-negative) consumption of the edge from v to w of
+		 * the given weight*/
+		public int consumption(V v, V w, int weight);
+	}
+
+	/**Largest number of idle searches kept for reuse*/
+	public static final int POOL_SIZE = QueryContext.POOL_SIZE;
+
+	private static final ConcurrentLinkedDeque<LabelSetting<?>> POOL =
+			new ConcurrentLinkedDeque<LabelSetting<?>>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	protected CompactGraph<V> graph;
+	/**Consumption of each edge of the snapshot, by edge index, null for one
+	 * per edge (a hop limit)*/
+	protected int[] resources;
+	/**True while the search is held, see acquire()*/
+	protected boolean busy;
+
+	//label pool
+	protected int[] labelVertex;
+	protected int[] labelCost;
+	protected int[] labelResource;
+	protected int[] labelParent;
+	/**Cost plus the lower bound of the remaining cost, the queue order*/
+	protected int[] labelKey;
+	protected int labels;
+
+	/**Binary heap of label indices*/
+	protected int[] queue;
+	protected int queued;
+
+	protected long settled;
+	protected long expanded;
+
+	/**Reverse edges of the snapshot, by weight*/
+	private final QueryContext.Relaxation reverseCosts =
+			new QueryContext.Relaxation() {
+		@Override
+		public int relax(QueryContext context, int w, int distance) {
+			for(int i = graph.inOffsets[w]; i < graph.inOffsets[w + 1]; i++)
+				context.relax(graph.sources[i], distance
+						+ graph.weights[graph.inEdges[i]], w);
+			return graph.inOffsets[w + 1] - graph.inOffsets[w];
+		}
+	};
+
+	/**Reverse edges of the snapshot, by consumption*/
+	private final QueryContext.Relaxation reverseResources =
+			new QueryContext.Relaxation() {
+		@Override
+		public int relax(QueryContext context, int w, int distance) {
+			for(int i = graph.inOffsets[w]; i < graph.inOffsets[w + 1]; i++)
+				context.relax(graph.sources[i], distance
+						+ resource(graph.inEdges[i]), w);
+			return graph.inOffsets[w + 1] - graph.inOffsets[w];
+		}
+	};
+
+	/**Search limited by the number of edges of the paths*/
+	public LabelSetting(CompactGraph<V> graph) {
+		this();
+		reset(graph, null);
+	}
+
+	/**Search limited by the given resource, evaluated once per edge
+	 * @throws IllegalArgumentException if a consumption is negative*/
+	public LabelSetting(CompactGraph<V> graph, Resource<V> resource) {
+		this();
+		reset(graph, consumptions(graph, resource));
+	}
+
+	/**Search limited by the given consumption of each edge, by edge index of
+	 * the snapshot
+	 * @throws IllegalArgumentException if there is not one consumption per
+	 * edge or one is negative*/
+	public LabelSetting(CompactGraph<V> graph, int[] resources) {
+		if(resources.length != graph.edgeCount())
+			throw new IllegalArgumentException("One consumption per edge "
+					+ "expected");
+		for(int r : resources)
+			if(r < 0)
+				throw new IllegalArgumentException("Negative consumption");
+		reset(graph, resources);
+	}
+
+	private LabelSetting() {
+		labelVertex = new int[64];
+		labelCost = new int[64];
+		labelResource = new int[64];
+		labelParent = new int[64];
+		labelKey = new int[64];
+		queue = new int[64];
+	}
+
+	/**@return an idle search of the pool, or a new one if there is none,
+	 * over the snapshot and limited by the resource (by the number of edges
+	 * if it is null); must be given back with release()
+	 * @throws IllegalArgumentException if a consumption is negative*/
+	@SuppressWarnings("unchecked")
+	public static <V> LabelSetting<V> acquire(CompactGraph<V> graph,
+			Resource<V> resource) {
+		int[] resources = resource == null ? null
+				: consumptions(graph, resource);
+		LabelSetting<V> search = (LabelSetting<V>) POOL.pollFirst();
+		if(search == null)
+			search = new LabelSetting<V>();
+		else
+			pooled.decrementAndGet();
+		search.busy = true;
+		search.reset(graph, resources);
+		return search;
+	}
+
+	/**Gives the search back to the pool, unless it is full. The results of
+	 * the last search (settled(), expanded(), labels()) remain readable
+	 * until then*/
+	public void release() {
+		if(!busy)
+			return;
+		busy = false;
+		//an idle search does not hold on to its snapshot
+		graph = null;
+		resources = null;
+		if(pooled.incrementAndGet() <= POOL_SIZE)
+			POOL.offerFirst(this);
+		else
+			pooled.decrementAndGet();
+	}
+
+	private void reset(CompactGraph<V> graph, int[] resources) {
+		graph.transpose();
+		this.graph = graph;
+		this.resources = resources;
+	}
+
+	/**@return the consumption of the resource by each edge of the snapshot,
+	 * by edge index, computed once per snapshot for the last resource asked
+	 * for: queries reusing the same Resource instance share it
+	 * @throws IllegalArgumentException if a consumption is negative*/
+	public static <V> int[] consumptions(CompactGraph<V> graph,
+			Resource<V> resource) {
+		synchronized(graph) {
+			if(graph.resource == resource)
+				return graph.consumptions;
+			int[] resources = new int[graph.edgeCount()];
+			for(int v = 0; v < graph.vertexCount(); v++)
+				for(int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+					resources[e] = resource.consumption(graph.label(v),
+							graph.label(graph.targets[e]), graph.weights[e]);
+					if(resources[e] < 0)
+						throw new IllegalArgumentException(
+								"Negative consumption");
+				}
+			graph.resource = resource;
+			graph.consumptions = resources;
+			return resources;
+		}
+	}
+
+	/**@return the consumption of the edge with the given index*/
+	private int resource(int edge) {
+		return resources == null ? 1 : resources[edge];
+	}
+
+	/**@return the cheapest path from start to destination consuming at most
+	 * limit, null if there is none
+	 * @throws QueryBudgetExceededException if the budget (unlimited if null)
+	 * runs out, with Integer.MAX_VALUE as partial result*/
+	public ParetoPath<V> shortestPath(int start, int destination, int limit,
+			QueryBudget budget) throws QueryBudgetExceededException {
+		List<ParetoPath<V>> front = search(start, destination, limit, budget,
+				true);
+		return front.isEmpty() ? null : front.get(0);
+	}
+
+	/**@return the Pareto front of the paths from start to destination
+	 * consuming at most limit, by increasing cost and decreasing resource
+	 * @throws QueryBudgetExceededException if the budget (unlimited if null)
+	 * runs out, with the cost of the cheapest path found so far as partial
+	 * result (Integer.MAX_VALUE if none)*/
+	public List<ParetoPath<V>> paretoFront(int start, int destination,
+			int limit, QueryBudget budget) throws QueryBudgetExceededException {
+		return search(start, destination, limit, budget, false);
+	}
+
+	/**@return the number of labels settled by the last search*/
+	public long settled() {
+		return settled;
+	}
+
+	/**@return the number of edges expanded by the last search*/
+	public long expanded() {
+		return expanded;
+	}
+
+	/**@return the number of labels created by the last search*/
+	public int labels() {
+		return labels;
+	}
+
+	private List<ParetoPath<V>> search(int start, int destination, int limit,
+			QueryBudget budget, boolean first)
+					throws QueryBudgetExceededException {
+		int n = graph.vertexCount();
+		//the reverse searches, and the least resource of the labels settled
+		//at each vertex as the distances of a third context
+		QueryContext costBound = QueryContext.acquire(n);
+		QueryContext resourceBound = QueryContext.acquire(n);
+		QueryContext minResource = QueryContext.acquire(n);
+		try {
+			costBound.reach(destination, 0, -1);
+			resourceBound.reach(destination, 0, -1);
+			return search(start, destination, limit, budget, first, costBound,
+					resourceBound, minResource);
+		} finally {
+			costBound.release();
+			resourceBound.release();
+			minResource.release();
+		}
+	}
+
+	private List<ParetoPath<V>> search(int start, int destination, int limit,
+			QueryBudget budget, boolean first, QueryContext costBound,
+			QueryContext resourceBound, QueryContext minResource)
+					throws QueryBudgetExceededException {
+		List<Integer> front = new ArrayList<Integer>();
+		int frontResource = Integer.MAX_VALUE;
+		labels = 0;
+		queued = 0;
+		settled = 0;
+		expanded = 0;
+
+		if(limit >= 0)
+			push(start, 0, 0, -1, 0);
+		for(long step = 0; queued > 0; step++) {
+			int label = poll();
+			int v = labelVertex[label];
+			int cost = labelCost[label];
+			int resource = labelResource[label];
+			if(budget != null) {
+				QueryBudget.Limit exceeded = budget.exceeded(settled, expanded,
+						step);
+				if(exceeded != null)
+					throw new QueryBudgetExceededException(exceeded,
+							front.isEmpty() ? Integer.MAX_VALUE
+									: labelCost[front.get(0)]);
+			}
+
+			if(v == destination && label != 0) {
+				//dominated by a path of the front found meanwhile
+				if(resource >= frontResource)
+					continue;
+				front.add(label);
+				frontResource = resource;
+				if(first)
+					break;
+				continue;
+			}
+			if(resource >= minResource.distance(v) || (long) resource
+					+ bound(resourceBound, reverseResources, v, limit)
+					>= frontResource)
+				continue;
+			minResource.record(v, resource, -1);
+			++settled;
+
+			for(int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+				int w = graph.targets[e];
+				++expanded;
+				int r = resource + resource(e);
+				if(r > limit || (w != destination
+						&& r >= minResource.distance(w)))
+					continue;
+				long least = (long) r + bound(resourceBound, reverseResources,
+						w, limit - r);
+				if(least > limit || least >= frontResource)
+					continue;
+				//reaching the destination within the limit, so within cost
+				int c = cost + graph.weights[e];
+				push(w, c, r, label, c + bound(costBound, reverseCosts, w,
+						Integer.MAX_VALUE));
+			}
+		}
+
+		List<ParetoPath<V>> paths = new ArrayList<ParetoPath<V>>(front.size());
+		for(int label : front)
+			paths.add(new ParetoPath<V>(labelCost[label], labelResource[label],
+					route(label)));
+		return paths;
+	}
+
+	/**@return the vertices of the path of the label*/
+	private List<V> route(int label) {
+		LinkedList<V> route = new LinkedList<V>();
+		for(int l = label; l >= 0; l = labelParent[l])
+			route.addFirst(graph.label(labelVertex[l]));
+		return route;
+	}
+
+	/**@return the length of the shortest path from v to the destination of
+	 * a reverse search, settling its vertices until v is settled;
+	 * Integer.MAX_VALUE if that length exceeds max*/
+	private static int bound(QueryContext reverse,
+			QueryContext.Relaxation edges, int v, int max) {
+		while(!reverse.isVisited(v))
+			if(reverse.settleNext(edges, max) < 0)
+				return Integer.MAX_VALUE;
+		return reverse.distance(v) <= max ? reverse.distance(v)
+				: Integer.MAX_VALUE;
+	}
+
+	/**Adds a label to the pool and queues it*/
+	private void push(int vertex, int cost, int resource, int parent,
+			int key) {
+		if(labels == labelVertex.length) {
+			int length = labels << 1;
+			labelVertex = Arrays.copyOf(labelVertex, length);
+			labelCost = Arrays.copyOf(labelCost, length);
+			labelResource = Arrays.copyOf(labelResource, length);
+			labelParent = Arrays.copyOf(labelParent, length);
+			labelKey = Arrays.copyOf(labelKey, length);
+		}
+		int label = labels++;
+		labelVertex[label] = vertex;
+		labelCost[label] = cost;
+		labelResource[label] = resource;
+		labelParent[label] = parent;
+		labelKey[label] = key;
+
+		if(queued == queue.length)
+			queue = Arrays.copyOf(queue, queued << 1);
+		int i = queued++;
+		while(i > 0) {
+			int parentSlot = (i - 1) >>> 1;
+			if(!before(label, queue[parentSlot]))
+				break;
+			queue[i] = queue[parentSlot];
+			i = parentSlot;
+		}
+		queue[i] = label;
+	}
+
+	/**@return and removes the first label of the queue*/
+	private int poll() {
+		int head = queue[0];
+		int last = queue[--queued];
+		int i = 0;
+		while(true) {
+			int child = (i << 1) + 1;
+			if(child >= queued)
+				break;
+			if(child + 1 < queued && before(queue[child + 1], queue[child]))
+				++child;
+			if(!before(queue[child], last))
+				break;
+			queue[i] = queue[child];
+			i = child;
+		}
+		queue[i] = last;
+		return head;
+	}
+
+	/**@return true if label a comes before label b in the queue*/
+	private boolean before(int a, int b) {
+		return labelKey[a] < labelKey[b] || (labelKey[a] == labelKey[b]
+				&& labelResource[a] < labelResource[b]);
+	}
+}
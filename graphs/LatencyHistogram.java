@@ -0,0 +1,111 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**Concurrent histogram of latencies (or any non-negative long values) with
+ * bounded relative error, in the style of HdrHistogram 
+ * ( http://hdrhistogram.org ).<p>
+ * 
+ * Values below 128 are counted exactly. Above that, each power of two range is
+ * split into 64 equal sub-buckets, so a recorded value is off by less than
+ * 1/64 (1.6%) of itself. The whole range of long values fits in a fixed 
+ * array of counters: recording is lock free and never allocates.*/
+public class LatencyHistogram {
+	
+	/**log2 of the number of sub-buckets per power of two*/
+	private static final int SUB_BITS = 6;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT + SUB_COUNT;
+	
+	protected final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	protected final LongAdder total = new LongAdder();
+	protected final LongAdder sum = new LongAdder();
+	
+	/**Records one value, negative values are recorded as 0*/
+	public void record(long value) {
+		record(value, 1);
+	}
+	
+	/**Records a value count times*/
+	public void record(long value, long count) {
+		if(value < 0)
+			value = 0;
+		counts.addAndGet(index(value), count);
+		total.add(count);
+		sum.add(value * count);
+	}
+	
+	/**@return the counter index of a value*/
+	protected static int index(long value) {
+		int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+		return (bucket << SUB_BITS) + (int) (value >>> bucket);
+	}
+	
+	/**@return the smallest value counted at the index*/
+	protected static long lowest(int index) {
+		int bucket = Math.max(0, (index >>> SUB_BITS) - 1);
+		return (long) (index - (bucket << SUB_BITS)) << bucket;
+	}
+	
+	/**@return the largest value counted at the index*/
+	protected static long highest(int index) {
+		int bucket = Math.max(0, (index >>> SUB_BITS) - 1);
+		return lowest(index) + (1L << bucket) - 1;
+	}
+	
+	/**@return the number of values recorded*/
+	public long count() {
+		return total.sum();
+	}
+	
+	/**@return the mean of the values recorded, 0 if there are none*/
+	public double mean() {
+		long count = total.sum();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+	
+	/**@return the value below which the given percentage (0 to 100) of the
+	 * recorded values fall, 0 if there are none*/
+	public long percentile(double percentile) {
+		long count = total.sum();
+		if(count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if(seen >= rank)
+				return highest(i);
+		}
+		return max();
+	}
+	
+	/**@return the largest value recorded (to within the histogram precision),
+	 * 0 if there are none*/
+	public long max() {
+		for(int i = BUCKETS - 1; i >= 0; i--)
+			if(counts.get(i) != 0)
+				return highest(i);
+		return 0;
+	}
+	
+	/**Adds the counts of another histogram to this one*/
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if(count != 0)
+				counts.addAndGet(i, count);
+		}
+		total.add(other.total.sum());
+		sum.add(other.sum.sum());
+	}
+	
+	/**Discards every value recorded*/
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		total.reset();
+		sum.reset();
+	}
+}
@@ -0,0 +1,516 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**Load test of a ConcurrentDirectedWeightedGraph: a workload of
+ * shortestPath, pathsTo, cost and setEdge requests, generated (see
+ * generate()) or replayed from a log (see replay()), is run against the graph
+ * in process, at a target rate, by a number of threads.<p>
+ *
+ * The load is open: request i is due at i / rate seconds from the start,
+ * whether or not earlier requests have completed, and the threads take the
+ * requests in order, each waiting for the one it took to be due. The latency
+ * of a request is measured from the time it was due, not from the time a
+ * thread got to it, so that time spent queued behind slow requests counts
+ * (the correction for coordinated omission, see G. Tene, <em>How NOT to
+ * Measure Latency</em>); the service time, from the actual start, is reported
+ * beside it. A load beyond the capacity of the graph shows as latencies
+ * growing with the length of the run.<p>
+ *
+ * The report gives the throughput, the latency and service time percentiles
+ * of each operation, and the collections, collection time and bytes allocated
+ * by the test threads during the run, from the management beans of the JVM.
+ * <p>
+ *
+ * A log has one request per line, with space separated fields:
+ * <ul>
+ * <li>shortestPath FROM TO</li>
+ * <li>pathsTo FROM TO LIMIT CONDITION</li>
+ * <li>cost V1 V2 ...</li>
+ * <li>setEdge FROM TO WEIGHT (removes the edge if there is one already)</li>
+ * </ul>
+ * Blank lines and lines starting with # are skipped; Request.toString()
+ * writes this format, so a generated workload can be saved and replayed.*/
+public class LoadTest<V> {
+
+	public enum Operation {
+		SHORTEST_PATH("shortestPath"),
+		PATHS_TO("pathsTo"),
+		COST("cost"),
+		SET_EDGE("setEdge");
+
+		/**Name of the operation in logs*/
+		protected final String name;
+
+		Operation(String name) {
+			this.name = name;
+		}
+
+		/**@return the operation of the given log name, null if none*/
+		public static Operation named(String name) {
+			for(Operation operation : values())
+				if(operation.name.equals(name))
+					return operation;
+			return null;
+		}
+	}
+
+	/**One request of a workload*/
+	public static class Request<V> {
+		protected final Operation operation;
+		protected final V[] vertices;
+		/**Limit of pathsTo, weight of setEdge*/
+		protected final int value;
+		protected final Conditions condition;
+
+		public Request(Operation operation, V[] vertices, int value,
+				Conditions condition) {
+			this.operation = operation;
+			this.vertices = vertices;
+			this.value = value;
+			this.condition = condition;
+		}
+
+		public Operation operation() {
+			return operation;
+		}
+
+		/**@return the request as a line of a log*/
+		@Override
+		public String toString() {
+			StringBuilder line = new StringBuilder(operation.name);
+			for(V v : vertices)
+				line.append(' ').append(v);
+			if(operation == Operation.PATHS_TO)
+				line.append(' ').append(value).append(' ').append(condition);
+			else if(operation == Operation.SET_EDGE)
+				line.append(' ').append(value);
+			return line.toString();
+		}
+	}
+
+	protected final ConcurrentDirectedWeightedGraph<V> graph;
+	protected final List<Request<V>> workload;
+
+	/**Load test of the graph with the given workload, repeated as many times
+	 * as a run needs*/
+	public LoadTest(ConcurrentDirectedWeightedGraph<V> graph,
+			List<Request<V>> workload) {
+		if(workload.isEmpty())
+			throw new IllegalArgumentException("Empty workload");
+		this.graph = graph;
+		this.workload = workload;
+	}
+
+	/**@return count random requests on the vertices of the graph: a share
+	 * writeRatio (0 to 1) of setEdge, the rest split evenly between
+	 * shortestPath, pathsTo (LESSTHAN or EXACT within pathsToLimit edges) and
+	 * cost of random walks of 1 to 4 edges. The graph must not change while
+	 * the requests are generated*/
+	public static <V> List<Request<V>> generate(
+			ConcurrentDirectedWeightedGraph<V> graph, int count,
+			double writeRatio, int pathsToLimit, Random random) {
+		CompactGraph<V> snapshot = graph.compact();
+		int n = snapshot.vertexCount();
+		if(n == 0)
+			throw new IllegalArgumentException("Empty graph");
+		List<Request<V>> requests = new ArrayList<Request<V>>(count);
+		for(int i = 0; i < count; i++) {
+			V from = snapshot.label(random.nextInt(n));
+			V to = snapshot.label(random.nextInt(n));
+			if(random.nextDouble() < writeRatio) {
+				requests.add(new Request<V>(Operation.SET_EDGE,
+						pair(from, to), 1 + random.nextInt(100), null));
+				continue;
+			}
+			switch(random.nextInt(3)) {
+			case 0:
+				requests.add(new Request<V>(Operation.SHORTEST_PATH,
+						pair(from, to), 0, null));
+				break;
+			case 1:
+				requests.add(new Request<V>(Operation.PATHS_TO, pair(from, to),
+						pathsToLimit, random.nextBoolean() ? Conditions.LESSTHAN
+								: Conditions.EXACT));
+				break;
+			default:
+				//a walk along the snapshot, so that most paths can be costed
+				List<V> walk = new ArrayList<V>();
+				int v = snapshot.id(from);
+				walk.add(from);
+				for(int hops = 1 + random.nextInt(4); hops > 0
+						&& snapshot.degree(v) > 0; hops--) {
+					v = snapshot.target(snapshot.firstEdge(v)
+							+ random.nextInt(snapshot.degree(v)));
+					walk.add(snapshot.label(v));
+				}
+				if(walk.size() == 1)
+					walk.add(to);
+				@SuppressWarnings("unchecked")
+				V[] path = (V[]) walk.toArray();
+				requests.add(new Request<V>(Operation.COST, path, 0, null));
+			}
+		}
+		return requests;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> V[] pair(V from, V to) {
+		return (V[]) new Object[]{from, to};
+	}
+
+	/**@return the requests of the log (see the class comment), on the
+	 * instances of the vertices held by the graph
+	 * @throws IOException if the log cannot be read
+	 * @throws GraphException if a line is malformed or names a vertex that is
+	 * not in the graph*/
+	public static <V> List<Request<V>> replay(
+			ConcurrentDirectedWeightedGraph<V> graph,
+			QueryServer.VertexFormat<V> format, BufferedReader log)
+					throws IOException, GraphException {
+		List<Request<V>> requests = new ArrayList<Request<V>>();
+		String line;
+		for(int number = 1; (line = log.readLine()) != null; number++) {
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] fields = line.split("\\s+");
+			Operation operation = Operation.named(fields[0]);
+			//vertices, then the value and condition of the operation
+			int vertexCount = operation == Operation.COST ? fields.length - 1
+					: 2;
+			int expected = operation == Operation.PATHS_TO ? 5
+					: operation == Operation.SET_EDGE ? 4 : 3;
+			if(operation == null || (operation == Operation.COST
+					? fields.length < 3 : fields.length != expected))
+				throw new GraphException("Malformed request at line " + number
+						+ ": " + line);
+			@SuppressWarnings("unchecked")
+			V[] vertices = (V[]) new Object[vertexCount];
+			try {
+				for(int i = 0; i < vertexCount; i++)
+					vertices[i] = QueryServer.vertex(graph, format,
+							fields[i + 1]);
+				int value = fields.length > 3 && operation != Operation.COST
+						? Integer.parseInt(fields[3]) : 0;
+				Conditions condition = operation == Operation.PATHS_TO
+						? Conditions.valueOf(fields[4]) : null;
+				requests.add(new Request<V>(operation, vertices, value,
+						condition));
+			} catch(IllegalArgumentException e) {
+				throw new GraphException("Malformed request at line " + number
+						+ ": " + line);
+			}
+		}
+		return requests;
+	}
+
+	/**Runs the workload, from its first request, at rate requests per second
+	 * on the given number of threads, for the given duration
+	 * @throws IllegalArgumentException if the rate, threads or duration are
+	 * not positive
+	 * @throws IllegalStateException if a request failed other than with a
+	 * GraphException (counted as an error, see Report.errors())*/
+	public Report run(double rate, int threads, long duration, TimeUnit unit)
+			throws InterruptedException {
+		if(!(rate > 0) || threads <= 0 || duration <= 0)
+			throw new IllegalArgumentException("Invalid load");
+		final long period = Math.max(1, (long) (1e9 / rate));
+		final Report report = new Report();
+		final AtomicLong sequence = new AtomicLong();
+		final AtomicReference<RuntimeException> failure =
+				new AtomicReference<RuntimeException>();
+		final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		final boolean allocation = threadBean
+				instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threadBean)
+						.isThreadAllocatedMemoryEnabled();
+		final LongAdder allocated = new LongAdder();
+		long[] collections = collections();
+
+		final long begin = System.nanoTime();
+		final long end = begin + unit.toNanos(duration);
+		Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			workers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					long before = allocation ? allocatedBytes(threadBean) : 0;
+					while(failure.get() == null) {
+						long i = sequence.getAndIncrement();
+						long due = begin + i * period;
+						if(due - end >= 0)
+							break;
+						long wait;
+						while((wait = due - System.nanoTime()) > 0)
+							LockSupport.parkNanos(wait);
+
+						Request<V> request = workload.get(
+								(int) (i % workload.size()));
+						long started = System.nanoTime();
+						try {
+							execute(request);
+						} catch(GraphException e) {
+							report.errors.increment();
+						} catch(RuntimeException e) {
+							failure.compareAndSet(null, e);
+						}
+						long finished = System.nanoTime();
+						int type = request.operation.ordinal();
+						report.latencies[type].record(finished - due);
+						report.serviceTimes[type].record(finished - started);
+					}
+					if(allocation)
+						allocated.add(allocatedBytes(threadBean) - before);
+				}
+			}, "load-" + t);
+			workers[t].start();
+		}
+		for(Thread worker : workers)
+			worker.join();
+
+		report.elapsed = System.nanoTime() - begin;
+		long[] after = collections();
+		report.collections = after[0] - collections[0];
+		report.collectionMillis = after[1] - collections[1];
+		report.allocatedBytes = allocation ? allocated.sum() : -1;
+		if(failure.get() != null)
+			throw new IllegalStateException("Request failed", failure.get());
+		return report;
+	}
+
+	/**Runs one request against the graph*/
+	protected void execute(Request<V> request) throws GraphException {
+		V[] vertices = request.vertices;
+		switch(request.operation) {
+		case SHORTEST_PATH:
+			graph.shortestPath(vertices[0], vertices[1]);
+			break;
+		case PATHS_TO:
+			graph.pathsTo(vertices[0], vertices[1], request.value,
+					request.condition);
+			break;
+		case COST:
+			graph.cost(vertices);
+			break;
+		case SET_EDGE:
+			//another thread may change the edge in between, which fails the
+			//request as an error
+			if(graph.isEdge(vertices[0], vertices[1]))
+				graph.delEdge(vertices[0], vertices[1]);
+			else
+				graph.setEdge(vertices[0], vertices[1], request.value);
+			break;
+		}
+	}
+
+	/**@return the bytes allocated so far by the current thread*/
+	private static long allocatedBytes(ThreadMXBean bean) {
+		return ((com.sun.management.ThreadMXBean) bean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**@return the number of collections and their time in milliseconds so
+	 * far, over every collector*/
+	private static long[] collections() {
+		long[] totals = new long[2];
+		for(GarbageCollectorMXBean bean
+				: ManagementFactory.getGarbageCollectorMXBeans()) {
+			totals[0] += Math.max(0, bean.getCollectionCount());
+			totals[1] += Math.max(0, bean.getCollectionTime());
+		}
+		return totals;
+	}
+
+	/**Outcome of a run*/
+	public static class Report {
+		protected final LatencyHistogram[] latencies =
+				new LatencyHistogram[Operation.values().length];
+		protected final LatencyHistogram[] serviceTimes =
+				new LatencyHistogram[Operation.values().length];
+		protected final LongAdder errors = new LongAdder();
+		protected long elapsed;
+		protected long collections;
+		protected long collectionMillis;
+		protected long allocatedBytes;
+
+		protected Report() {
+			for(int i = 0; i < latencies.length; i++) {
+				latencies[i] = new LatencyHistogram();
+				serviceTimes[i] = new LatencyHistogram();
+			}
+		}
+
+		/**@return the number of requests completed*/
+		public long requests() {
+			long requests = 0;
+			for(LatencyHistogram latency : latencies)
+				requests += latency.count();
+			return requests;
+		}
+
+		/**@return the number of requests that failed with a GraphException
+		 * (no such path, edge changed by another thread...)*/
+		public long errors() {
+			return errors.sum();
+		}
+
+		/**@return requests completed per second*/
+		public double throughput() {
+			return requests() / Math.max(elapsed / 1e9, 1e-9);
+		}
+
+		/**@return the latencies of the operation in nanoseconds, from the time
+		 * each request was due*/
+		public LatencyHistogram latency(Operation operation) {
+			return latencies[operation.ordinal()];
+		}
+
+		/**@return the latencies of every operation*/
+		public LatencyHistogram latency() {
+			LatencyHistogram all = new LatencyHistogram();
+			for(LatencyHistogram latency : latencies)
+				all.add(latency);
+			return all;
+		}
+
+		/**@return the service times of the operation in nanoseconds, from
+		 * the time each request actually started*/
+		public LatencyHistogram serviceTime(Operation operation) {
+			return serviceTimes[operation.ordinal()];
+		}
+
+		/**@return the duration of the run in nanoseconds*/
+		public long elapsed() {
+			return elapsed;
+		}
+
+		/**@return the number of garbage collections during the run*/
+		public long collections() {
+			return collections;
+		}
+
+		/**@return the time spent in garbage collection during the run*/
+		public long collectionMillis() {
+			return collectionMillis;
+		}
+
+		/**@return the bytes allocated by the test threads, -1 if the JVM does
+		 * not measure them*/
+		public long allocatedBytes() {
+			return allocatedBytes;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder text = new StringBuilder();
+			text.append(String.format(Locale.ROOT, "%d requests in %.3fs, "
+					+ "%.1f/s, %d errors%n", requests(), elapsed / 1e9,
+					throughput(), errors()));
+			text.append(String.format(Locale.ROOT, "%-14s %9s %9s %9s %9s "
+					+ "%9s %9s%n", "micros", "count", "p50", "p99", "p99.9",
+					"max", "svc p99"));
+			for(Operation operation : Operation.values())
+				line(text, operation.name, latency(operation),
+						serviceTime(operation));
+			LatencyHistogram service = new LatencyHistogram();
+			for(LatencyHistogram serviceTime : serviceTimes)
+				service.add(serviceTime);
+			line(text, "all", latency(), service);
+			text.append(String.format(Locale.ROOT, "GC: %d collections, %dms; "
+					+ "allocated: %s%n", collections, collectionMillis,
+					allocatedBytes < 0 ? "unknown"
+							: (allocatedBytes >> 20) + "MB"));
+			return text.toString();
+		}
+
+		private static void line(StringBuilder text, String name,
+				LatencyHistogram latency, LatencyHistogram service) {
+			text.append(String.format(Locale.ROOT, "%-14s %9d %9d %9d %9d %9d "
+					+ "%9d%n", name, latency.count(),
+					latency.percentile(50) / 1000,
+					latency.percentile(99) / 1000,
+					latency.percentile(99.9) / 1000, latency.max() / 1000,
+					service.percentile(99) / 1000));
+		}
+	}
+
+	/**Runs a load test from the command line, with options name=value:
+	 * vertices, edges, seed (of a random graph of integers), log (a file to
+	 * replay, otherwise requests are generated), requests, writes, limit (of
+	 * the generated workload), rate, threads and seconds (of the run)*/
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for(String arg : args) {
+			int equals = arg.indexOf('=');
+			if(equals < 0)
+				throw new IllegalArgumentException("Expected name=value: "
+						+ arg);
+			options.put(arg.substring(0, equals), arg.substring(equals + 1));
+		}
+		int n = Integer.parseInt(option(options, "vertices", "10000"));
+		int m = Integer.parseInt(option(options, "edges", "50000"));
+		Random random = new Random(Long.parseLong(option(options, "seed",
+				"1")));
+
+		ConcurrentDirectedWeightedGraph<Integer> graph =
+				new ConcurrentDirectedWeightedGraph<Integer>();
+		//pathsTo() tells terminals by identity, so edges use the instances
+		//of the vertices
+		Integer[] vertices = new Integer[n];
+		for(int v = 0; v < n; v++) {
+			vertices[v] = v;
+			graph.addVertex(vertices[v]);
+		}
+		for(int i = 0; i < m; i++) {
+			Integer v = vertices[random.nextInt(n)];
+			Integer w = vertices[random.nextInt(n)];
+			if(!graph.isEdge(v, w))
+				graph.setEdge(v, w, 1 + random.nextInt(100));
+		}
+
+		List<Request<Integer>> workload;
+		String log = options.get("log");
+		if(log != null) {
+			BufferedReader reader = new BufferedReader(new FileReader(log));
+			try {
+				workload = replay(graph, QueryServer.INTEGERS, reader);
+			} finally {
+				reader.close();
+			}
+		} else
+			workload = generate(graph, Integer.parseInt(option(options,
+					"requests", "100000")), Double.parseDouble(option(options,
+					"writes", "0.05")), Integer.parseInt(option(options, "limit",
+					"3")), random);
+
+		Report report = new LoadTest<Integer>(graph, workload).run(
+				Double.parseDouble(option(options, "rate", "1000")),
+				Integer.parseInt(option(options, "threads", "4")),
+				Long.parseLong(option(options, "seconds", "10")),
+				TimeUnit.SECONDS);
+		System.out.print(report);
+	}
+
+	private static String option(Map<String, String> options, String name,
+			String fallback) {
+		String value = options.get(name);
+		return value == null ? fallback : value;
+	}
+}
@@ -0,0 +1,93 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+
+/**Binary min-heap of primitive longs.<p>
+ * 
+ * Used as the priority queue of the shortest path algorithms, with the 
+ * priority in the high half of each entry and the vertex id in the low half 
+ * (see entry()), so entries compare by priority, then by id. Like IntStack, 
+ * the backing array only grows, and a cleared heap can be reused without 
+ * allocating.*/
+public class LongHeap {
+	protected long[] items;
+	protected int size;
+	
+	public LongHeap(int capacity) {
+		items = new long[Math.max(capacity, 1)];
+	}
+	
+	/**@return a heap entry for the vertex with the given (non-negative) 
+	 * priority*/
+	public static long entry(int priority, int vertex) {
+		return ((long) priority << 32) | (vertex & 0xFFFFFFFFL);
+	}
+	
+	/**@return the priority of an entry*/
+	public static int priority(long entry) {
+		return (int) (entry >>> 32);
+	}
+	
+	/**@return the vertex of an entry*/
+	public static int vertex(long entry) {
+		return (int) entry;
+	}
+	
+	public void add(long value) {
+		if(size == items.length)
+			items = Arrays.copyOf(items, items.length << 1);
+		//sift up
+		int i = size++;
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			if(items[parent] <= value)
+				break;
+			items[i] = items[parent];
+			i = parent;
+		}
+		items[i] = value;
+	}
+	
+	/**@return and removes the smallest value
+	 * @throws IllegalStateException if the heap is empty*/
+	public long poll() {
+		if(size == 0)
+			throw new IllegalStateException("Heap is empty");
+		long result = items[0];
+		long last = items[--size];
+		//sift down
+		int i = 0;
+		int half = size >>> 1;
+		while(i < half) {
+			int child = 2 * i + 1;
+			if(child + 1 < size && items[child + 1] < items[child])
+				++child;
+			if(last <= items[child])
+				break;
+			items[i] = items[child];
+			i = child;
+		}
+		items[i] = last;
+		return result;
+	}
+	
+	/**@return the smallest value, without removing it
+	 * @throws IllegalStateException if the heap is empty*/
+	public long peek() {
+		if(size == 0)
+			throw new IllegalStateException("Heap is empty");
+		return items[0];
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+}
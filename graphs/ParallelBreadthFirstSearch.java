@@ -0,0 +1,255 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**Level-synchronous, direction-optimizing parallel breadth-first search over
+ * a CompactGraph.<p>
+ *
+ * Each level is expanded in parallel on a fork-join pool, either top-down
+ * (every frontier vertex claims its unvisited successors) or bottom-up (every
+ * unvisited vertex looks for a predecessor in the frontier), switching between
+ * the two with the heuristic described in:
+ * S. Beamer, K. Asanovic, D. Patterson, 2012, <em>Direction-Optimizing
+ * Breadth-First Search</em>, SC '12.<p>
+ *
+ * Bottom-up steps need the incoming edges of the graph, which are built on
+ * first use (see CompactGraph.transpose()). Frontiers are kept as bitmaps, one
+ * bit per vertex.*/
+public class ParallelBreadthFirstSearch {
+
+	/**Switch to bottom-up when the edges leaving the frontier exceed the
+	 * edges left to check divided by ALPHA*/
+	public static final int ALPHA = 14;
+	/**Switch back to top-down when the frontier holds less than the number
+	 * of vertices divided by BETA*/
+	public static final int BETA = 24;
+	/**Number of bitmap words (64 vertices each) below which a task stops
+	 * splitting*/
+	public static final int GRAIN = 64;
+
+	protected final CompactGraph<?> graph;
+	protected final ForkJoinPool pool;
+
+	/**Constructs a search over the graph, running on the common pool*/
+	public ParallelBreadthFirstSearch(CompactGraph<?> graph) {
+		this(graph, ForkJoinPool.commonPool());
+	}
+
+	public ParallelBreadthFirstSearch(CompactGraph<?> graph, ForkJoinPool pool) {
+		this.graph = graph;
+		this.pool = pool;
+	}
+
+	/**@return the number of hops from source to each vertex (indexed by id),
+	 * -1 for vertices that cannot be reached*/
+	public int[] hops(int source) {
+		return hops(source, Integer.MAX_VALUE);
+	}
+
+	/**@return the number of hops from source to each vertex (indexed by id),
+	 * -1 for vertices that cannot be reached within maxHops hops*/
+	public int[] hops(int source, int maxHops) {
+		AtomicIntegerArray distances = search(source, maxHops);
+		int[] result = new int[distances.length()];
+		for(int v = 0; v < result.length; v++)
+			result[v] = distances.get(v);
+		return result;
+	}
+
+	/**@return the set of vertices within maxHops hops of source (source
+	 * included)*/
+	public BitSet reachable(int source, int maxHops) {
+		AtomicIntegerArray distances = search(source, maxHops);
+		BitSet result = new BitSet(distances.length());
+		for(int v = 0; v < distances.length(); v++)
+			if(distances.get(v) >= 0)
+				result.set(v);
+		return result;
+	}
+
+	/**Runs the search, returning the hop distance of every vertex*/
+	protected AtomicIntegerArray search(int source, int maxHops) {
+		int n = graph.vertexCount();
+		int words = (n + 63) >>> 6;
+		AtomicIntegerArray distances = new AtomicIntegerArray(n);
+		for(int v = 0; v < n; v++)
+			distances.set(v, -1);
+
+		AtomicLongArray frontier = new AtomicLongArray(words);
+		AtomicLongArray next = new AtomicLongArray(words);
+		distances.set(source, 0);
+		frontier.set(source >>> 6, 1L << source);
+
+		long frontierSize = 1;
+		long frontierEdges = graph.degree(source);
+		//edges out of vertices not yet visited
+		long unexploredEdges = graph.edgeCount() - frontierEdges;
+		boolean bottomUp = false;
+
+		for(int level = 0; frontierSize > 0 && level < maxHops; level++) {
+			//direction heuristic
+			if(!bottomUp && frontierEdges > unexploredEdges / ALPHA) {
+				bottomUp = true;
+				graph.transpose();
+			}
+			else if(bottomUp && frontierSize < n / BETA)
+				bottomUp = false;
+
+			Step step = bottomUp
+					? new BottomUp(distances, frontier, next, level, 0, words)
+					: new TopDown(distances, frontier, next, level, 0, words);
+			pool.invoke(step);
+
+			frontierSize = step.vertices;
+			frontierEdges = step.edges;
+			unexploredEdges -= frontierEdges;
+
+			//swap the frontiers and clear the one to fill next
+			AtomicLongArray swap = frontier;
+			frontier = next;
+			next = swap;
+			for(int w = 0; w < words; w++)
+				next.set(w, 0L);
+		}
+		return distances;
+	}
+
+	/**Expansion of one level over a range of bitmap words. The number of
+	 * vertices added to the next frontier and the number of edges leaving
+	 * them are accumulated in vertices and edges*/
+	protected abstract class Step extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final AtomicIntegerArray distances;
+		protected final AtomicLongArray frontier;
+		protected final AtomicLongArray next;
+		protected final int level;
+		protected final int from;
+		protected final int to;
+		protected long vertices;
+		protected long edges;
+
+		protected Step(AtomicIntegerArray distances, AtomicLongArray frontier,
+				AtomicLongArray next, int level, int from, int to) {
+			this.distances = distances;
+			this.frontier = frontier;
+			this.next = next;
+			this.level = level;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected abstract Step split(int from, int to);
+
+		/**Sequential expansion of the words in [from, to)*/
+		protected abstract void expand();
+
+		@Override
+		protected void compute() {
+			if(to - from <= GRAIN) {
+				expand();
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			Step left = split(from, middle);
+			Step right = split(middle, to);
+			invokeAll(left, right);
+			vertices = left.vertices + right.vertices;
+			edges = left.edges + right.edges;
+		}
+	}
+
+	protected class TopDown extends Step {
+		private static final long serialVersionUID = 1L;
+
+		protected TopDown(AtomicIntegerArray distances, AtomicLongArray frontier,
+				AtomicLongArray next, int level, int from, int to) {
+			super(distances, frontier, next, level, from, to);
+		}
+
+		@Override
+		protected Step split(int from, int to) {
+			return new TopDown(distances, frontier, next, level, from, to);
+		}
+
+		@Override
+		protected void expand() {
+			int[] offsets = graph.offsets;
+			int[] targets = graph.targets;
+			for(int w = from; w < to; w++) {
+				long word = frontier.get(w);
+				while(word != 0) {
+					int v = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					for(int e = offsets[v]; e < offsets[v + 1]; e++) {
+						int t = targets[e];
+						//claim the target, only one thread can succeed
+						if(distances.get(t) < 0
+								&& distances.compareAndSet(t, -1, level + 1)) {
+							setBit(next, t);
+							++vertices;
+							edges += offsets[t + 1] - offsets[t];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	protected class BottomUp extends Step {
+		private static final long serialVersionUID = 1L;
+
+		protected BottomUp(AtomicIntegerArray distances, AtomicLongArray frontier,
+				AtomicLongArray next, int level, int from, int to) {
+			super(distances, frontier, next, level, from, to);
+		}
+
+		@Override
+		protected Step split(int from, int to) {
+			return new BottomUp(distances, frontier, next, level, from, to);
+		}
+
+		@Override
+		protected void expand() {
+			int[] offsets = graph.offsets;
+			int[] inOffsets = graph.inOffsets;
+			int[] sources = graph.sources;
+			int end = Math.min(to << 6, distances.length());
+			//the words in [from, to) of next are only written by this task
+			for(int w = from; w < to; w++) {
+				long word = 0L;
+				for(int v = w << 6; v < Math.min((w + 1) << 6, end); v++) {
+					if(distances.get(v) >= 0)
+						continue;
+					for(int e = inOffsets[v]; e < inOffsets[v + 1]; e++) {
+						int s = sources[e];
+						if((frontier.get(s >>> 6) & (1L << s)) != 0) {
+							distances.set(v, level + 1);
+							word |= 1L << v;
+							++vertices;
+							edges += offsets[v + 1] - offsets[v];
+							break;
+						}
+					}
+				}
+				next.set(w, word);
+			}
+		}
+	}
+
+	/**Atomically sets bit i of the bitmap*/
+	protected static void setBit(AtomicLongArray bitmap, int i) {
+		int w = i >>> 6;
+		long bit = 1L << i;
+		long current;
+		do {
+			current = bitmap.get(w);
+			if((current & bit) != 0)
+				return;
+		} while(!bitmap.compareAndSet(w, current, current | bit));
+	}
+}
@@ -0,0 +1,37 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.List;
+
+/**Path found by LabelSetting, with its cost (the sum of its weights) and
+ * the resource it consumes (the sum of the consumption of its edges, its
+ * number of edges for a hop limit).*/
+public class ParetoPath<V> {
+	protected final int cost;
+	protected final int resource;
+	protected final List<V> route;
+
+	public ParetoPath(int cost, int resource, List<V> route) {
+		this.cost = cost;
+		this.resource = resource;
+		this.route = route;
+	}
+
+	public int cost() {
+		return cost;
+	}
+
+	public int resource() {
+		return resource;
+	}
+
+	/**@return the vertices of the path, both ends included (start twice for
+	 * a cycle through it)*/
+	public List<V> route() {
+		return route;
+	}
+
+	@Override
+	public String toString() {
+		return route + " cost " + cost + " resource " + resource;
+	}
+}
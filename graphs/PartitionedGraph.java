@@ -0,0 +1,434 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Coordinator of a graph partitioned across ShardServer processes.<p>
+ *
+ * The vertices of a snapshot are split in ranges of consecutive ids, one per
+ * shard, and each shard is loaded with the edges leaving its range (see
+ * ShardServer); the coordinator keeps only the ids of the vertices. Queries
+ * run in supersteps: every shard processes the messages addressed to it, in
+ * parallel with the others, and returns the messages for the other shards,
+ * which the coordinator routes to them for the next superstep, until no
+ * message is left.
+ * <ol>
+ * <li>shortestPath(): within a superstep each shard runs Dijkstra's algorithm
+ * over its own vertices, across shards the algorithm is Bellman-Ford (a
+ * vertex settled in an early superstep may be improved by a later one)</li>
+ * <li>pathsTo(): walks are counted by dynamic programming over (vertex,
+ * number of edges or cost) pairs, each message carrying the number of walks
+ * that reach a vertex at a cost, so the work grows with the number of such
+ * pairs rather than with the number of walks</li>
+ * </ol>
+ * The ordering of the snapshot decides how many edges cross shards; order
+ * the graph for locality first (see DirectedWeightedGraph.setVertexOrdering())
+ * to reduce the number of messages and supersteps.<p>
+ *
+ * The shards keep the state of a query per connection, so each query runs
+ * over its own set of connections to the shards, taken from a pool and
+ * opened when the pool is empty: queries on one instance run concurrently,
+ * each shard serving them on separate threads.*/
+public class PartitionedGraph<V> implements RoutableGraph<V, IntegerWeightEdge<V>>,
+		Closeable {
+
+	/**Milliseconds close() waits for the running queries and the shard
+	 * processes before destroying the processes*/
+	public static final long SHUTDOWN_TIMEOUT = 10000;
+
+	protected final Map<V, Integer> ids;
+	protected final int[] rank;
+	protected final int vertexCount;
+	protected final List<InetSocketAddress> addresses;
+	/**Idle connections to every shard, one array per query that opened them,
+	 * the most recently used first*/
+	protected final ConcurrentLinkedDeque<ShardClient[]> connections =
+			new ConcurrentLinkedDeque<ShardClient[]>();
+	/**First vertex of each shard, and vertexCount at the end*/
+	protected final int[] bounds;
+	/**Shard processes started by launch(), if any*/
+	protected final List<Process> processes = new ArrayList<Process>();
+	/**Set by close(), after which no query takes connections*/
+	protected volatile boolean closed;
+	/**Number of queries holding connections, between acquire() and
+	 * release()*/
+	protected final AtomicInteger running = new AtomicInteger();
+
+	/**Partitions the snapshot across the shard servers at the argument
+	 * addresses, one shard per server*/
+	public PartitionedGraph(CompactGraph<V> graph,
+			List<InetSocketAddress> addresses) throws IOException {
+		ids = graph.ids;
+		rank = graph.rank;
+		vertexCount = graph.vertexCount();
+		this.addresses = new ArrayList<InetSocketAddress>(addresses);
+		bounds = new int[addresses.size() + 1];
+		int size = (vertexCount + addresses.size() - 1) / addresses.size();
+		ShardClient[] shards = connect();
+		try {
+			for(int s = 0; s < shards.length; s++) {
+				bounds[s] = Math.min(vertexCount, s * size);
+				bounds[s + 1] = Math.min(vertexCount, (s + 1) * size);
+				shards[s].load(graph, bounds[s], bounds[s + 1] - bounds[s]);
+			}
+		} catch(IOException e) {
+			discard(shards);
+			throw e;
+		}
+		connections.add(shards);
+	}
+
+	/**Starts the given number of ShardServer processes on the local host,
+	 * with the class path of this process, and partitions the snapshot
+	 * across them. The processes are stopped by close()*/
+	public static <V> PartitionedGraph<V> launch(CompactGraph<V> graph,
+			int count) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		List<Process> processes = new ArrayList<Process>();
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		try {
+			for(int s = 0; s < count; s++) {
+				Process process = new ProcessBuilder(java, "-cp",
+						System.getProperty("java.class.path"),
+						ShardServer.class.getName()).redirectError(
+								ProcessBuilder.Redirect.INHERIT).start();
+				processes.add(process);
+				String port = new BufferedReader(new InputStreamReader(
+						process.getInputStream())).readLine();
+				if(port == null)
+					throw new IOException("Shard process failed to start");
+				addresses.add(new InetSocketAddress(
+						InetAddress.getLoopbackAddress(),
+						Integer.parseInt(port.trim())));
+			}
+			PartitionedGraph<V> partitioned = new PartitionedGraph<V>(graph,
+					addresses);
+			partitioned.processes.addAll(processes);
+			return partitioned;
+		} catch(IOException e) {
+			for(Process process : processes)
+				process.destroy();
+			throw e;
+		}
+	}
+
+	/**@return the number of shards*/
+	public int shardCount() {
+		return addresses.size();
+	}
+
+	/**@return new connections to every shard*/
+	protected ShardClient[] connect() throws IOException {
+		ShardClient[] shards = new ShardClient[addresses.size()];
+		try {
+			for(int s = 0; s < shards.length; s++)
+				shards[s] = new ShardClient(addresses.get(s));
+		} catch(IOException e) {
+			discard(shards);
+			throw e;
+		}
+		return shards;
+	}
+
+	/**@return idle connections to every shard, new ones if there are none;
+	 * to be given back by release()
+	 * @throws GraphException if the shards cannot be reached, or the graph
+	 * was closed*/
+	protected ShardClient[] acquire() throws GraphException {
+		//counted before checking, so that close() either sees the query or
+		//the query sees close()
+		running.incrementAndGet();
+		if(closed) {
+			finished();
+			throw new GraphException("Graph closed");
+		}
+		ShardClient[] shards = connections.pollFirst();
+		try {
+			return shards != null ? shards : connect();
+		} catch(IOException e) {
+			finished();
+			throw failure(e);
+		}
+	}
+
+	/**Gives the connections of a query back to the pool, or closes them if
+	 * the query failed half way through the protocol or the graph was 
+	 * closed meanwhile*/
+	protected void release(ShardClient[] shards, boolean failed) {
+		if(failed)
+			discard(shards);
+		else {
+			connections.offerFirst(shards);
+			//close() may have emptied the pool before the offer
+			if(closed)
+				closeIdle();
+		}
+		finished();
+	}
+
+	/**Counts the end of a query, waking close() after the last one*/
+	private void finished() {
+		if(running.decrementAndGet() == 0 && closed)
+			synchronized(this) {
+				notifyAll();
+			}
+	}
+
+	/**Closes the idle connections*/
+	private void closeIdle() {
+		ShardClient[] shards;
+		while((shards = connections.pollFirst()) != null)
+			for(ShardClient shard : shards)
+				try {
+					shard.close();
+				} catch(IOException e) {
+					//the shards close their side with the sockets
+					discard(shards);
+				}
+	}
+
+	private static void discard(ShardClient[] shards) {
+		for(ShardClient shard : shards)
+			if(shard != null)
+				try {
+					shard.socket.close();
+				} catch(IOException e) {
+					//closing anyway
+				}
+	}
+
+	/**@return the shard holding vertex v*/
+	protected int shard(int v) {
+		int s = Arrays.binarySearch(bounds, v);
+		//empty shards share their bound with the next one
+		if(s >= 0) {
+			while(s + 1 < bounds.length && bounds[s + 1] == v)
+				++s;
+			return s;
+		}
+		return -s - 2;
+	}
+
+	protected int id(V vertex) throws GraphException {
+		Integer id = ids.get(vertex);
+		if(id == null || id >= vertexCount)
+			throw new GraphException("No such vertex");
+		return rank == null ? id : rank[id];
+	}
+
+	/**Disconnects from the shards, and stops them if they were started by
+	 * launch(). New queries are rejected; queries still running keep their
+	 * connections until they finish, and release() closes them. Launched
+	 * shards are told to stop, over connections of their own, once the
+	 * running queries are done, or after SHUTDOWN_TIMEOUT at most; their
+	 * processes are destroyed if they have not exited SHUTDOWN_TIMEOUT
+	 * later*/
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		closeIdle();
+		if(processes.isEmpty())
+			return;
+		long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		synchronized(this) {
+			long left;
+			while(running.get() > 0 
+					&& (left = deadline - System.currentTimeMillis()) > 0)
+				try {
+					wait(left);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+		}
+		for(InetSocketAddress address : addresses)
+			try {
+				new ShardClient(address).shutdown();
+			} catch(IOException e) {
+				//a shard that cannot be reached is destroyed below
+			}
+		deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+		for(Process process : processes)
+			try {
+				if(!process.waitFor(Math.max(0, deadline 
+						- System.currentTimeMillis()), TimeUnit.MILLISECONDS))
+					process.destroy();
+			} catch(InterruptedException e) {
+				process.destroy();
+				Thread.currentThread().interrupt();
+			}
+	}
+
+	private static GraphException failure(IOException e) {
+		GraphException failure = new GraphException("Shard failure: "
+				+ e.getMessage());
+		failure.initCause(e);
+		return failure;
+	}
+
+	//RoutableGraph interface
+
+	@Override
+	public int costNeighbour(V start, V destination)
+			throws GraphException {
+		int v = id(start);
+		int w = ids.containsKey(destination) ? id(destination) : -1;
+		int weight = -1;
+		if(w >= 0) {
+			ShardClient[] shards = acquire();
+			boolean failed = true;
+			try {
+				weight = shards[shard(v)].weight(v, w);
+				failed = false;
+			} catch(IOException e) {
+				throw failure(e);
+			} finally {
+				release(shards, failed);
+			}
+		}
+		if(weight < 0)
+			throw new GraphException("no such destination vertex");
+		return weight;
+	}
+
+	@Override
+	public int cost(V[] path) throws GraphException {
+		if(path.length <= 1)
+			throw new GraphException("path too short");
+
+		int accumulator = 0;
+		for(int i = 0; i < (path.length - 1); i++)
+			accumulator += costNeighbour(path[i], path[i+1]);
+
+		return accumulator;
+	}
+
+	/**Distributed shortest path, see the class comment. As in
+	 * DirectedWeightedGraph, the path from a vertex to itself is its shortest
+	 * cycle*/
+	@Override
+	public int shortestPath(V start, V destination)
+			throws GraphException {
+		int from = id(start);
+		int to = id(destination);
+		ShardClient[] shards = acquire();
+		boolean failed = true;
+		int distance;
+		try {
+			for(ShardClient shard : shards)
+				shard.sendReset();
+			for(ShardClient shard : shards)
+				shard.receiveEnd();
+
+			//first superstep: the shard of start relaxes its edges
+			ShardClient seeded = shards[shard(from)];
+			seeded.sendSeed(from);
+			long[][] inboxes = route(new long[][]{seeded.receiveDistances()});
+
+			while(inboxes != null) {
+				for(int s = 0; s < shards.length; s++)
+					shards[s].sendRelax(inboxes[s], inboxes[s].length);
+				long[][] outboxes = new long[shards.length][];
+				for(int s = 0; s < shards.length; s++)
+					outboxes[s] = shards[s].receiveDistances();
+				inboxes = route(outboxes);
+			}
+
+			distance = shards[shard(to)].distance(to);
+			failed = false;
+		} catch(IOException e) {
+			throw failure(e);
+		} finally {
+			release(shards, failed);
+		}
+		if(distance == Integer.MAX_VALUE)
+			throw new GraphException("No such path");
+		return distance;
+	}
+
+	/**@return the (vertex, distance) messages of the outboxes sorted by the
+	 * shard of their vertex, null if there are none*/
+	private long[][] route(long[][] outboxes) {
+		int[] counts = new int[shardCount()];
+		int total = 0;
+		for(long[] outbox : outboxes)
+			for(long message : outbox) {
+				++counts[shard((int) (message >>> 32))];
+				++total;
+			}
+		if(total == 0)
+			return null;
+		long[][] inboxes = new long[counts.length][];
+		for(int s = 0; s < counts.length; s++)
+			inboxes[s] = new long[counts[s]];
+		Arrays.fill(counts, 0);
+		for(long[] outbox : outboxes)
+			for(long message : outbox) {
+				int s = shard((int) (message >>> 32));
+				inboxes[s][counts[s]++] = message;
+			}
+		return inboxes;
+	}
+
+	/**Distributed path count, see the class comment; counts the same walks
+	 * as DirectedWeightedGraph.pathsTo()*/
+	@Override
+	public int pathsTo(V start, V destination, int limit,
+			Conditions c) throws GraphException {
+		int from = id(start);
+		int to = id(destination);
+		ShardClient[] shards = acquire();
+		boolean failed = true;
+		try {
+			for(ShardClient shard : shards)
+				shard.sendCount(c, to, limit);
+			for(ShardClient shard : shards)
+				shard.receiveEnd();
+
+			//walks by shard, starting with the empty walk at start
+			ShardClient.WalkBatch[] inboxes =
+					new ShardClient.WalkBatch[shards.length];
+			for(int s = 0; s < shards.length; s++)
+				inboxes[s] = new ShardClient.WalkBatch();
+			inboxes[shard(from)].add(LongHeap.entry(0, from), 1);
+			long accumulator = 0;
+			ShardClient.WalkBatch outbox = new ShardClient.WalkBatch();
+
+			boolean pending = true;
+			while(pending) {
+				for(int s = 0; s < shards.length; s++)
+					shards[s].sendExtend(inboxes[s].walks, inboxes[s].numbers,
+							inboxes[s].size());
+				outbox.clear();
+				for(int s = 0; s < shards.length; s++)
+					accumulator += shards[s].receiveExtend(outbox);
+
+				for(ShardClient.WalkBatch inbox : inboxes)
+					inbox.clear();
+				for(int i = 0; i < outbox.size(); i++)
+					inboxes[shard(LongHeap.vertex(outbox.walks[i]))].add(
+							outbox.walks[i], outbox.numbers[i]);
+				pending = outbox.size() > 0;
+			}
+			failed = false;
+			return (int) accumulator;
+		} catch(IOException e) {
+			throw failure(e);
+		} finally {
+			release(shards, failed);
+		}
+	}
+}
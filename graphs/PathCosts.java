@@ -0,0 +1,125 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**Costs of many paths at once over a CompactGraph, for bulk validation of
+ * recorded routes.<p>
+ *
+ * Paths are given in a flat encoding: the vertex ids (of the snapshot, see
+ * CompactGraph.id()) of all paths one after the other, and the offset of the
+ * first vertex of each path, plus one trailing entry, as in the rows of the
+ * snapshot; path p is vertexIds[pathOffsets[p]] to
+ * vertexIds[pathOffsets[p + 1] - 1]. Each hop is looked up by binary search
+ * in the row of its first vertex (rows are sorted by target), and the paths
+ * are split in ranges of about GRAIN hops, costed in parallel on a fork-join
+ * pool. A path that cannot be costed (a hop that is not an edge, an id that
+ * is not a vertex, fewer than two vertices) gets NO_PATH in place of the
+ * exception thrown by DirectedWeightedGraph.cost(), so one bad path does not
+ * stop the others.*/
+public class PathCosts {
+
+	/**Cost of a path that does not exist in the graph*/
+	public static final int NO_PATH = Integer.MIN_VALUE;
+	/**Number of hops below which a costing task stops splitting*/
+	public static final int GRAIN = 1 << 14;
+
+	protected final CompactGraph<?> graph;
+	protected final ForkJoinPool pool;
+
+	/**Costs paths on the common pool*/
+	public PathCosts(CompactGraph<?> graph) {
+		this(graph, ForkJoinPool.commonPool());
+	}
+
+	/**Costs paths on the argument pool (sequentially if null)*/
+	public PathCosts(CompactGraph<?> graph, ForkJoinPool pool) {
+		this.graph = graph;
+		this.pool = pool;
+	}
+
+	/**@return the cost of each path of the flat encoding (see the class
+	 * comment), NO_PATH for those that cannot be costed
+	 * @throws IllegalArgumentException if the offsets are not increasing or
+	 * out of the range of vertexIds*/
+	public int[] costAll(int[] vertexIds, int[] pathOffsets) {
+		int paths = Math.max(pathOffsets.length - 1, 0);
+		for(int p = 0; p < paths; p++)
+			if(pathOffsets[p] > pathOffsets[p + 1])
+				throw new IllegalArgumentException("Decreasing path offsets");
+		if(paths > 0 && (pathOffsets[0] < 0
+				|| pathOffsets[paths] > vertexIds.length))
+			throw new IllegalArgumentException("Path offsets out of range");
+		int[] costs = new int[paths];
+		Costing task = new Costing(vertexIds, pathOffsets, 0, paths, costs);
+		if(pool == null || paths == 0
+				|| pathOffsets[paths] - pathOffsets[0] <= GRAIN)
+			task.compute();
+		else
+			pool.invoke(task);
+		return costs;
+	}
+
+	/**@return the cost of the path vertexIds[first] to vertexIds[end - 1],
+	 * NO_PATH if it cannot be costed*/
+	public int cost(int[] vertexIds, int first, int end) {
+		if(end - first < 2)
+			return NO_PATH;
+		int n = graph.vertexCount();
+		int[] offsets = graph.offsets;
+		int[] targets = graph.targets;
+		int v = vertexIds[first];
+		if(v < 0 || v >= n)
+			return NO_PATH;
+		int accumulator = 0;
+		for(int i = first + 1; i < end; i++) {
+			int w = vertexIds[i];
+			int e = Arrays.binarySearch(targets, offsets[v], offsets[v + 1], w);
+			if(e < 0)
+				return NO_PATH;
+			accumulator += graph.weights[e];
+			v = w;
+		}
+		return accumulator;
+	}
+
+	/**Costing of a range of paths*/
+	protected class Costing extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		protected final int[] vertexIds;
+		protected final int[] pathOffsets;
+		protected final int from;
+		protected final int to;
+		protected final int[] costs;
+
+		protected Costing(int[] vertexIds, int[] pathOffsets, int from,
+				int to, int[] costs) {
+			this.vertexIds = vertexIds;
+			this.pathOffsets = pathOffsets;
+			this.from = from;
+			this.to = to;
+			this.costs = costs;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from > 1 && pathOffsets[to] - pathOffsets[from] > GRAIN) {
+				//split at the path holding the middle vertex, so that both
+				//halves have about as many hops however long the paths
+				int half = (pathOffsets[from] + pathOffsets[to]) >>> 1;
+				int middle = Arrays.binarySearch(pathOffsets, from, to, half);
+				if(middle < 0)
+					middle = -middle - 1;
+				middle = Math.min(Math.max(middle, from + 1), to - 1);
+				invokeAll(new Costing(vertexIds, pathOffsets, from, middle,
+						costs), new Costing(vertexIds, pathOffsets, middle, to,
+								costs));
+				return;
+			}
+			for(int p = from; p < to; p++)
+				costs[p] = cost(vertexIds, pathOffsets[p], pathOffsets[p + 1]);
+		}
+	}
+}
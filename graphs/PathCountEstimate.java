@@ -0,0 +1,94 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Locale;
+
+/**Estimate of the number of paths between two vertices, with a confidence
+ * interval, see PathCountSampler.<p>
+ *
+ * Counts may exceed the range of double, so the estimate and the bounds of
+ * the interval are held as natural logarithms; estimate(), lower() and
+ * upper() return Double.POSITIVE_INFINITY when they do not fit, and zero is
+ * held as Double.NEGATIVE_INFINITY.*/
+public class PathCountEstimate {
+	protected final double logEstimate;
+	protected final double logLower;
+	protected final double logUpper;
+	protected final double confidence;
+	protected final long samples;
+	protected final boolean converged;
+
+	public PathCountEstimate(double logEstimate, double logLower,
+			double logUpper, double confidence, long samples,
+			boolean converged) {
+		this.logEstimate = logEstimate;
+		this.logLower = logLower;
+		this.logUpper = logUpper;
+		this.confidence = confidence;
+		this.samples = samples;
+		this.converged = converged;
+	}
+
+	/**@return the estimated number of paths*/
+	public double estimate() {
+		return Math.exp(logEstimate);
+	}
+
+	/**@return the lower bound of the confidence interval*/
+	public double lower() {
+		return Math.exp(logLower);
+	}
+
+	/**@return the upper bound of the confidence interval*/
+	public double upper() {
+		return Math.exp(logUpper);
+	}
+
+	/**@return the natural logarithm of estimate()*/
+	public double logEstimate() {
+		return logEstimate;
+	}
+
+	public double logLower() {
+		return logLower;
+	}
+
+	public double logUpper() {
+		return logUpper;
+	}
+
+	/**@return the probability that the interval holds the exact count*/
+	public double confidence() {
+		return confidence;
+	}
+
+	/**@return the number of random walks the estimate is based on*/
+	public long samples() {
+		return samples;
+	}
+
+	/**@return true if the interval is as narrow as requested, false if the
+	 * budget of the estimate ran out first*/
+	public boolean isConverged() {
+		return converged;
+	}
+
+	@Override
+	public String toString() {
+		return format(logEstimate) + " [" + format(logLower) + ", "
+				+ format(logUpper) + "] at " + confidence + " over " + samples
+				+ " samples";
+	}
+
+	/**@return the number with the given natural logarithm in scientific
+	 * notation, whatever its size*/
+	private static String format(double log) {
+		if(log == Double.NEGATIVE_INFINITY)
+			return "0";
+		if(Double.isInfinite(log) || Double.isNaN(log))
+			return String.valueOf(Math.exp(log));
+		double log10 = log / Math.log(10);
+		long exponent = (long) Math.floor(log10);
+		double mantissa = Math.pow(10, log10 - exponent);
+		return String.format(Locale.ROOT, "%.3fe%d", mantissa, exponent);
+	}
+}
@@ -0,0 +1,389 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**Estimates the counts of DirectedWeightedGraph.pathsTo() on a snapshot, for
+ * limits where the exact recursion is out of reach (the count grows
+ * exponentially with the limit, and overflows long long before the
+ * recursion would finish).<p>
+ *
+ * The estimate combines two methods:
+ * <ol>
+ * <li>a table of completions, by dynamic programming: row r holds, for every
+ * vertex, the number of counted walks from it when r edges (or r units of
+ * cost) remain, following the rules of the exact recursion for each
+ * condition (LESSTHAN walks stop at the destination, EXACT walks count only
+ * there after limit edges, COST_LESSTHAN walks count every arrival and go
+ * on). When the table reaches the limit, its entry for the start is the
+ * count itself, to the precision of double</li>
+ * <li>otherwise, random walks from the start: each step picks one of the
+ * edges that can still end in a counted path, with probability proportional
+ * to the completions of its target in the last rows of the table (a small
+ * share goes to targets with no completions there, so that every walk is
+ * possible), and is weighted by the inverse of that probability. Once the
+ * remaining edges or cost fit in the table, the walk ends, weighted by the
+ * completions of its last vertex. The weight of a walk is an unbiased
+ * estimate of the count (importance sampling; Knuth's estimator when the
+ * table is empty). With enough rows the table follows the growth of the
+ * count from each vertex, and the weights of all walks are close</li>
+ * </ol>
+ * Rows of the table are held in scaled form and weights as logarithms, so
+ * nothing overflows. Sampling stops when the confidence interval, from the
+ * normal approximation, is within the requested relative error of the
+ * estimate, or when the budget runs out: each row of the table and each step
+ * of a walk count as expanded edges (as does the start of every walk), and
+ * without a budget at most DEFAULT_STEPS are taken, so the time is bounded
+ * whatever the limit.*/
+public class PathCountSampler {
+	/**Steps taken when no budget is given*/
+	public static final long DEFAULT_STEPS = 1L << 24;
+	/**Samples taken before the interval is trusted*/
+	public static final int MIN_SAMPLES = 100;
+	/**Largest number of entries, and of edges examined, of the table*/
+	public static final int TABLE_CELLS = 1 << 21;
+	public static final long TABLE_WORK = 1L << 23;
+	/**Share of the choices given to targets without completions*/
+	protected static final double UNSEEN = 0.05;
+	/**Rows of the table approximating the completions beyond it*/
+	protected static final int WINDOW = 8;
+
+	protected final CompactGraph<?> graph;
+	protected final Random random;
+	protected final int maxRows;
+	/**Work done by the last estimate, see GraphMetrics*/
+	protected long steps;
+	protected int longestWalk;
+
+	//state of the current estimate
+	protected Conditions condition;
+	protected int to;
+	/**Rows 0 to last of the table, each scaled by exp(-scales[r])*/
+	protected double[][] table;
+	protected double[] scales;
+	protected int last;
+
+	public PathCountSampler(CompactGraph<?> graph, Random random) {
+		this(graph, random, Integer.MAX_VALUE);
+	}
+
+	/**@param maxRows largest number of rows of the table, 0 to sample plain
+	 * random walks*/
+	public PathCountSampler(CompactGraph<?> graph, Random random,
+			int maxRows) {
+		this.graph = graph;
+		this.random = random;
+		this.maxRows = maxRows;
+	}
+
+	/**@param error relative half-width of the interval to reach, e.g. 0.05
+	 * @param confidence probability that the interval holds the count, e.g.
+	 * 0.95
+	 * @param budget limits the number of steps or the time taken (at most
+	 * DEFAULT_STEPS if null)
+	 * @return the estimated number of paths from vertex from to vertex to of
+	 * the snapshot, as counted by pathsTo() with the same limit and
+	 * condition
+	 * @throws IllegalArgumentException if error is not positive or
+	 * confidence is not between 0 and 1*/
+	public PathCountEstimate estimate(int from, int to, int limit,
+			Conditions c, double error, double confidence, QueryBudget budget) {
+		if(!(error > 0))
+			throw new IllegalArgumentException("Error must be positive");
+		if(!(confidence > 0 && confidence < 1))
+			throw new IllegalArgumentException(
+					"Confidence must be between 0 and 1");
+		if(budget == null)
+			budget = QueryBudget.work(Long.MAX_VALUE, DEFAULT_STEPS);
+		steps = 0;
+		longestWalk = 0;
+		condition = c;
+		this.to = to;
+		boolean cost = c == Conditions.COST_LESSTHAN;
+		//walks take at most limit edges, or cost at most limit - 1
+		int reach = cost ? limit - 1 : limit;
+		if(reach < 0)
+			return exact(Double.NEGATIVE_INFINITY, confidence);
+		int[] distances = distances(to, cost);
+		if(!fill(reach, cost, budget))
+			return new PathCountEstimate(Double.NaN, Double.NEGATIVE_INFINITY,
+					Double.POSITIVE_INFINITY, confidence, 0, false);
+		if(reach <= last)
+			return exact(logCompletions(from, reach), confidence);
+
+		double logZ = Math.log(quantile(confidence));
+		double logError = Math.log(error);
+		double[] choices = new double[16];
+		long samples = 0;
+		boolean hit = false;
+		double logSum = Double.NEGATIVE_INFINITY;
+		double logSquares = Double.NEGATIVE_INFINITY;
+		double logMean = Double.NaN;
+		double logHalf = Double.POSITIVE_INFINITY;
+		boolean converged = false;
+		while(!converged) {
+			//one walk
+			double logWeight = 0;
+			double logValue = Double.NEGATIVE_INFINITY;
+			int remaining = reach;
+			int hops = 0;
+			int v = from;
+			//a walk with no step to take still counts as one
+			boolean stopped = budget.exceeded(0, steps, steps) != null;
+			if(!stopped)
+				++steps;
+			while(!stopped && remaining > last) {
+				//completions of the target of each edge that may be taken,
+				//-1 for the others
+				int first = graph.offsets[v];
+				int degree = graph.offsets[v + 1] - first;
+				if(degree > choices.length)
+					choices = new double[Math.max(degree, choices.length << 1)];
+				int unseen = 0;
+				double total = 0;
+				for(int i = 0; i < degree; i++) {
+					int y = graph.targets[first + i];
+					long left = remaining
+							- (cost ? graph.weights[first + i] : 1L);
+					choices[i] = -1;
+					if(distances[y] == Integer.MAX_VALUE
+							|| left - distances[y] < 0)
+						continue;
+					choices[i] = completions(y, (int) left);
+					if(choices[i] == 0)
+						++unseen;
+					total += choices[i];
+				}
+				if(total == 0 && unseen == 0)
+					break;
+
+				//pick an edge, each with a positive probability
+				double seen = unseen == 0 ? 1 : total == 0 ? 0 : 1 - UNSEEN;
+				double pick = random.nextDouble();
+				int chosen = -1;
+				double probability = 0;
+				for(int i = 0; i < degree; i++) {
+					if(choices[i] < 0)
+						continue;
+					chosen = i;
+					probability = choices[i] > 0 ? seen * choices[i] / total
+							: (1 - seen) / unseen;
+					pick -= probability;
+					if(pick < 0)
+						break;
+				}
+
+				if(budget.exceeded(0, steps, steps) != null) {
+					stopped = true;
+					break;
+				}
+				++steps;
+				int e = first + chosen;
+				logWeight -= Math.log(probability);
+				v = graph.targets[e];
+				remaining -= cost ? graph.weights[e] : 1;
+				++hops;
+				//arrivals at the destination, those of EXACT walks are in
+				//row 0 of the table
+				if(v == to && (c != Conditions.EXACT
+						|| (remaining == 0 && last < 0))) {
+					logValue = logAdd(logValue, logWeight);
+					if(c == Conditions.LESSTHAN)
+						break;
+				}
+				//the rest of the walk is counted by the table
+				if(remaining <= last)
+					logValue = logAdd(logValue, logWeight
+							+ logCompletions(v, remaining));
+			}
+			longestWalk = Math.max(longestWalk, hops);
+			//an interrupted walk would bias the estimate
+			if(stopped)
+				break;
+
+			++samples;
+			if(logValue != Double.NEGATIVE_INFINITY) {
+				hit = true;
+				logSum = logAdd(logSum, logValue);
+				logSquares = logAdd(logSquares, 2 * logValue);
+			}
+			double logN = Math.log(samples);
+			logMean = logSum - logN;
+			if(samples < 2)
+				continue;
+			//sample variance, from the first two moments
+			double ratio = hit ? Math.exp(2 * logMean - (logSquares - logN))
+					: 1;
+			double logVariance = ratio >= 1 ? Double.NEGATIVE_INFINITY
+					: logSquares - logN + Math.log1p(-ratio)
+					+ Math.log(samples / (samples - 1.0));
+			logHalf = logZ + 0.5 * (logVariance - logN);
+			converged = samples >= MIN_SAMPLES
+					&& logHalf <= logError + logMean;
+		}
+
+		if(samples == 0)
+			return new PathCountEstimate(Double.NaN, Double.NEGATIVE_INFINITY,
+					Double.POSITIVE_INFINITY, confidence, 0, false);
+		double logUpper = logAdd(logMean, logHalf);
+		double logLower = logHalf < logMean
+				? logMean + Math.log1p(-Math.exp(logHalf - logMean))
+				: Double.NEGATIVE_INFINITY;
+		//a walk that reached the destination is a path
+		if(hit)
+			logLower = Math.max(logLower, 0);
+		return new PathCountEstimate(logMean, logLower, logUpper, confidence,
+				samples, converged);
+	}
+
+	/**@return the estimate of a count known exactly*/
+	private static PathCountEstimate exact(double log, double confidence) {
+		return new PathCountEstimate(log, log, log, confidence, 0, true);
+	}
+
+	/**Fills the rows of the table up to the limit, or as many as the bounds
+	 * on its size allow
+	 * @return false if the budget ran out*/
+	protected boolean fill(int reach, boolean cost, QueryBudget budget) {
+		int n = graph.vertexCount();
+		long work = (long) n + graph.edgeCount();
+		long rows = Math.min(Math.min(reach + 1L, maxRows), Math.min(
+				TABLE_CELLS / Math.max(n, 1), TABLE_WORK / Math.max(work, 1)));
+		//rows of completions by cost need positive weights, as an edge of
+		//weight 0 would make a row depend on itself
+		if(cost)
+			for(int e = 0; e < graph.edgeCount(); e++)
+				if(graph.weights[e] <= 0)
+					rows = 0;
+		table = new double[(int) rows][];
+		scales = new double[(int) rows];
+		last = -1;
+		for(int r = 0; r < rows; r++) {
+			//the row is built only if its last step is within the budget
+			if(budget.exceeded(0, steps + work - 1, steps) != null)
+				return false;
+			steps += work;
+			double scale = r == 0 ? 0 : scales[r - 1];
+			double[] row = new double[n];
+			double max = 0;
+			for(int x = 0; x < n; x++) {
+				double sum = condition == Conditions.EXACT && r == 0 && x == to
+						? 1 : 0;
+				for(int e = graph.offsets[x]; e < graph.offsets[x + 1]; e++) {
+					int left = r - (cost ? graph.weights[e] : 1);
+					if(left >= 0)
+						sum += scaledCompletions(graph.targets[e], left, scale);
+				}
+				row[x] = sum;
+				max = Math.max(max, sum);
+			}
+			if(max > 0) {
+				for(int x = 0; x < n; x++)
+					row[x] /= max;
+				scale += Math.log(max);
+			}
+			table[r] = row;
+			scales[r] = scale;
+			last = r;
+		}
+		return true;
+	}
+
+	/**@return the number of counted walks (from the table, approximated by
+	 * its last rows when left is beyond it) after moving to y with the given
+	 * edges or cost left, arrival at y included, scaled by exp(-scale)*/
+	private double scaledCompletions(int y, int left, double scale) {
+		double count = 0;
+		if(y == to) {
+			if(condition == Conditions.LESSTHAN)
+				return Math.exp(-scale);
+			if(condition == Conditions.COST_LESSTHAN)
+				count = Math.exp(-scale);
+		}
+		if(left <= last)
+			return count + table[left][y] * Math.exp(scales[left] - scale);
+		//beyond the table, the last rows together: where walks are only
+		//possible with some numbers of edges (e.g. a cycle of two), a single
+		//row would miss them
+		for(int r = Math.max(last - WINDOW + 1, 0); r <= last; r++)
+			count += table[r][y] * Math.exp(scales[r] - scale);
+		return count;
+	}
+
+	/**@return scaledCompletions() relative to the last row*/
+	private double completions(int y, int left) {
+		return scaledCompletions(y, left, last < 0 ? 0 : scales[last]);
+	}
+
+	/**@return the log of the number of counted walks from vertex v with r
+	 * edges or cost left, from row r of the table (arrival at v excluded)*/
+	private double logCompletions(int v, int r) {
+		return Math.log(table[r][v]) + scales[r];
+	}
+
+	/**@return the distance from every vertex to the argument one, in edges
+	 * or in cost, Integer.MAX_VALUE if it cannot be reached*/
+	protected int[] distances(int to, boolean cost) {
+		graph.transpose();
+		int n = graph.vertexCount();
+		int[] distances = new int[n];
+		Arrays.fill(distances, Integer.MAX_VALUE);
+		distances[to] = 0;
+		//Dijkstra's algorithm over the incoming edges, with unit weights in
+		//place of the weights when counting edges
+		LongHeap heap = new LongHeap(64);
+		heap.add(LongHeap.entry(0, to));
+		while(!heap.isEmpty()) {
+			long entry = heap.poll();
+			int w = LongHeap.vertex(entry);
+			int distance = LongHeap.priority(entry);
+			if(distance > distances[w])
+				continue;
+			for(int e = graph.inOffsets[w]; e < graph.inOffsets[w + 1]; e++) {
+				int v = graph.sources[e];
+				long candidate = distance + (cost ? weight(v, w) : 1L);
+				if(candidate < distances[v]) {
+					distances[v] = (int) candidate;
+					heap.add(LongHeap.entry(distances[v], v));
+				}
+			}
+		}
+		return distances;
+	}
+
+	/**@return the weight of the edge v, w (rows are sorted by target)*/
+	private int weight(int v, int w) {
+		return graph.weights[Arrays.binarySearch(graph.targets,
+				graph.offsets[v], graph.offsets[v + 1], w)];
+	}
+
+	/**@return log(exp(a) + exp(b)), without overflow*/
+	static double logAdd(double a, double b) {
+		if(a == Double.NEGATIVE_INFINITY)
+			return b;
+		if(b == Double.NEGATIVE_INFINITY)
+			return a;
+		double max = Math.max(a, b);
+		return max + Math.log1p(Math.exp(Math.min(a, b) - max));
+	}
+
+	/**@return the two-sided quantile of the standard normal distribution for
+	 * the given confidence (Abramowitz and Stegun 26.2.23, error below
+	 * 4.5e-4)*/
+	static double quantile(double confidence) {
+		double p = (1 - confidence) / 2;
+		double t = Math.sqrt(-2 * Math.log(p));
+		return t - (2.515517 + 0.802853 * t + 0.010328 * t * t)
+				/ (1 + 1.432788 * t + 0.189269 * t * t + 0.001308 * t * t * t);
+	}
+
+	/**@return the number of steps taken by the last estimate*/
+	public long steps() {
+		return steps;
+	}
+
+	/**@return the number of edges of the longest walk of the last estimate*/
+	public int longestWalk() {
+		return longestWalk;
+	}
+}
@@ -0,0 +1,97 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**State of a single pathsTo() query, threaded through the recursion of
+ * DirectedWeightedGraph.<p>
+ * 
+ * Holds the vertices worth exploring (those that can still lead to the 
+ * destination), one edge cursor per recursion depth, reused by every step 
+ * at that depth, and counts the work done by the query, see GraphMetrics. 
+ * The recursion unwinds as soon as the budget of the query, if any, is 
+ * exhausted.*/
+public class PathsToQuery<V> {
+	protected final DirectedWeightedGraph<V, ?> graph;
+	/**Cursors by recursion depth, created on first use*/
+	protected EdgeCursor<V>[] cursors;
+	/**Vertices the recursion may enter, or null for all of them*/
+	protected final Set<V> reaching;
+	/**Number of edges examined so far*/
+	protected long expanded;
+	/**Current and deepest recursion depth*/
+	protected int depth;
+	protected int maxDepth;
+	/**Budget of the query, null if unlimited*/
+	protected final QueryBudget budget;
+	/**Limit the query reached, null while within budget*/
+	protected QueryBudget.Limit exceeded;
+	
+	public PathsToQuery(DirectedWeightedGraph<V, ?> graph, Set<V> reaching) {
+		this(graph, reaching, null);
+	}
+	
+	public PathsToQuery(DirectedWeightedGraph<V, ?> graph, Set<V> reaching,
+			QueryBudget budget) {
+		this.graph = graph;
+		this.reaching = reaching;
+		this.budget = budget;
+		cursors = cursors(16);
+	}
+	
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <V> EdgeCursor<V>[] cursors(int length) {
+		return new EdgeCursor[length];
+	}
+	
+	/**@return true once the query has exhausted its budget, checked before
+	 * expanding every edge*/
+	public boolean stopped() {
+		if(budget == null)
+			return false;
+		if(exceeded == null)
+			exceeded = budget.exceeded(0, expanded, expanded);
+		return exceeded != null;
+	}
+	
+	/**@return the limit the query reached, null if within budget*/
+	public QueryBudget.Limit exceeded() {
+		return exceeded;
+	}
+	
+	/**@return true if the recursion should enter vertex v*/
+	public boolean admits(V v) {
+		return reaching == null || reaching.contains(v);
+	}
+	
+	/**Called on entry to every recursion step*/
+	public void enter() {
+		if(++depth > maxDepth)
+			maxDepth = depth;
+	}
+	
+	/**@return the cursor for the current recursion depth*/
+	public EdgeCursor<V> cursor() {
+		if(depth >= cursors.length)
+			cursors = Arrays.copyOf(cursors, Math.max(depth + 1, 
+					cursors.length << 1));
+		if(cursors[depth] == null)
+			cursors[depth] = graph.cursor();
+		return cursors[depth];
+	}
+	
+	/**Called on exit from every recursion step*/
+	public void exit() {
+		--depth;
+	}
+	
+	/**@return the number of edges examined*/
+	public long expanded() {
+		return expanded;
+	}
+	
+	/**@return the deepest recursion depth reached*/
+	public int maxDepth() {
+		return maxDepth;
+	}
+}
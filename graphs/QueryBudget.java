@@ -0,0 +1,86 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.concurrent.TimeUnit;
+
+/**Limits on the work a query may do: a deadline, a number of settled 
+ * vertices, a number of expanded edges, and cancellation from another 
+ * thread.<p>
+ * 
+ * The deadline runs from the construction of the budget, so a single budget
+ * can bound a request spanning several queries. Queries compare their 
+ * counters with the budget at every step, but only read the clock and the 
+ * cancellation flag every CHECK_INTERVAL steps, keeping the cost of the 
+ * checks negligible in the inner loops. A query that runs out of budget 
+ * throws a QueryBudgetExceededException carrying its best-effort result.*/
+public class QueryBudget {
+	
+	/**Limit reached by a query*/
+	public enum Limit {
+		DEADLINE,
+		SETTLED,
+		EXPANDED,
+		CANCELLED
+	}
+	
+	/**Number of steps between two reads of the clock (a power of 2)*/
+	public static final int CHECK_INTERVAL = 1024;
+	
+	/**Deadline as a System.nanoTime() value, meaningless if !timed*/
+	protected final long deadline;
+	protected final boolean timed;
+	protected final long maxSettled;
+	protected final long maxExpanded;
+	protected volatile boolean cancelled;
+	
+	/**@param timeout time allowed, from now, negative for no deadline
+	 * @param maxSettled largest number of vertices a query may settle
+	 * @param maxExpanded largest number of edges a query may expand*/
+	public QueryBudget(long timeout, TimeUnit unit, long maxSettled, 
+			long maxExpanded) {
+		timed = timeout >= 0;
+		deadline = timed ? System.nanoTime() + unit.toNanos(timeout) : 0;
+		this.maxSettled = maxSettled;
+		this.maxExpanded = maxExpanded;
+	}
+	
+	/**@return a budget limited by a deadline only*/
+	public static QueryBudget timeout(long timeout, TimeUnit unit) {
+		return new QueryBudget(timeout, unit, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+	
+	/**@return a budget limited by the amount of work only*/
+	public static QueryBudget work(long maxSettled, long maxExpanded) {
+		return new QueryBudget(-1, TimeUnit.NANOSECONDS, maxSettled, 
+				maxExpanded);
+	}
+	
+	/**Stops the queries running on this budget at their next check*/
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	
+	/**Called before each unit of work, so a budget of N lets exactly N
+	 * through
+	 * @param settled vertices settled by the query so far
+	 * @param expanded edges expanded by the query so far
+	 * @param step number of the step of the query, the clock and the 
+	 * cancellation flag are checked when it is a multiple of CHECK_INTERVAL
+	 * @return the limit reached, null if the query is within budget*/
+	public Limit exceeded(long settled, long expanded, long step) {
+		if(settled >= maxSettled)
+			return Limit.SETTLED;
+		if(expanded >= maxExpanded)
+			return Limit.EXPANDED;
+		if((step & (CHECK_INTERVAL - 1)) == 0) {
+			if(cancelled)
+				return Limit.CANCELLED;
+			if(timed && System.nanoTime() - deadline >= 0)
+				return Limit.DEADLINE;
+		}
+		return null;
+	}
+}
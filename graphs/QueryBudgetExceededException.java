@@ -0,0 +1,31 @@
+package uk.ac.ucl.ucabter.graphs;
+
+/**Thrown by a query that ran out of its QueryBudget.<p>
+ * Carries the best-effort result of the query when it was stopped: for 
+ * shortestPath(), the length of the shortest path found so far (an upper 
+ * bound, Integer.MAX_VALUE if none was found), for pathsTo() the number of 
+ * paths counted so far (a lower bound).*/
+public class QueryBudgetExceededException extends GraphException {
+
+	private static final long serialVersionUID = 1L;
+	
+	protected final QueryBudget.Limit limit;
+	protected final int partialResult;
+
+	public QueryBudgetExceededException(QueryBudget.Limit limit, 
+			int partialResult) {
+		super("Query budget exceeded: " + limit);
+		this.limit = limit;
+		this.partialResult = partialResult;
+	}
+	
+	/**@return the limit the query reached*/
+	public QueryBudget.Limit getLimit() {
+		return limit;
+	}
+	
+	/**@return the best-effort result of the query, see the class comment*/
+	public int getPartialResult() {
+		return partialResult;
+	}
+}
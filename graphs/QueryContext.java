@@ -0,0 +1,224 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**Working state of a single-source search (distances, predecessors, visited
+ * vertices and priority queue), indexed by the vertex ids of a snapshot.<p>
+ *
+ * Contexts are pooled (see acquire()) and the arrays are never cleared:
+ * every search starts a new epoch, and an entry stamped with an earlier epoch
+ * reads as unreached, so starting a search costs nothing whatever the size of
+ * the graph. Like IntStack and LongHeap, the arrays only grow, so once the
+ * pooled contexts have searched the largest graph queried, searches no longer
+ * allocate.<p>
+ *
+ * The pool is a free-list shared by all threads rather than one context per
+ * thread, so that servers running each request on a new (virtual) thread
+ * reuse contexts too. It keeps at most POOL_SIZE idle contexts, the most
+ * recently released first: when more searches run at once, the extra ones
+ * allocate a context that is dropped when they end. The pool may therefore
+ * hold POOL_SIZE contexts sized for the largest graph searched.*/
+public class QueryContext {
+
+	/**Edges of the graph searched by search()*/
+	public interface Relaxation {
+		/**Calls relax() on the context for each edge leaving v, v being
+		 * reached at the given distance
+		 * @return the number of edges relaxed*/
+		public int relax(QueryContext context, int v, int distance);
+	}
+
+	/**Largest number of idle contexts kept for reuse*/
+	public static final int POOL_SIZE =
+			4 * Runtime.getRuntime().availableProcessors();
+
+	private static final ConcurrentLinkedDeque<QueryContext> POOL =
+			new ConcurrentLinkedDeque<QueryContext>();
+	/**Number of contexts in POOL, which the deque does not count in
+	 * constant time*/
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	protected int[] distances;
+	protected int[] predecessors;
+	/**Epoch in which the distance of each vertex was last set, and in which
+	 * it was settled*/
+	protected int[] reached;
+	protected int[] visited;
+	protected int epoch;
+	protected final LongHeap heap = new LongHeap(64);
+	/**True while the context is held by a search*/
+	protected boolean busy;
+	/**Work of the last search(), and the limit of the budget it reached*/
+	protected long settled;
+	protected long relaxed;
+	protected QueryBudget.Limit exceeded;
+
+	public QueryContext(int capacity) {
+		capacity = Math.max(capacity, 1);
+		distances = new int[capacity];
+		predecessors = new int[capacity];
+		reached = new int[capacity];
+		visited = new int[capacity];
+	}
+
+	/**@return an idle context of the pool, or a new one if there is none,
+	 * ready for a search over vertexCount vertices; must be given back with
+	 * release(). Contexts held by other searches (e.g. one this search is
+	 * nested in) are never handed out*/
+	public static QueryContext acquire(int vertexCount) {
+		QueryContext context = POOL.pollFirst();
+		if(context == null)
+			context = new QueryContext(vertexCount);
+		else
+			pooled.decrementAndGet();
+		context.busy = true;
+		context.begin(vertexCount);
+		return context;
+	}
+
+	/**Gives the context back to the pool, unless it is full*/
+	public void release() {
+		if(!busy)
+			return;
+		busy = false;
+		if(pooled.incrementAndGet() <= POOL_SIZE)
+			POOL.offerFirst(this);
+		else
+			pooled.decrementAndGet();
+	}
+
+	/**Starts a new search: every vertex is unreached and unvisited, the heap
+	 * is empty*/
+	public void begin(int vertexCount) {
+		if(vertexCount > reached.length) {
+			int capacity = Math.max(vertexCount, reached.length << 1);
+			distances = Arrays.copyOf(distances, capacity);
+			predecessors = Arrays.copyOf(predecessors, capacity);
+			reached = Arrays.copyOf(reached, capacity);
+			visited = Arrays.copyOf(visited, capacity);
+		}
+		heap.clear();
+		if(++epoch == Integer.MAX_VALUE) {
+			//stamps of earlier epochs would be mistaken for current ones
+			Arrays.fill(reached, 0);
+			Arrays.fill(visited, 0);
+			epoch = 1;
+		}
+	}
+
+	/**@return the distance recorded for v in this search, Integer.MAX_VALUE
+	 * if it has not been reached*/
+	public int distance(int v) {
+		return reached[v] == epoch ? distances[v] : Integer.MAX_VALUE;
+	}
+
+	/**@return the vertex v was reached from in this search, -1 if it has not
+	 * been reached*/
+	public int predecessor(int v) {
+		return reached[v] == epoch ? predecessors[v] : -1;
+	}
+
+	/**Records a path to v of the given length through predecessor, and
+	 * queues v at that distance*/
+	public void reach(int v, int distance, int predecessor) {
+		record(v, distance, predecessor);
+		heap.add(LongHeap.entry(distance, v));
+	}
+
+	/**Records a path to v of the given length through predecessor, without
+	 * queueing v, for searches that pick the next vertex by scanning*/
+	public void record(int v, int distance, int predecessor) {
+		reached[v] = epoch;
+		distances[v] = distance;
+		predecessors[v] = predecessor;
+	}
+
+	/**Records a path to w of the given length through v and queues w, if
+	 * it is shorter than the one recorded*/
+	public void relax(int w, int distance, int v) {
+		if(distance < distance(w))
+			reach(w, distance, v);
+	}
+
+	/**Dijkstra's algorithm with the heap of the context, from vertex from
+	 * reached at distance origin (0, or e.g. a departure time) to vertex to,
+	 * leaving distances and predecessors in the context. from is not settled
+	 * first, so that it can be reached by a cycle: the path from a vertex to
+	 * itself is its shortest cycle
+	 * @param budget checked before settling each vertex, unlimited if null
+	 * @return the distance of to, Integer.MAX_VALUE if it was not reached;
+	 * if the budget ran out (see exceeded()), the distance recorded for to so
+	 * far*/
+	public int search(int from, int origin, int to, Relaxation edges,
+			QueryBudget budget) {
+		settled = 0;
+		relaxed = edges.relax(this, from, origin);
+		exceeded = null;
+		while(!heap.isEmpty()) {
+			long entry = heap.poll();
+			int v = LongHeap.vertex(entry);
+			if(isVisited(v))
+				continue;
+			if(budget != null) {
+				exceeded = budget.exceeded(settled, relaxed, settled);
+				if(exceeded != null)
+					break;
+			}
+			visit(v);
+			++settled;
+			if(v == to)
+				return LongHeap.priority(entry);
+			relaxed += edges.relax(this, v, LongHeap.priority(entry));
+		}
+		return distance(to);
+	}
+
+	/**Settles the closest vertex not yet settled and relaxes its edges, for
+	 * searches that settle vertices on demand, started by reach()
+	 * @return the vertex settled, -1 if none is left or the closest is
+	 * further than max*/
+	public int settleNext(Relaxation edges, int max) {
+		while(!heap.isEmpty() && LongHeap.priority(heap.peek()) <= max) {
+			long entry = heap.poll();
+			int v = LongHeap.vertex(entry);
+			if(isVisited(v))
+				continue;
+			visit(v);
+			edges.relax(this, v, LongHeap.priority(entry));
+			return v;
+		}
+		return -1;
+	}
+
+	/**@return the number of vertices settled by the last search()*/
+	public long settled() {
+		return settled;
+	}
+
+	/**@return the number of edges relaxed by the last search()*/
+	public long relaxed() {
+		return relaxed;
+	}
+
+	/**@return the limit the last search() reached, null if it was within its
+	 * budget*/
+	public QueryBudget.Limit exceeded() {
+		return exceeded;
+	}
+
+	/**@return true if v has been settled in this search*/
+	public boolean isVisited(int v) {
+		return visited[v] == epoch;
+	}
+
+	public void visit(int v) {
+		visited[v] = epoch;
+	}
+
+	/**@return the priority queue of the search, empty when it begins*/
+	public LongHeap heap() {
+		return heap;
+	}
+}
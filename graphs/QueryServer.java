@@ -0,0 +1,407 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**HTTP/JSON server answering queries on a ConcurrentDirectedWeightedGraph.<p>
+ *
+ * Endpoints (GET, parameters in the query string, vertices parsed by the
+ * VertexFormat of the server):
+ * <ul>
+ * <li>/shortestPath?from=A&amp;to=B[&amp;timeoutMillis=50]: {"distance": 12}</li>
+ * <li>/pathsTo?from=A&amp;to=B&amp;limit=3&amp;condition=LESSTHAN[&amp;timeoutMillis=50]:
+ * {"paths": 4}</li>
+ * <li>/cost?path=A,B,C: {"cost": 9}</li>
+ * <li>/stats: request counts, throughput and latency percentiles</li>
+ * </ul>
+ * Errors are answered with {"error": message}: 400 for malformed requests,
+ * 404 for missing vertices or paths, 503 with the partial result when a
+ * query runs out of time.<p>
+ *
+ * Each request runs on its own virtual thread when the runtime has them
+ * (Java 21 and later), on a cached thread pool otherwise. A shortestPath
+ * request runs Dijkstra's algorithm, which stops at its destination, unless
+ * another request from the same vertex is already searching: concurrent
+ * requests from one vertex are then coalesced, the first of them computes the
+ * distances from that vertex to every other in a single run (see
+ * ConcurrentDirectedWeightedGraph.distancesFrom()), the others wait for it
+ * and read their destination from the same result. A request arriving while
+ * a run is in progress may therefore be answered from the snapshot that run
+ * started on. The run goes on the executor of the server, so that every
+ * request waits for it at most its timeoutMillis, the one that started it
+ * included; the run completes for the requests still waiting.*/
+public class QueryServer {
+
+	/**Conversion of the vertices of the graph from request parameters*/
+	public interface VertexFormat<V> {
+		/**@throws IllegalArgumentException if text is not a vertex*/
+		V parse(String text);
+	}
+
+	public static final VertexFormat<String> STRINGS = new VertexFormat<String>() {
+		@Override
+		public String parse(String text) {
+			return text;
+		}
+	};
+
+	public static final VertexFormat<Integer> INTEGERS = new VertexFormat<Integer>() {
+		@Override
+		public Integer parse(String text) {
+			return Integer.valueOf(text);
+		}
+	};
+
+	protected final ConcurrentDirectedWeightedGraph<?> graph;
+	protected final HttpServer server;
+	protected final ExecutorService executor;
+
+	//statistics
+	protected final long started = System.nanoTime();
+	protected final LatencyHistogram[] latencies =
+			new LatencyHistogram[GraphMetrics.QueryType.values().length];
+	protected final LongAdder errors = new LongAdder();
+	protected final LongAdder coalesced = new LongAdder();
+
+	/**Serves the graph on the port of the local host, 0 for any free port.
+	 * The server is started by start()*/
+	public <V> QueryServer(final ConcurrentDirectedWeightedGraph<V> graph,
+			final VertexFormat<V> format, int port) throws IOException {
+		this.graph = graph;
+		for(int i = 0; i < latencies.length; i++)
+			latencies[i] = new LatencyHistogram();
+		server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), port), 0);
+		executor = newExecutor();
+		server.setExecutor(executor);
+
+		final ConcurrentMap<V, SourceRun<V>> runs =
+				new ConcurrentHashMap<V, SourceRun<V>>();
+		final Set<V> searching = Collections.newSetFromMap(
+				new ConcurrentHashMap<V, Boolean>());
+		server.createContext("/shortestPath", new QueryHandler(
+				GraphMetrics.QueryType.SHORTEST_PATH) {
+			@Override
+			protected String answer(Map<String, String> parameters)
+					throws GraphException {
+				V from = vertex(graph, format, required(parameters, "from"));
+				V to = vertex(graph, format, required(parameters, "to"));
+				return "{\"distance\": " + distance(graph, runs, searching,
+						from, to, budget(parameters)) + "}";
+			}
+		});
+		server.createContext("/pathsTo", new QueryHandler(
+				GraphMetrics.QueryType.PATHS_TO) {
+			@Override
+			protected String answer(Map<String, String> parameters)
+					throws GraphException {
+				V from = vertex(graph, format, required(parameters, "from"));
+				V to = vertex(graph, format, required(parameters, "to"));
+				int limit = Integer.parseInt(required(parameters, "limit"));
+				Conditions c = Conditions.valueOf(
+						required(parameters, "condition"));
+				return "{\"paths\": " + graph.pathsTo(from, to, limit, c,
+						budget(parameters)) + "}";
+			}
+		});
+		server.createContext("/cost", new QueryHandler(
+				GraphMetrics.QueryType.COST) {
+			@Override
+			protected String answer(Map<String, String> parameters)
+					throws GraphException {
+				String[] names = required(parameters, "path").split(",");
+				@SuppressWarnings("unchecked")
+				V[] path = (V[]) new Object[names.length];
+				for(int i = 0; i < names.length; i++)
+					path[i] = vertex(graph, format, names[i]);
+				return "{\"cost\": " + graph.cost(path) + "}";
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, stats());
+			}
+		});
+	}
+
+	/**@return an executor running each task on a new virtual thread, or a
+	 * cached thread pool where virtual threads are not available*/
+	protected static ExecutorService newExecutor() {
+		try {
+			//looked up reflectively, so that the class runs on older runtimes
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**Stops accepting requests, and waits at most delay seconds for the
+	 * current ones to complete*/
+	public void stop(int delay) {
+		server.stop(delay);
+		executor.shutdown();
+	}
+
+	/**@return the port the server listens on*/
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**@return the vertex of the graph named by text: the instance held by the
+	 * graph, as pathsTo() compares terminals by identity
+	 * @throws GraphException if there is no such vertex*/
+	protected static <V> V vertex(ConcurrentDirectedWeightedGraph<V> graph,
+			VertexFormat<V> format, String text) throws GraphException {
+		CompactGraph<V> snapshot = graph.compact();
+		int id = snapshot.id(format.parse(text));
+		if(id < 0)
+			throw new GraphException("No such vertex " + text);
+		return snapshot.label(id);
+	}
+
+	/**@return the budget of the timeoutMillis parameter, null if absent*/
+	protected static QueryBudget budget(Map<String, String> parameters) {
+		String timeout = parameters.get("timeoutMillis");
+		return timeout == null ? null : QueryBudget.timeout(
+				Long.parseLong(timeout), TimeUnit.MILLISECONDS);
+	}
+
+	/**Distances from one source, computed once for every request that asks
+	 * for them while they are being computed*/
+	protected static class SourceRun<V> {
+		protected final CountDownLatch done = new CountDownLatch(1);
+		protected ConcurrentDirectedWeightedGraph.SourceDistances<V> result;
+		protected GraphException failure;
+
+		/**@param budget bounds the wait by its deadline, if any
+		 * @throws QueryBudgetExceededException if the deadline passes first,
+		 * with Integer.MAX_VALUE as partial result*/
+		protected ConcurrentDirectedWeightedGraph.SourceDistances<V> await(
+				QueryBudget budget) throws GraphException {
+			try {
+				if(budget == null || !budget.timed)
+					done.await();
+				else if(!done.await(budget.deadline - System.nanoTime(),
+						TimeUnit.NANOSECONDS))
+					throw new QueryBudgetExceededException(
+							QueryBudget.Limit.DEADLINE, Integer.MAX_VALUE);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new GraphException("Interrupted");
+			}
+			if(failure != null)
+				throw new GraphException(failure.getMessage());
+			return result;
+		}
+	}
+
+	/**@return the length of the shortest path from source to destination:
+	 * from the run in progress for source if there is one, by an early exit
+	 * search if no other request from source is searching, from a new run
+	 * otherwise
+	 * @throws GraphException if there is no path*/
+	protected <V> int distance(ConcurrentDirectedWeightedGraph<V> graph,
+			ConcurrentMap<V, SourceRun<V>> runs, Set<V> searching, V source,
+			V destination, QueryBudget budget) throws GraphException {
+		if(!runs.containsKey(source) && searching.add(source)) {
+			try {
+				return graph.shortestPath(source, destination, budget);
+			} finally {
+				searching.remove(source);
+			}
+		}
+		int distance = distancesFrom(graph, runs, source, budget).distance(
+				destination);
+		if(distance == Integer.MAX_VALUE)
+			throw new GraphException("No such path");
+		return distance;
+	}
+
+	/**@return the distances from source, joining the run in progress for
+	 * the same source if there is one, or starting one on the executor
+	 * @throws QueryBudgetExceededException if the deadline of the budget
+	 * passes before the run completes*/
+	protected <V> ConcurrentDirectedWeightedGraph.SourceDistances<V> distancesFrom(
+			final ConcurrentDirectedWeightedGraph<V> graph,
+			final ConcurrentMap<V, SourceRun<V>> runs, final V source,
+			QueryBudget budget) throws GraphException {
+		final SourceRun<V> run = new SourceRun<V>();
+		SourceRun<V> running = runs.putIfAbsent(source, run);
+		if(running != null) {
+			coalesced.increment();
+			return running.await(budget);
+		}
+		Runnable pass = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					run.result = graph.distancesFrom(source);
+				} catch(GraphException e) {
+					run.failure = e;
+				} finally {
+					finish(runs, source, run);
+				}
+			}
+		};
+		try {
+			executor.execute(pass);
+		} catch(RejectedExecutionException e) {
+			run.failure = new GraphException("Server stopped");
+			finish(runs, source, run);
+		}
+		return run.await(budget);
+	}
+
+	/**Completes a run, failed if it has no result*/
+	private static <V> void finish(ConcurrentMap<V, SourceRun<V>> runs,
+			V source, SourceRun<V> run) {
+		if(run.result == null && run.failure == null)
+			run.failure = new GraphException("Query failed");
+		//later requests start a new run, on the latest snapshot
+		runs.remove(source, run);
+		run.done.countDown();
+	}
+
+	/**@return the statistics of the server, as JSON*/
+	public String stats() {
+		double seconds = (System.nanoTime() - started) / 1e9;
+		long requests = 0;
+		for(LatencyHistogram latency : latencies)
+			requests += latency.count();
+		StringBuilder json = new StringBuilder("{");
+		json.append("\"uptimeSeconds\": ").append(String.format(Locale.ROOT,
+				"%.3f", seconds));
+		json.append(", \"requests\": ").append(requests);
+		json.append(", \"throughput\": ").append(String.format(Locale.ROOT, "%.1f",
+				requests / Math.max(seconds, 1e-9)));
+		json.append(", \"errors\": ").append(errors.sum());
+		json.append(", \"coalesced\": ").append(coalesced.sum());
+		for(GraphMetrics.QueryType type : GraphMetrics.QueryType.values()) {
+			LatencyHistogram latency = latencies[type.ordinal()];
+			json.append(", ").append(quote(type.name())).append(": {");
+			json.append("\"count\": ").append(latency.count());
+			json.append(", \"p50Micros\": ").append(latency.percentile(50) / 1000);
+			json.append(", \"p99Micros\": ").append(latency.percentile(99) / 1000);
+			json.append(", \"maxMicros\": ").append(latency.max() / 1000);
+			json.append("}");
+		}
+		return json.append("}").toString();
+	}
+
+	/**Handler of a query endpoint: parses the parameters, times the query,
+	 * and turns exceptions into error responses*/
+	protected abstract class QueryHandler implements HttpHandler {
+		protected final GraphMetrics.QueryType type;
+
+		protected QueryHandler(GraphMetrics.QueryType type) {
+			this.type = type;
+		}
+
+		/**@return the JSON answer to the request*/
+		protected abstract String answer(Map<String, String> parameters)
+				throws GraphException;
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			long begin = System.nanoTime();
+			int status = 200;
+			String body;
+			try {
+				body = answer(parameters(exchange.getRequestURI().getRawQuery()));
+			} catch(QueryBudgetExceededException e) {
+				status = 503;
+				body = "{\"error\": " + quote(e.getMessage())
+						+ ", \"partial\": " + e.getPartialResult() + "}";
+			} catch(GraphException e) {
+				status = 404;
+				body = error(e);
+			} catch(IllegalArgumentException e) {
+				status = 400;
+				body = error(e);
+			}
+			if(status != 200)
+				errors.increment();
+			latencies[type.ordinal()].record(System.nanoTime() - begin);
+			respond(exchange, status, body);
+		}
+	}
+
+	private static String error(Exception e) {
+		return "{\"error\": " + quote(String.valueOf(e.getMessage())) + "}";
+	}
+
+	protected static void respond(HttpExchange exchange, int status,
+			String body) throws IOException {
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	protected static String required(Map<String, String> parameters,
+			String name) {
+		String value = parameters.get(name);
+		if(value == null)
+			throw new IllegalArgumentException("Missing parameter " + name);
+		return value;
+	}
+
+	protected static Map<String, String> parameters(String query)
+			throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		if(query == null)
+			return parameters;
+		for(String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if(equals > 0)
+				parameters.put(URLDecoder.decode(pair.substring(0, equals),
+						"UTF-8"), URLDecoder.decode(pair.substring(equals + 1),
+								"UTF-8"));
+		}
+		return parameters;
+	}
+
+	/**@return the string as a JSON string literal*/
+	protected static String quote(String text) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for(int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if(c < 0x20)
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
@@ -0,0 +1,189 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**Connection of the coordinator to a ShardServer.<p>
+ *
+ * Requests are split into a send and a receive half, so that the coordinator
+ * can send a superstep to every shard before waiting for any of them, and the
+ * shards work in parallel. See ShardServer for the protocol.*/
+public class ShardClient implements Closeable {
+	protected final Socket socket;
+	protected final DataInputStream in;
+	protected final DataOutputStream out;
+
+	public ShardClient(InetSocketAddress address) throws IOException {
+		socket = new Socket();
+		socket.connect(address);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+	}
+
+	/**Sends the vertices first to first + count - 1 of the graph, and their
+	 * edges, to the shard*/
+	public void load(CompactGraph<?> graph, int first, int count)
+			throws IOException {
+		out.writeByte(ShardServer.LOAD);
+		out.writeInt(first);
+		out.writeInt(count);
+		for(int v = first; v < first + count; v++) {
+			out.writeInt(graph.degree(v));
+			for(int e = graph.firstEdge(v); e < graph.endEdge(v); e++) {
+				out.writeInt(graph.target(e));
+				out.writeInt(graph.weight(e));
+			}
+		}
+		receiveEnd();
+	}
+
+	public void sendReset() throws IOException {
+		out.writeByte(ShardServer.RESET);
+		out.flush();
+	}
+
+	public void sendSeed(int vertex) throws IOException {
+		out.writeByte(ShardServer.SEED);
+		out.writeInt(vertex);
+		out.flush();
+	}
+
+	/**Sends count (vertex, distance) messages, packed as in ShardServer.Outbox*/
+	public void sendRelax(long[] messages, int count) throws IOException {
+		out.writeByte(ShardServer.RELAX);
+		out.writeInt(count);
+		for(int i = 0; i < count; i++) {
+			out.writeInt((int) (messages[i] >>> 32));
+			out.writeInt((int) messages[i]);
+		}
+		out.flush();
+	}
+
+	/**Receives the answer to SEED or RELAX
+	 * @return the (vertex, distance) messages for other shards, packed as in
+	 * ShardServer.Outbox*/
+	public long[] receiveDistances() throws IOException {
+		long[] messages = new long[in.readInt()];
+		for(int i = 0; i < messages.length; i++) {
+			long vertex = in.readInt();
+			messages[i] = (vertex << 32) | (in.readInt() & 0xFFFFFFFFL);
+		}
+		receiveEnd();
+		return messages;
+	}
+
+	public int distance(int vertex) throws IOException {
+		out.writeByte(ShardServer.DISTANCE);
+		out.writeInt(vertex);
+		out.flush();
+		int distance = in.readInt();
+		receiveEnd();
+		return distance;
+	}
+
+	/**@return the weight of edge (v, w), -1 if there is no such edge*/
+	public int weight(int v, int w) throws IOException {
+		out.writeByte(ShardServer.WEIGHT);
+		out.writeInt(v);
+		out.writeInt(w);
+		out.flush();
+		int weight = in.readInt();
+		receiveEnd();
+		return weight;
+	}
+
+	public void sendCount(Conditions condition, int destination, int limit)
+			throws IOException {
+		out.writeByte(ShardServer.COUNT);
+		out.writeByte(condition.ordinal());
+		out.writeInt(destination);
+		out.writeInt(limit);
+		out.flush();
+	}
+
+	/**Sends count walks (vertex, cost, number), vertex and cost packed as
+	 * LongHeap entries*/
+	public void sendExtend(long[] walks, long[] numbers, int count)
+			throws IOException {
+		out.writeByte(ShardServer.EXTEND);
+		out.writeInt(count);
+		for(int i = 0; i < count; i++) {
+			out.writeInt(LongHeap.vertex(walks[i]));
+			out.writeInt(LongHeap.priority(walks[i]));
+			out.writeLong(numbers[i]);
+		}
+		out.flush();
+	}
+
+	/**Receives the answer to EXTEND: the walks leaving the shard, as in
+	 * sendExtend(), are appended to the argument batch
+	 * @return the number of walks that reached the destination*/
+	public long receiveExtend(WalkBatch batch) throws IOException {
+		int count = in.readInt();
+		for(int i = 0; i < count; i++) {
+			int vertex = in.readInt();
+			int cost = in.readInt();
+			batch.add(LongHeap.entry(cost, vertex), in.readLong());
+		}
+		long reached = in.readLong();
+		receiveEnd();
+		return reached;
+	}
+
+	/**Reads the end of an answer*/
+	public void receiveEnd() throws IOException {
+		out.flush();
+		if(in.readByte() != 0)
+			throw new IOException("Protocol error");
+	}
+
+	/**Stops the shard process*/
+	public void shutdown() throws IOException {
+		out.writeByte(ShardServer.SHUTDOWN);
+		out.flush();
+		socket.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(socket.isClosed())
+			return;
+		out.writeByte(ShardServer.CLOSE);
+		out.flush();
+		socket.close();
+	}
+
+	/**Growable batch of walks, see sendExtend()*/
+	public static class WalkBatch {
+		protected long[] walks = new long[16];
+		protected long[] numbers = new long[16];
+		protected int size;
+
+		public void add(long walk, long number) {
+			if(size == walks.length) {
+				walks = Arrays.copyOf(walks, size << 1);
+				numbers = Arrays.copyOf(numbers, size << 1);
+			}
+			walks[size] = walk;
+			numbers[size++] = number;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public void clear() {
+			size = 0;
+		}
+	}
+}
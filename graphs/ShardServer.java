@@ -0,0 +1,435 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**Process serving one shard of a PartitionedGraph.<p>
+ *
+ * Vertices are partitioned in ranges of consecutive ids, so that a snapshot
+ * ordered for locality (see VertexOrdering) has few edges between shards, and
+ * each shard holds the edges leaving its own vertices. The coordinator (see
+ * PartitionedGraph) talks to the shard over a socket with a small binary
+ * protocol of DataOutput values: each request is an opcode byte followed by
+ * its arguments, and is answered before the next one is read.<p>
+ *
+ * Queries run as supersteps (bulk synchronous parallel): the coordinator
+ * sends every shard the messages addressed to its vertices, each shard
+ * processes them and everything they lead to within the shard, and returns
+ * the messages for the vertices of other shards, one batch per superstep,
+ * combined by target. Only edges crossing shards cost a message, so the
+ * number of supersteps depends on the number of shard boundaries along the
+ * paths rather than on their length.<p>
+ *
+ * Each connection is served on its own thread and holds the state of its own
+ * query, so a coordinator runs concurrent queries over separate connections;
+ * the partition is shared by all of them, and replaced by the next LOAD,
+ * which must therefore not overlap the queries of another coordinator.<p>
+ *
+ * Start a shard process with
+ * <code>java uk.ac.ucl.ucabter.graphs.ShardServer [port]</code>; it prints the
+ * port it listens on, then serves coordinators until one of them sends
+ * SHUTDOWN.*/
+public class ShardServer implements Runnable {
+
+	//opcodes
+
+	/**Loads the partition: first vertex, number of vertices, then the degree
+	 * and (target, weight) pairs of every vertex*/
+	public static final byte LOAD = 1;
+	/**Starts a shortest path query, resetting the distances*/
+	public static final byte RESET = 2;
+	/**Relaxes the edges of a vertex at distance 0, without settling it (so
+	 * that it can be reached back by a cycle)*/
+	public static final byte SEED = 3;
+	/**Processes a batch of (vertex, distance) messages*/
+	public static final byte RELAX = 4;
+	/**Returns the distance of a vertex*/
+	public static final byte DISTANCE = 5;
+	/**Starts a path counting query: condition, destination, limit*/
+	public static final byte COUNT = 6;
+	/**Processes a batch of (vertex, cost, number of walks) messages*/
+	public static final byte EXTEND = 7;
+	/**Closes the connection*/
+	public static final byte CLOSE = 8;
+	/**Closes the connection and stops the server*/
+	public static final byte SHUTDOWN = 9;
+	/**Returns the weight of edge (v, w), -1 if there is no such edge*/
+	public static final byte WEIGHT = 10;
+
+	protected final ServerSocket server;
+	/**Partition of the last LOAD, read by every connection*/
+	protected volatile Partition partition = new Partition(0, new int[1],
+			new int[0], new int[0]);
+
+	/**Vertices first to end - 1 of the graph, and the edges leaving them*/
+	protected static class Partition {
+		protected final int first;
+		protected final int end;
+		/**Edges of the local vertices, by local index v - first*/
+		protected final int[] offsets;
+		protected final int[] targets;
+		protected final int[] weights;
+
+		protected Partition(int first, int[] offsets, int[] targets,
+				int[] weights) {
+			this.first = first;
+			this.end = first + offsets.length - 1;
+			this.offsets = offsets;
+			this.targets = targets;
+			this.weights = weights;
+		}
+
+		protected int local(int vertex) {
+			return vertex - first;
+		}
+
+		protected boolean owns(int vertex) {
+			return vertex >= first && vertex < end;
+		}
+
+		protected int weight(int v, int w) {
+			for(int e = offsets[v]; e < offsets[v + 1]; e++)
+				if(targets[e] == w)
+					return weights[e];
+			return -1;
+		}
+	}
+
+	/**Listens on the port of the local host, 0 for any free port*/
+	public ShardServer(int port) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+	}
+
+	/**@return the port the server listens on*/
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**Starts the server on a daemon thread of this process, used to run
+	 * shards in process (e.g. in tests); stop it with stop()*/
+	public static ShardServer start(int port) throws IOException {
+		ShardServer shard = new ShardServer(port);
+		Thread thread = new Thread(shard, "shard-" + shard.getPort());
+		thread.setDaemon(true);
+		thread.start();
+		return shard;
+	}
+
+	public static void main(String[] args) throws IOException {
+		ShardServer shard = new ShardServer(args.length > 0
+				? Integer.parseInt(args[0]) : 0);
+		//the coordinator reads the port from the first line of output
+		System.out.println(shard.getPort());
+		System.out.flush();
+		shard.run();
+	}
+
+	/**Accepts connections until stopped, serving each on a new daemon
+	 * thread*/
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				final Socket socket = server.accept();
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						serve(socket);
+					}
+				}, "shard-" + getPort() + "-" + socket.getPort());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		} catch(IOException e) {
+			if(!server.isClosed())
+				throw new RuntimeException(e);
+		}
+	}
+
+	/**Stops accepting connections; those already open are served until the
+	 * coordinator closes them*/
+	public void stop() throws IOException {
+		server.close();
+	}
+
+	/**Answers the requests of a connection until it is closed, and stops
+	 * the server on SHUTDOWN*/
+	protected void serve(Socket socket) {
+		try {
+			try {
+				socket.setTcpNoDelay(true);
+				if(!new Session().serve(
+						new DataInputStream(new BufferedInputStream(
+								socket.getInputStream())),
+						new DataOutputStream(new BufferedOutputStream(
+								socket.getOutputStream()))))
+					stop();
+			} finally {
+				socket.close();
+			}
+		} catch(EOFException e) {
+			//coordinator went away
+		} catch(IOException e) {
+			//only this connection failed, the others go on
+		}
+	}
+
+	protected void load(DataInputStream in) throws IOException {
+		int first = in.readInt();
+		int n = in.readInt();
+		int[] offsets = new int[n + 1];
+		int[] targets = new int[16];
+		int[] weights = new int[16];
+		for(int v = 0; v < n; v++) {
+			int degree = in.readInt();
+			offsets[v + 1] = offsets[v] + degree;
+			if(offsets[v + 1] > targets.length) {
+				targets = Arrays.copyOf(targets, offsets[v + 1] * 2);
+				weights = Arrays.copyOf(weights, offsets[v + 1] * 2);
+			}
+			for(int e = offsets[v]; e < offsets[v + 1]; e++) {
+				targets[e] = in.readInt();
+				weights[e] = in.readInt();
+			}
+		}
+		partition = new Partition(first, offsets, targets, weights);
+	}
+
+	/**Requests and query state of one connection*/
+	protected class Session {
+		/**Partition of the current query, as of its start*/
+		protected Partition partition = ShardServer.this.partition;
+
+		//shortest path state
+		protected int[] distances = new int[0];
+		protected final LongHeap heap = new LongHeap(64);
+
+		//path counting state
+		protected Conditions condition;
+		protected int destination;
+		protected int limit;
+
+		/**Answers the requests of the connection
+		 * @return false if the server must stop*/
+		protected boolean serve(DataInputStream in, DataOutputStream out)
+				throws IOException {
+			while(true) {
+				byte opcode = in.readByte();
+				switch(opcode) {
+				case LOAD:
+					load(in);
+					break;
+				case RESET:
+					partition = ShardServer.this.partition;
+					int n = partition.end - partition.first;
+					if(distances.length != n)
+						distances = new int[n];
+					Arrays.fill(distances, Integer.MAX_VALUE);
+					break;
+				case SEED:
+					heap.clear();
+					Outbox seeded = new Outbox();
+					relax(partition.local(in.readInt()), 0, seeded);
+					settle(seeded);
+					seeded.writeDistances(out);
+					break;
+				case RELAX:
+					relax(in, out);
+					break;
+				case DISTANCE:
+					out.writeInt(distances[partition.local(in.readInt())]);
+					break;
+				case WEIGHT:
+					Partition current = ShardServer.this.partition;
+					out.writeInt(current.weight(current.local(in.readInt()),
+							in.readInt()));
+					break;
+				case COUNT:
+					partition = ShardServer.this.partition;
+					condition = Conditions.values()[in.readByte()];
+					destination = in.readInt();
+					limit = in.readInt();
+					break;
+				case EXTEND:
+					extend(in, out);
+					break;
+				case CLOSE:
+					out.flush();
+					return true;
+				case SHUTDOWN:
+					out.flush();
+					return false;
+				default:
+					throw new IOException("Unknown opcode " + opcode);
+				}
+				//every request gets an answer, an empty one at least
+				out.writeByte(0);
+				out.flush();
+			}
+		}
+
+		/**Applies a batch of (vertex, distance) messages, then settles the
+		 * improved vertices*/
+		protected void relax(DataInputStream in, DataOutputStream out)
+				throws IOException {
+			heap.clear();
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				int v = partition.local(in.readInt());
+				int distance = in.readInt();
+				if(distance < distances[v]) {
+					distances[v] = distance;
+					heap.add(LongHeap.entry(distance, v));
+				}
+			}
+			Outbox outbox = new Outbox();
+			settle(outbox);
+			outbox.writeDistances(out);
+		}
+
+		/**Dijkstra's algorithm over the local vertices, from those in the
+		 * heap; edges leaving the shard become messages*/
+		protected void settle(Outbox outbox) {
+			while(!heap.isEmpty()) {
+				long entry = heap.poll();
+				int v = LongHeap.vertex(entry);
+				int distance = LongHeap.priority(entry);
+				if(distance > distances[v])
+					continue;
+				relax(v, distance, outbox);
+			}
+		}
+
+		/**Relaxes the edges of local vertex v, at the given distance*/
+		protected void relax(int v, int distance, Outbox outbox) {
+			int[] targets = partition.targets;
+			int[] weights = partition.weights;
+			for(int e = partition.offsets[v]; e < partition.offsets[v + 1];
+					e++) {
+				int w = targets[e];
+				int candidate = distance + weights[e];
+				if(!partition.owns(w))
+					outbox.offer(w, candidate);
+				else if(candidate < distances[partition.local(w)]) {
+					distances[partition.local(w)] = candidate;
+					heap.add(LongHeap.entry(candidate, partition.local(w)));
+				}
+			}
+		}
+
+		/**Extends a batch of walks (vertex, cost, number) by every edge,
+		 * within the shard, in increasing order of cost so that walks reaching
+		 * the same vertex at the same cost are extended together. Answers the
+		 * walks that leave the shard, then the number of walks that reached
+		 * destination.<p>
+		 *
+		 * Costs are numbers of edges for the LESSTHAN and EXACT conditions,
+		 * and weights for COST_LESSTHAN; the walks counted are those counted
+		 * by DirectedWeightedGraph.pathsTo() for the same condition and
+		 * limit*/
+		protected void extend(DataInputStream in, DataOutputStream out)
+				throws IOException {
+			//walks by (cost, local vertex), and their order of expansion
+			Map<Long, Long> walks = new HashMap<Long, Long>();
+			LongHeap pending = new LongHeap(64);
+			int count = in.readInt();
+			for(int i = 0; i < count; i++) {
+				int v = partition.local(in.readInt());
+				int cost = in.readInt();
+				long number = in.readLong();
+				add(walks, pending, LongHeap.entry(cost, v), number);
+			}
+
+			Map<Long, Long> outbox = new HashMap<Long, Long>();
+			long reached = 0;
+			while(!pending.isEmpty()) {
+				long key = pending.poll();
+				long number = walks.remove(key);
+				int v = LongHeap.vertex(key);
+				int cost = LongHeap.priority(key);
+				for(int e = partition.offsets[v]; e < partition.offsets[v + 1];
+						e++) {
+					int w = partition.targets[e];
+					int next = cost + (condition == Conditions.COST_LESSTHAN
+							? partition.weights[e] : 1);
+					if(condition == Conditions.COST_LESSTHAN ? next >= limit
+							: next > limit)
+						continue;
+					if(w == destination) {
+						if(condition != Conditions.EXACT || next == limit)
+							reached += number;
+						//LESSTHAN walks stop at the destination
+						if(condition == Conditions.LESSTHAN)
+							continue;
+					}
+					if(partition.owns(w))
+						add(walks, pending, LongHeap.entry(next,
+								partition.local(w)), number);
+					else {
+						long target = ((long) next << 32) | w;
+						Long previous = outbox.get(target);
+						outbox.put(target, previous == null ? number
+								: previous + number);
+					}
+				}
+			}
+
+			out.writeInt(outbox.size());
+			for(Map.Entry<Long, Long> walk : outbox.entrySet()) {
+				out.writeInt(LongHeap.vertex(walk.getKey()));
+				out.writeInt(LongHeap.priority(walk.getKey()));
+				out.writeLong(walk.getValue());
+			}
+			out.writeLong(reached);
+		}
+	}
+
+	private static void add(Map<Long, Long> walks, LongHeap pending, long key,
+			long number) {
+		Long previous = walks.get(key);
+		if(previous == null) {
+			walks.put(key, number);
+			pending.add(key);
+		} else
+			walks.put(key, previous + number);
+	}
+
+	/**Messages for other shards, combined by target vertex (only the
+	 * shortest distance offered to each is kept)*/
+	protected static class Outbox {
+		protected long[] entries = new long[16];
+		protected int size;
+
+		public void offer(int vertex, int distance) {
+			if(size == entries.length)
+				entries = Arrays.copyOf(entries, size << 1);
+			entries[size++] = ((long) vertex << 32) | distance;
+		}
+
+		/**Writes the number of messages, then each (vertex, distance)*/
+		public void writeDistances(DataOutputStream out) throws IOException {
+			//sorted by vertex then distance, the first of each vertex is the
+			//shortest
+			Arrays.sort(entries, 0, size);
+			int count = 0;
+			for(int i = 0; i < size; i++)
+				if(i == 0 || entries[i] >>> 32 != entries[i - 1] >>> 32)
+					entries[count++] = entries[i];
+			out.writeInt(count);
+			for(int i = 0; i < count; i++) {
+				out.writeInt((int) (entries[i] >>> 32));
+				out.writeInt((int) entries[i]);
+			}
+		}
+	}
+}
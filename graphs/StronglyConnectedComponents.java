@@ -0,0 +1,249 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**Strongly connected components of a CompactGraph, and reachability index
+ * over its condensation (the DAG with one vertex per component).<p>
+ *
+ * Components are found with an iterative version of Tarjan's algorithm:
+ * R. Tarjan, 1972, <em>Depth-first search and linear graph algorithms</em>,
+ * SIAM Journal on Computing 1(2).<p>
+ *
+ * Tarjan's algorithm completes the components in reverse topological order,
+ * so every edge of the condensation goes from a component to one with a lower
+ * id. Together with the height of each component in the DAG, this rejects
+ * most impossible reachability queries in constant time. On graphs with at
+ * most CLOSURE_LIMIT components the transitive closure of the DAG is also
+ * stored (one bit per pair of components) and every query is answered in
+ * constant time; larger graphs fall back to a search of the DAG, pruned by
+ * the same two criteria.*/
+public class StronglyConnectedComponents {
+
+	/**Largest number of components for which the transitive closure is
+	 * stored (at most 32MB)*/
+	public static final int CLOSURE_LIMIT = 1 << 14;
+
+	protected final CompactGraph<?> graph;
+	/**Component of each vertex*/
+	protected final int[] component;
+	protected final int count;
+	/**Vertices of each component, in the same layout as CompactGraph edges*/
+	protected final int[] memberOffsets;
+	protected final int[] members;
+	/**Whether each component contains a cycle (more than one vertex, or a
+	 * self loop)*/
+	protected final BitSet cyclic;
+	/**Condensation DAG, successors of each component*/
+	protected final int[] dagOffsets;
+	protected final int[] dagTargets;
+	/**Length of the longest path from each component to a sink of the DAG*/
+	protected final int[] height;
+	/**Transitive closure, words per component row, or null if there are
+	 * more than CLOSURE_LIMIT components*/
+	protected final long[] closure;
+	protected final int words;
+
+	public StronglyConnectedComponents(CompactGraph<?> graph) {
+		this.graph = graph;
+		int n = graph.vertexCount();
+		component = new int[n];
+		count = tarjan();
+
+		//group the vertices by component
+		memberOffsets = new int[count + 1];
+		members = new int[n];
+		for(int v = 0; v < n; v++)
+			++memberOffsets[component[v] + 1];
+		for(int c = 0; c < count; c++)
+			memberOffsets[c + 1] += memberOffsets[c];
+		int[] fill = Arrays.copyOf(memberOffsets, count);
+		for(int v = 0; v < n; v++)
+			members[fill[component[v]]++] = v;
+
+		//condensation edges, deduplicated with a per-target stamp
+		cyclic = new BitSet(count);
+		int[] stamp = new int[count];
+		Arrays.fill(stamp, -1);
+		IntStack edges = new IntStack(count);
+		dagOffsets = new int[count + 1];
+		for(int c = 0; c < count; c++) {
+			if(memberOffsets[c + 1] - memberOffsets[c] > 1)
+				cyclic.set(c);
+			for(int m = memberOffsets[c]; m < memberOffsets[c + 1]; m++) {
+				int v = members[m];
+				for(int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+					int d = component[graph.targets[e]];
+					if(d == c) {
+						if(graph.targets[e] == v)
+							cyclic.set(c);
+					}
+					else if(stamp[d] != c) {
+						stamp[d] = c;
+						edges.push(d);
+					}
+				}
+			}
+			dagOffsets[c + 1] = edges.size();
+		}
+		dagTargets = Arrays.copyOf(edges.items, edges.size());
+
+		//successors have lower ids, so a single ascending pass computes the
+		//heights and the closure
+		height = new int[count];
+		words = (count + 63) >>> 6;
+		closure = count <= CLOSURE_LIMIT ? new long[count * words] : null;
+		for(int c = 0; c < count; c++) {
+			for(int e = dagOffsets[c]; e < dagOffsets[c + 1]; e++) {
+				int d = dagTargets[e];
+				height[c] = Math.max(height[c], height[d] + 1);
+				if(closure != null) {
+					closure[c * words + (d >>> 6)] |= 1L << d;
+					for(int w = 0; w < words; w++)
+						closure[c * words + w] |= closure[d * words + w];
+				}
+			}
+		}
+	}
+
+	/**Iterative Tarjan's algorithm, fills component and returns the number
+	 * of components*/
+	private int tarjan() {
+		int n = graph.vertexCount();
+		int[] offsets = graph.offsets;
+		int[] targets = graph.targets;
+		int[] index = new int[n];
+		int[] low = new int[n];
+		//next edge to explore from each vertex on the call stack
+		int[] position = new int[n];
+		BitSet onStack = new BitSet(n);
+		IntStack stack = new IntStack(64);
+		IntStack calls = new IntStack(64);
+		Arrays.fill(index, -1);
+		int counter = 0;
+		int components = 0;
+
+		for(int s = 0; s < n; s++) {
+			if(index[s] >= 0)
+				continue;
+			index[s] = low[s] = counter++;
+			position[s] = offsets[s];
+			stack.push(s);
+			onStack.set(s);
+			calls.push(s);
+
+			while(!calls.isEmpty()) {
+				int v = calls.peek();
+				if(position[v] < offsets[v + 1]) {
+					int w = targets[position[v]++];
+					if(index[w] < 0) {
+						//"recursive call" on w
+						index[w] = low[w] = counter++;
+						position[w] = offsets[w];
+						stack.push(w);
+						onStack.set(w);
+						calls.push(w);
+					}
+					else if(onStack.get(w))
+						low[v] = Math.min(low[v], index[w]);
+					continue;
+				}
+
+				//all edges of v explored, "return" from v
+				calls.pop();
+				if(low[v] == index[v]) {
+					int w;
+					do {
+						w = stack.pop();
+						onStack.clear(w);
+						component[w] = components;
+					} while(w != v);
+					++components;
+				}
+				if(!calls.isEmpty()) {
+					int u = calls.peek();
+					low[u] = Math.min(low[u], low[v]);
+				}
+			}
+		}
+		return components;
+	}
+
+	/**@return the number of components*/
+	public int componentCount() {
+		return count;
+	}
+
+	/**@return the component of vertex v*/
+	public int component(int v) {
+		return component[v];
+	}
+
+	/**@return the number of vertices in component c*/
+	public int size(int c) {
+		return memberOffsets[c + 1] - memberOffsets[c];
+	}
+
+	/**@return true if component c contains a cycle*/
+	public boolean isCyclic(int c) {
+		return cyclic.get(c);
+	}
+
+	/**@return true if there is a path of at least one edge from vertex u to
+	 * vertex v (when u equals v, the path must be a cycle)*/
+	public boolean reaches(int u, int v) {
+		int cu = component[u];
+		int cv = component[v];
+		if(cu == cv)
+			return u != v || cyclic.get(cu);
+		return componentReaches(cu, cv);
+	}
+
+	/**@return true if there is a path from component cu to a different
+	 * component cv*/
+	public boolean componentReaches(int cu, int cv) {
+		//condensation edges lower the id and the height
+		if(cu < cv || height[cu] <= height[cv])
+			return false;
+		if(closure != null)
+			return (closure[cu * words + (cv >>> 6)] & (1L << cv)) != 0;
+
+		BitSet visited = new BitSet(cu + 1);
+		IntStack stack = new IntStack(64);
+		stack.push(cu);
+		visited.set(cu);
+		while(!stack.isEmpty()) {
+			int c = stack.pop();
+			for(int e = dagOffsets[c]; e < dagOffsets[c + 1]; e++) {
+				int d = dagTargets[e];
+				if(d == cv)
+					return true;
+				if(d > cv && height[d] > height[cv] && !visited.get(d)) {
+					visited.set(d);
+					stack.push(d);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**Sets in result the vertices from which v can be reached along a path
+	 * of at least one edge (v included only if it lies on a cycle)
+	 * @return result*/
+	public BitSet reaching(int v, BitSet result) {
+		result.clear();
+		int cv = component[v];
+		if(closure == null)
+			return graph.reaching(v, result);
+
+		for(int c = cv; c < count; c++) {
+			if(c != cv && !componentReaches(c, cv))
+				continue;
+			for(int m = memberOffsets[c]; m < memberOffsets[c + 1]; m++)
+				result.set(members[m]);
+		}
+		if(!cyclic.get(cv))
+			result.clear(v);
+		return result;
+	}
+}
@@ -0,0 +1,25 @@
+package uk.ac.ucl.ucabter.graphs;
+
+/**Edge whose travel time depends on the time of departure.<p>
+ * The weight of the edge is the smallest travel time of its function, so
+ * that the static algorithms of the graph (shortest paths, path costing)
+ * compute lower bounds of the time-dependent ones.*/
+public class TimeDependentEdge<V> extends IntegerWeightEdge<V> {
+	protected TravelTimeFunction function;
+
+	/**Constructs an edge to the terminal with the given travel times*/
+	protected TimeDependentEdge(V terminal, TravelTimeFunction function) {
+		super(terminal, function.minimum());
+		this.function = function;
+	}
+
+	/**@return the travel time function of the edge*/
+	public TravelTimeFunction getFunction() {
+		return function;
+	}
+
+	/**@return the travel time when departing at the given time*/
+	public int travelTime(int departure) {
+		return function.travelTime(departure);
+	}
+}
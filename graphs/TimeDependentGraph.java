@@ -0,0 +1,153 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**Directed graph whose edges have travel times depending on the time of
+ * departure, see TravelTimeFunction.<p>
+ *
+ * Edges with identical profiles share a single function instance (profiles
+ * are interned by the graph), so one graph replaces a copy of the graph per
+ * time slot at the cost of one reference per edge. Edges added with a plain
+ * weight have a constant function.<p>
+ *
+ * The inherited queries use the smallest travel time of each edge as its
+ * weight, so shortestPath(start, destination) is a lower bound of the travel
+ * time at any departure time; shortestPath(start, destination, departure)
+ * is the exact, time-dependent one.*/
+public class TimeDependentGraph<V> extends
+		DirectedWeightedGraph<V, TimeDependentEdge<V>> {
+
+	/**Interned travel time functions*/
+	protected final Map<TravelTimeFunction, TravelTimeFunction> profiles =
+			new HashMap<TravelTimeFunction, TravelTimeFunction>();
+	/**Snapshot the functions below are aligned with*/
+	private CompactGraph<V> functionsSnapshot;
+	/**Function of each edge of the snapshot, by edge index*/
+	private TravelTimeFunction[] functions;
+
+	/**Adds an edge with a constant travel time*/
+	@Override
+	public void setEdge(V start, V destination, int cost)
+			throws GraphException {
+		setEdge(start, destination, TravelTimeFunction.constant(cost));
+	}
+
+	/**Adds an edge with the given travel time function*/
+	public void setEdge(V start, V destination, TravelTimeFunction function)
+			throws GraphException {
+		addEdge(start, new TimeDependentEdge<V>(destination, intern(function)));
+	}
+
+	/**@return the shared instance equal to the function*/
+	protected TravelTimeFunction intern(TravelTimeFunction function) {
+		TravelTimeFunction shared = profiles.get(function);
+		if(shared == null) {
+			profiles.put(function, function);
+			shared = function;
+		}
+		return shared;
+	}
+
+	/**@return the number of distinct travel time functions in the graph*/
+	public int profileCount() {
+		return profiles.size();
+	}
+
+	/**@return the function of each edge of the current snapshot, by edge
+	 * index (see CompactGraph)*/
+	protected synchronized TravelTimeFunction[] functions(
+			CompactGraph<V> graph) {
+		if(functionsSnapshot != graph) {
+			TravelTimeFunction[] functions =
+					new TravelTimeFunction[graph.edgeCount()];
+			for(int v = 0; v < graph.vertexCount(); v++) {
+				List<TimeDependentEdge<V>> edges = edges(graph.label(v));
+				for(int i = 0; i < edges.size(); i++) {
+					TimeDependentEdge<V> edge = edges.get(i);
+					//rows are sorted by target
+					int e = Arrays.binarySearch(graph.targets,
+							graph.firstEdge(v), graph.endEdge(v),
+							graph.id(edge.getTerminal()));
+					functions[e] = edge.getFunction();
+				}
+			}
+			this.functions = functions;
+			functionsSnapshot = graph;
+		}
+		return functions;
+	}
+
+	/**@return the travel time of the path when departing at the given time
+	 * @throws GraphException if the path is too short or not in the graph*/
+	public int cost(V[] path, int departure) throws GraphException {
+		if(path.length <= 1)
+			throw new GraphException("path too short");
+		int time = departure;
+		for(int i = 0; i < path.length - 1; i++) {
+			List<TimeDependentEdge<V>> edges = edges(path[i]);
+			if(edges == null)
+				throw new GraphException("No such vertex");
+			TimeDependentEdge<V> edge = null;
+			for(int j = 0; j < edges.size(); j++)
+				if(edges.get(j).terminal == path[i + 1]) {
+					edge = edges.get(j);
+					break;
+				}
+			if(edge == null)
+				throw new GraphException("no such destination vertex");
+			time += edge.travelTime(time);
+		}
+		return time - departure;
+	}
+
+	/**Time-dependent Dijkstra's algorithm: settles vertices by earliest
+	 * arrival time, evaluating each edge at the time its start vertex is
+	 * reached, which is exact for FIFO functions. As shortestPath(), the
+	 * path from a vertex to itself is its fastest cycle
+	 * @param departure departure time from start, non negative
+	 * @return the smallest travel time from start to destination
+	 * @throws GraphException if either vertex does not exist or there is no
+	 * path between them*/
+	public int shortestPath(V start, V destination, int departure)
+			throws GraphException {
+		if(departure < 0)
+			throw new IllegalArgumentException("Negative departure time");
+		if(vertices.get(start) == null || vertices.get(destination) == null)
+			throw new GraphException("No such vertex");
+		if(indexed() && !canReach(start, destination))
+			throw new GraphException("No such path");
+		GraphMetrics metrics = this.metrics;
+		long begin = metrics == null ? 0 : System.nanoTime();
+
+		final CompactGraph<V> graph = compact();
+		final TravelTimeFunction[] functions = functions(graph);
+		//arrival times are held as the distances of the context, each edge
+		//is evaluated at the arrival time at its start vertex
+		QueryContext.Relaxation edges = new QueryContext.Relaxation() {
+			@Override
+			public int relax(QueryContext context, int v, int time) {
+				for(int e = graph.firstEdge(v); e < graph.endEdge(v); e++)
+					context.relax(graph.targets[e], functions[e].arrival(time),
+							v);
+				return graph.degree(v);
+			}
+		};
+		QueryContext context = QueryContext.acquire(graph.vertexCount());
+		int arrival;
+		try {
+			arrival = context.search(graph.id(start), departure,
+					graph.id(destination), edges, null);
+			if(metrics != null)
+				metrics.recordShortestPath(System.nanoTime() - begin,
+						context.settled(), context.relaxed());
+		} finally {
+			context.release();
+		}
+		if(arrival == Integer.MAX_VALUE)
+			throw new GraphException("No such path");
+		return arrival - departure;
+	}
+}
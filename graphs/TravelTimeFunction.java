@@ -0,0 +1,140 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.Arrays;
+
+/**Travel time along an edge as a function of the departure time, piecewise
+ * linear and periodic (typically over a day).<p>
+ *
+ * The function is given by breakpoints (time, travel time), with times in
+ * [0, period) and in increasing order; between two breakpoints the travel
+ * time is interpolated linearly, and the last breakpoint joins the first one
+ * of the next period. A single breakpoint gives a constant function.<p>
+ *
+ * Functions must satisfy the FIFO property: departing later never means
+ * arriving earlier, i.e. no segment decreases faster than time passes. Under
+ * that property Dijkstra's algorithm on arrival times finds the earliest
+ * arrival, see:
+ * K. Cooke, E. Halsey, 1966, <em>The shortest route through a network with
+ * time-dependent internodal transit times</em>, Journal of Mathematical
+ * Analysis and Applications 14.<p>
+ *
+ * Instances are immutable, with value equality, so that edges with the same
+ * profile can share one instance (see TimeDependentGraph).*/
+public class TravelTimeFunction {
+
+	/**Number of seconds in a day, the usual period*/
+	public static final int DAY = 24 * 60 * 60;
+
+	protected final int period;
+	protected final int[] times;
+	protected final int[] travelTimes;
+	protected final int minimum;
+
+	/**@param period length of the period, times are taken modulo period
+	 * @param times breakpoint times, increasing, in [0, period)
+	 * @param travelTimes travel times at the breakpoints, non negative
+	 * @throws IllegalArgumentException if the breakpoints are not valid or
+	 * the function is not FIFO*/
+	public TravelTimeFunction(int period, int[] times, int[] travelTimes) {
+		if(period <= 0 || times.length == 0
+				|| times.length != travelTimes.length)
+			throw new IllegalArgumentException("Invalid breakpoints");
+		this.period = period;
+		this.times = times.clone();
+		this.travelTimes = travelTimes.clone();
+
+		int minimum = Integer.MAX_VALUE;
+		int n = times.length;
+		for(int i = 0; i < n; i++) {
+			if(times[i] < 0 || times[i] >= period
+					|| (i > 0 && times[i] <= times[i - 1]))
+				throw new IllegalArgumentException("Invalid breakpoint times");
+			if(travelTimes[i] < 0)
+				throw new IllegalArgumentException("Negative travel time");
+			minimum = Math.min(minimum, travelTimes[i]);
+
+			//FIFO: the arrival time at the next breakpoint is not earlier
+			long next = i + 1 < n ? times[i + 1] : (long) times[0] + period;
+			int nextTravelTime = travelTimes[(i + 1) % n];
+			if(next + nextTravelTime < (long) times[i] + travelTimes[i])
+				throw new IllegalArgumentException("Not a FIFO function");
+		}
+		this.minimum = minimum;
+	}
+
+	/**@return a function with the same travel time at any time of day*/
+	public static TravelTimeFunction constant(int travelTime) {
+		return new TravelTimeFunction(DAY, new int[]{0}, new int[]{travelTime});
+	}
+
+	/**@return the travel time when departing at the given (non negative)
+	 * time*/
+	public int travelTime(int departure) {
+		if(times.length == 1)
+			return travelTimes[0];
+		int t = departure % period;
+		int i = Arrays.binarySearch(times, t);
+		if(i >= 0)
+			return travelTimes[i];
+
+		//t lies between breakpoint i - 1 and i (wrapping around the period)
+		i = -i - 1;
+		long fromTime;
+		long toTime;
+		int from;
+		int to;
+		if(i == 0) {
+			fromTime = times[times.length - 1] - (long) period;
+			from = travelTimes[times.length - 1];
+			toTime = times[0];
+			to = travelTimes[0];
+		} else if(i == times.length) {
+			fromTime = times[i - 1];
+			from = travelTimes[i - 1];
+			toTime = times[0] + (long) period;
+			to = travelTimes[0];
+		} else {
+			fromTime = times[i - 1];
+			from = travelTimes[i - 1];
+			toTime = times[i];
+			to = travelTimes[i];
+		}
+		return (int) (from + (to - from) * (t - fromTime) / (toTime - fromTime));
+	}
+
+	/**@return the arrival time when departing at the given time*/
+	public int arrival(int departure) {
+		return departure + travelTime(departure);
+	}
+
+	/**@return the smallest travel time over the period, a lower bound of
+	 * travelTime()*/
+	public int minimum() {
+		return minimum;
+	}
+
+	/**@return the length of the period*/
+	public int period() {
+		return period;
+	}
+
+	/**@return the number of breakpoints*/
+	public int size() {
+		return times.length;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof TravelTimeFunction))
+			return false;
+		TravelTimeFunction other = (TravelTimeFunction) o;
+		return period == other.period && Arrays.equals(times, other.times)
+				&& Arrays.equals(travelTimes, other.travelTimes);
+	}
+
+	@Override
+	public int hashCode() {
+		return (period * 31 + Arrays.hashCode(times)) * 31
+				+ Arrays.hashCode(travelTimes);
+	}
+}
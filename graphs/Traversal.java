@@ -0,0 +1,157 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.BitSet;
+
+/**Iterative traversal engine over a CompactGraph.<p>
+ *
+ * Provides depth-first and breadth-first traversals and reachability, using
+ * an explicit stack (or queue) rather than recursion, so the depth of the
+ * graph is bounded by the heap rather than the call stack. The stack, queue
+ * and visited marks are held by the engine and reused from one traversal to
+ * the next: once an instance has grown to the size of the graph, traversals
+ * allocate nothing.<p>
+ *
+ * Instances are not thread safe, each thread should use its own engine.*/
+public class Traversal {
+
+	protected CompactGraph<?> graph;
+	/**Pending (vertex, depth) pairs for depth-first traversals*/
+	protected final IntStack stack;
+	/**Breadth-first queue, each vertex is enqueued at most once*/
+	protected int[] queue;
+	/**Record of visited vertices*/
+	protected final BitSet marks;
+
+	/**Constructs an engine sized for the argument graph*/
+	public Traversal(CompactGraph<?> graph) {
+		this.graph = graph;
+		stack = new IntStack(64);
+		queue = new int[graph.vertexCount()];
+		marks = new BitSet(graph.vertexCount());
+	}
+
+	/**Rebinds the engine to another graph (e.g. a more recent snapshot),
+	 * reusing its buffers where large enough*/
+	public void reset(CompactGraph<?> graph) {
+		this.graph = graph;
+		if(queue.length < graph.vertexCount())
+			queue = new int[graph.vertexCount()];
+	}
+
+	/**@return the graph the engine is bound to*/
+	public CompactGraph<?> graph() {
+		return graph;
+	}
+
+	/**@return the vertices visited by the last traversal. The set is owned
+	 * by the engine and overwritten by the next traversal*/
+	public BitSet marks() {
+		return marks;
+	}
+
+	/**Visits the graph depth-first from start, in the same order a recursive
+	 * traversal would.
+	 * @param visitor called once per vertex reached, may be null
+	 * @return the number of vertices visited*/
+	public int depthFirst(int start, VertexVisitor visitor) {
+		marks.clear();
+		stack.clear();
+		int visited = 0;
+		int[] offsets = graph.offsets;
+		int[] targets = graph.targets;
+
+		stack.push(start);
+		stack.push(0);
+		while(!stack.isEmpty()) {
+			int depth = stack.pop();
+			int vertex = stack.pop();
+			if(marks.get(vertex))
+				continue;
+
+			//visit action
+			marks.set(vertex);
+			++visited;
+			if(visitor != null && !visitor.visit(vertex, depth))
+				break;
+
+			//push in reverse so that the first edge is explored first
+			for(int e = offsets[vertex + 1] - 1; e >= offsets[vertex]; e--) {
+				if(!marks.get(targets[e])) {
+					stack.push(targets[e]);
+					stack.push(depth + 1);
+				}
+			}
+		}
+		return visited;
+	}
+
+	/**Visits the graph breadth-first from start, level by level.
+	 * @param visitor called once per vertex reached, may be null
+	 * @return the number of vertices visited*/
+	public int breadthFirst(int start, VertexVisitor visitor) {
+		marks.clear();
+		int[] offsets = graph.offsets;
+		int[] targets = graph.targets;
+		int head = 0;
+		int tail = 0;
+		int depth = 0;
+		//index in the queue where the next level starts
+		int levelEnd = 1;
+
+		marks.set(start);
+		queue[tail++] = start;
+		while(head < tail) {
+			if(head == levelEnd) {
+				++depth;
+				levelEnd = tail;
+			}
+			int vertex = queue[head++];
+			if(visitor != null && !visitor.visit(vertex, depth))
+				break;
+
+			for(int e = offsets[vertex]; e < offsets[vertex + 1]; e++) {
+				int target = targets[e];
+				if(!marks.get(target)) {
+					marks.set(target);
+					queue[tail++] = target;
+				}
+			}
+		}
+		return head;
+	}
+
+	/**@return the set of vertices reachable from start (start included). The
+	 * set is owned by the engine, see marks()*/
+	public BitSet reachable(int start) {
+		breadthFirst(start, null);
+		return marks;
+	}
+
+	/**@return true if there is a path (possibly empty) from start to target*/
+	public boolean reaches(int start, int target) {
+		if(start == target)
+			return true;
+		marks.clear();
+		int[] offsets = graph.offsets;
+		int[] targets = graph.targets;
+		int head = 0;
+		int tail = 0;
+
+		marks.set(start);
+		queue[tail++] = start;
+		while(head < tail) {
+			int vertex = queue[head++];
+			for(int e = offsets[vertex]; e < offsets[vertex + 1]; e++) {
+				int next = targets[e];
+				//stop as soon as the target is discovered
+				if(next == target)
+					return true;
+				if(!marks.get(next)) {
+					marks.set(next);
+					queue[tail++] = next;
+				}
+			}
+		}
+		return false;
+	}
+}
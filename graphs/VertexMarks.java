@@ -0,0 +1,116 @@
+package uk.ac.ucl.ucabter.graphs;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**Set of vertices backed by a bit set indexed by the vertex ids of a graph.<p>
+ *
+ * Used as the mark record of DirectedWeightedGraph: marking, unmarking and
+ * clearing vertices do not allocate, unlike a HashSet, and the set can be
+ * loaded in bulk from the marks of a Traversal.*/
+public class VertexMarks<V> extends AbstractSet<V> {
+
+	/**Ids assigned to the vertices by the graph (shared, read only)*/
+	protected final Map<V, Integer> ids;
+	/**Vertex labels by id (shared, read only)*/
+	protected final List<V> labels;
+	protected final BitSet bits;
+
+	public VertexMarks(Map<V, Integer> ids, List<V> labels) {
+		this.ids = ids;
+		this.labels = labels;
+		bits = new BitSet(labels.size());
+	}
+
+	/**Replaces the content of the set with the argument ids*/
+	public void load(BitSet marks) {
+		bits.clear();
+		bits.or(marks);
+	}
+
+	/**Replaces the content of the set with the argument ids of a snapshot,
+	 * translated to the ids of the graph if the snapshot was reordered*/
+	public void load(BitSet marks, CompactGraph<V> graph) {
+		if(graph.isIdentityOrder()) {
+			load(marks);
+			return;
+		}
+		bits.clear();
+		for(int v = marks.nextSetBit(0); v >= 0; v = marks.nextSetBit(v + 1))
+			bits.set(graph.stableId(v));
+	}
+	
+	/**@return the bits backing the set*/
+	public BitSet bits() {
+		return bits;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		Integer id = ids.get(o);
+		return id != null && bits.get(id);
+	}
+
+	/**Marks the vertex, vertices that are not part of the graph are ignored*/
+	@Override
+	public boolean add(V v) {
+		Integer id = ids.get(v);
+		if(id == null || bits.get(id))
+			return false;
+		bits.set(id);
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		Integer id = ids.get(o);
+		if(id == null || !bits.get(id))
+			return false;
+		bits.clear(id);
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		bits.clear();
+	}
+
+	@Override
+	public int size() {
+		return bits.cardinality();
+	}
+
+	@Override
+	public Iterator<V> iterator() {
+		return new Iterator<V>() {
+			int next = bits.nextSetBit(0);
+			int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public V next() {
+				if(next < 0)
+					throw new NoSuchElementException();
+				last = next;
+				next = bits.nextSetBit(next + 1);
+				return labels.get(last);
+			}
+
+			@Override
+			public void remove() {
+				if(last < 0)
+					throw new IllegalStateException();
+				bits.clear(last);
+				last = -1;
+			}
+		};
+	}
+}
@@ -0,0 +1,13 @@
+package uk.ac.ucl.ucabter.graphs;
+
+/**Callback invoked by the Traversal engine for every vertex reached.<p>
+ * 
+ * Vertices are identified by their compact (int) id, see CompactGraph.*/
+public interface VertexVisitor {
+	/**Visit action
+	 * @param vertex the compact id of the vertex being visited
+	 * @param depth the number of edges between the start vertex and this one 
+	 * along the traversal (hop distance for breadth-first traversals)
+	 * @return false to stop the traversal, true to carry on*/
+	boolean visit(int vertex, int depth);
+}
@@ -22,7 +22,8 @@ public interface WeightedGraph<V, E> { // Graph class ADT
 	 * @throws GraphException if v does not exist*/
 	public E first(V v) throws GraphException;
 	
-	/** @return v’s next neighbor after w 
+	/** @return v’s next neighbor after w, null if w is the last neighbor of
+	 * v or not a neighbor of v at all
 	 * @throws GraphException if v,w does not exist*/
 	public E next(V v, V w) throws GraphException;
 	